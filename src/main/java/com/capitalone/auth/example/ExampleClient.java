@@ -7,7 +7,7 @@ import com.capitalone.auth.oauth.factory.HttpConnectionFactory;
 import com.capitalone.auth.oauth.factory.HttpConnectionFactoryImpl;
 import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
 import com.capitalone.auth.oauth.framework.OAuthClientCredentialsProvider;
-import com.capitalone.auth.oauth.service.ClientSecretException;
+import com.capitalone.auth.oauth.service.AesGcmClientSecretService;
 import com.capitalone.auth.oauth.service.ClientSecretService;
 import com.capitalone.auth.oauth.service.OAuthToken;
 import com.capitalone.auth.oauth.service.OAuthTokenService;
@@ -15,7 +15,6 @@ import com.capitalone.auth.oauth.service.OAuthTokenService;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Copyright [2016] Capital One Services, LLC
@@ -60,9 +59,9 @@ public class ExampleClient {
 
         ClientCredentialsProvider<OAuthClientCredentials> clientCredentialsProvider = new OAuthClientCredentialsProvider(builtClientCredentials);
 
-        ClientSecretService clientSecretService = new DummyClientSecretService();
+        ClientSecretService clientSecretService = new AesGcmClientSecretService();
 
-        HttpConnectionFactory httpConnectionFactory = new HttpConnectionFactoryImpl(new ReentrantLock());
+        HttpConnectionFactory httpConnectionFactory = new HttpConnectionFactoryImpl();
 
         HttpConnectionConfig httpConnectionConfig = HttpConnectionConfig.newBuilder()
                 .httpConnectionTimeout(60000)
@@ -81,19 +80,4 @@ public class ExampleClient {
             e.printStackTrace();
         }
     }
-
-    private class DummyClientSecretService implements ClientSecretService {
-        @Override
-        public String obtainClientSecret(OAuthClientCredentials clientCredentials) throws ClientSecretException {
-            if (null == clientCredentials.getClientSecretEncryptionKey()) {
-                return clientCredentials.getClientSecret();
-            } else {
-                return decryptSecret(clientCredentials.getClientSecretEncryptionKey(), clientCredentials.getClientSecret());
-            }
-        }
-
-        private String decryptSecret(String encryptionKey, String encryptedClientSecret) {
-            return "abc1";
-        }
-    }
 }
@@ -0,0 +1,54 @@
+package com.capitalone.auth.oauth.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the auth server answers a token request with an error status or without an access token.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class TokenRequestException extends IOException {
+
+    private final int statusCode;
+    private final String error;
+    private final String errorDescription;
+
+    public TokenRequestException(String message, int statusCode, String error, String errorDescription) {
+        super(message);
+        this.statusCode = statusCode;
+        this.error = error;
+        this.errorDescription = errorDescription;
+    }
+
+    /**
+     * @return the http status of the response
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the error code of the response (RFC 6749 section 5.2), e.g. invalid_client, or null if it had none
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the error_description of the response, or null if it had none
+     */
+    public String getErrorDescription() {
+        return errorDescription;
+    }
+}
@@ -0,0 +1,31 @@
+package com.capitalone.auth.oauth.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a token could not be obtained within the caller's deadline and there was no still valid token to fall
+ * back on.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class TokenTimeoutException extends IOException {
+
+    public TokenTimeoutException(String message) {
+        super(message);
+    }
+
+    public TokenTimeoutException(String message, Throwable throwable) {
+        super(message, throwable);
+    }
+}
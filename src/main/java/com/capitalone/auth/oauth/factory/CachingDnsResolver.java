@@ -0,0 +1,286 @@
+package com.capitalone.auth.oauth.factory;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DnsResolver} that caches addresses for a fixed time to live and re-resolves every host it has seen in
+ * the background, so a token refresh never has to wait on name lookup.
+ * <p/>
+ * Expired addresses are served straight away while the host is re-resolved in the background, and when
+ * re-resolution fails the last known good addresses keep being served. Only a host that has never been resolved
+ * successfully is looked up on the caller's thread, and fails the lookup if it can't be resolved. Hosts that haven't
+ * been looked up for the idle timeout are dropped rather than re-resolved forever, except for the ones that were
+ * {@link #preResolve(String) pre-resolved}: auth servers are typically only contacted every 30 to 60 minutes, so
+ * they would otherwise be evicted between token refreshes and looked up on the refresh path again.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class CachingDnsResolver implements DnsResolver, Closeable {
+
+    /**
+     * The shortest interval between background re-resolutions, however short the time to live.
+     */
+    public static final long MIN_REFRESH_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Without an explicit idle timeout, hosts are dropped after this many times to live without a lookup.
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT_FACTOR = 10;
+
+    private final DnsResolver delegate;
+    private final long timeToLive;
+    private final long idleTimeout;
+    private final ConcurrentMap<String, CachedAddresses> cache = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher;
+
+    private final AtomicLong resolutionCount = new AtomicLong();
+    private final AtomicLong resolutionFailures = new AtomicLong();
+    private final AtomicLong resolutionTimeNanos = new AtomicLong();
+    private final AtomicLong maxResolutionTimeNanos = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CachingDnsResolver(long timeToLive, TimeUnit unit) {
+        this(SystemDefaultDnsResolver.INSTANCE, timeToLive, unit);
+    }
+
+    /**
+     * @param delegate   the resolver doing the actual lookups
+     * @param timeToLive how long resolved addresses are served before they are looked up again, cached hosts are
+     *                   re-resolved in the background at half this interval
+     * @param unit       the unit of the time to live
+     */
+    public CachingDnsResolver(DnsResolver delegate, long timeToLive, TimeUnit unit) {
+        this(delegate, timeToLive, timeToLive * DEFAULT_IDLE_TIMEOUT_FACTOR, unit);
+    }
+
+    /**
+     * @param delegate    the resolver doing the actual lookups
+     * @param timeToLive  how long resolved addresses are served before they are looked up again, cached hosts are
+     *                    re-resolved in the background at half this interval but no more often than
+     *                    {@link #MIN_REFRESH_INTERVAL_MILLIS}
+     * @param idleTimeout how long a host is kept without being looked up before it is dropped from the cache
+     * @param unit        the unit of the time to live and idle timeout
+     */
+    public CachingDnsResolver(DnsResolver delegate, long timeToLive, long idleTimeout, TimeUnit unit) {
+        this.delegate = delegate;
+        this.timeToLive = unit.toMillis(timeToLive);
+        this.idleTimeout = unit.toMillis(idleTimeout);
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("oauth-dns-refresh"));
+
+        final long refreshInterval = Math.max(MIN_REFRESH_INTERVAL_MILLIS, this.timeToLive / 2);
+        this.refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshAll();
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        final CachedAddresses cached = cache.get(host);
+        if (null == cached) {
+            return refresh(host, null, false).addresses.clone();
+        }
+
+        cached.lastUsed = System.currentTimeMillis();
+        if (cached.hasExpired()) {
+            // never wait on the lookup, the last known good addresses do until it completes
+            staleHits.incrementAndGet();
+            refreshInBackground(host, cached);
+        } else {
+            cacheHits.incrementAndGet();
+        }
+        return cached.addresses.clone();
+    }
+
+    /**
+     * Resolves the host now and keeps it cached (and refreshed) from then on, however long it goes without being
+     * looked up, e.g. for every auth server at startup.
+     */
+    public void preResolve(String host) throws UnknownHostException {
+        refresh(host, null, true);
+    }
+
+    public long getResolutionCount() {
+        return resolutionCount.get();
+    }
+
+    public long getResolutionFailures() {
+        return resolutionFailures.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of lookups answered with expired addresses while the host was re-resolved in the
+     * background, or because re-resolution failed
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * @return the number of hosts dropped from the cache after the idle timeout
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of hosts currently cached
+     */
+    public int getCachedHostCount() {
+        return cache.size();
+    }
+
+    public long getTotalResolutionTime(TimeUnit unit) {
+        return unit.convert(resolutionTimeNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxResolutionTime(TimeUnit unit) {
+        return unit.convert(maxResolutionTimeNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the background re-resolution.
+     */
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Drops the hosts that have been idle for too long and re-resolves the rest.
+     */
+    void refreshAll() {
+        final long idleSince = System.currentTimeMillis() - idleTimeout;
+        for (Map.Entry<String, CachedAddresses> entry : cache.entrySet()) {
+            final CachedAddresses cached = entry.getValue();
+            if (!cached.pinned && cached.lastUsed <= idleSince) {
+                if (cache.remove(entry.getKey(), cached)) {
+                    evictions.incrementAndGet();
+                }
+                continue;
+            }
+            try {
+                refresh(entry.getKey(), cached, cached.pinned);
+            } catch (UnknownHostException | RuntimeException e) {
+                // keep serving the last known good addresses
+            }
+        }
+    }
+
+    /**
+     * Re-resolves the host on the refresh thread, unless that is already under way.
+     */
+    private void refreshInBackground(final String host, final CachedAddresses cached) {
+        if (!cached.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh(host, cached, cached.pinned);
+                    } catch (UnknownHostException | RuntimeException e) {
+                        // keep serving the last known good addresses, the next stale lookup tries again
+                    } finally {
+                        cached.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+            cached.refreshing.set(false);
+        }
+    }
+
+    /**
+     * @param previous the entry being re-resolved, null for a host that isn't cached. The result is only cached if
+     *                 the entry hasn't been replaced or evicted in the meantime.
+     * @param pinned   whether the host is exempt from idle eviction
+     */
+    private CachedAddresses refresh(String host, CachedAddresses previous, boolean pinned) throws UnknownHostException {
+        final long start = System.nanoTime();
+        try {
+            final InetAddress[] addresses = delegate.resolve(host);
+            if (null == addresses || addresses.length == 0) {
+                throw new UnknownHostException(host);
+            }
+
+            final long now = System.currentTimeMillis();
+            final CachedAddresses resolved = new CachedAddresses(addresses, now + timeToLive, null == previous ? now : previous.lastUsed, pinned);
+            if (null == previous) {
+                cache.put(host, resolved);
+            } else {
+                cache.replace(host, previous, resolved);
+            }
+            return resolved;
+        } catch (UnknownHostException e) {
+            resolutionFailures.incrementAndGet();
+            throw e;
+        } finally {
+            recordResolutionTime(System.nanoTime() - start);
+        }
+    }
+
+    private void recordResolutionTime(long elapsed) {
+        resolutionCount.incrementAndGet();
+        resolutionTimeNanos.addAndGet(elapsed);
+
+        long max = maxResolutionTimeNanos.get();
+        while (elapsed > max && !maxResolutionTimeNanos.compareAndSet(max, elapsed)) {
+            max = maxResolutionTimeNanos.get();
+        }
+    }
+
+    private static final class CachedAddresses {
+        private final InetAddress[] addresses;
+        private final long expiresOn;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private final boolean pinned;
+        private volatile long lastUsed;
+
+        private CachedAddresses(InetAddress[] addresses, long expiresOn, long lastUsed, boolean pinned) {
+            this.addresses = addresses;
+            this.expiresOn = expiresOn;
+            this.lastUsed = lastUsed;
+            this.pinned = pinned;
+        }
+
+        private boolean hasExpired() {
+            return expiresOn <= System.currentTimeMillis();
+        }
+    }
+}
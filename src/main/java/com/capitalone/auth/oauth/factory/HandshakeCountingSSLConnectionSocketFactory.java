@@ -0,0 +1,47 @@
+package com.capitalone.auth.oauth.factory;
+
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+
+/**
+ * An ssl socket factory that records whether each handshake resumed a cached TLS session. A resumed session
+ * was created before the handshake on this socket started, a full handshake creates a new one.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+class HandshakeCountingSSLConnectionSocketFactory extends SSLConnectionSocketFactory {
+
+    private final TlsHandshakeStatistics handshakeStatistics;
+
+    HandshakeCountingSSLConnectionSocketFactory(SSLContext sslContext, TlsHandshakeStatistics handshakeStatistics) {
+        super(sslContext);
+        this.handshakeStatistics = handshakeStatistics;
+    }
+
+    @Override
+    protected void prepareSocket(SSLSocket socket) throws IOException {
+        final long handshakeStarted = System.currentTimeMillis();
+        socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                handshakeStatistics.recordHandshake(event.getSession().getCreationTime() < handshakeStarted);
+            }
+        });
+    }
+}
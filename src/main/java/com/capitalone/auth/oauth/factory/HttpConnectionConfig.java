@@ -21,12 +21,30 @@ public class HttpConnectionConfig {
     private final Integer httpSocketTimeout;
     private final Integer maxHttpConnections;
     private final String sslProtocol;
+    private final Integer maxHttpConnectionsPerRoute;
+    private final Integer connectionTimeToLive;
+    private final Integer validateAfterInactivity;
+    private final Integer keepAliveDuration;
+    private final Integer idleConnectionTimeout;
+    private final Integer sslSessionCacheSize;
+    private final Integer sslSessionTimeout;
+    private final KeyStoreConfig keyStore;
+    private final KeyStoreConfig trustStore;
 
     private HttpConnectionConfig(final Builder builder) {
         this.httpConnectionTimeout = builder.httpConnectionTimeout;
         this.httpSocketTimeout = builder.httpSocketTimeout;
         this.maxHttpConnections = builder.maxHttpConnections;
         this.sslProtocol = builder.sslProtocol;
+        this.maxHttpConnectionsPerRoute = builder.maxHttpConnectionsPerRoute;
+        this.connectionTimeToLive = builder.connectionTimeToLive;
+        this.validateAfterInactivity = builder.validateAfterInactivity;
+        this.keepAliveDuration = builder.keepAliveDuration;
+        this.idleConnectionTimeout = builder.idleConnectionTimeout;
+        this.sslSessionCacheSize = builder.sslSessionCacheSize;
+        this.sslSessionTimeout = builder.sslSessionTimeout;
+        this.keyStore = builder.keyStore;
+        this.trustStore = builder.trustStore;
     }
 
     public static Builder newBuilder() {
@@ -49,6 +67,69 @@ public class HttpConnectionConfig {
         return sslProtocol;
     }
 
+    /**
+     * @return the maximum connections per route; when not set every connection may go to the same auth server
+     */
+    public Integer getMaxHttpConnectionsPerRoute() {
+        return maxHttpConnectionsPerRoute;
+    }
+
+    /**
+     * @return the total time to live (in milliseconds) of a pooled connection, regardless of keep-alive
+     */
+    public Integer getConnectionTimeToLive() {
+        return connectionTimeToLive;
+    }
+
+    /**
+     * @return the period of inactivity (in milliseconds) after which a pooled connection is re-validated before reuse
+     */
+    public Integer getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    /**
+     * @return the longest time (in milliseconds) a connection is kept alive, also used when the server does not say
+     */
+    public Integer getKeepAliveDuration() {
+        return keepAliveDuration;
+    }
+
+    /**
+     * @return the idle time (in milliseconds) after which the background evictor closes a pooled connection
+     */
+    public Integer getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    /**
+     * @return the number of TLS sessions kept for resumption, shared by every pool using the same ssl settings
+     */
+    public Integer getSslSessionCacheSize() {
+        return sslSessionCacheSize;
+    }
+
+    /**
+     * @return how long (in seconds) a cached TLS session may be resumed for
+     */
+    public Integer getSslSessionTimeout() {
+        return sslSessionTimeout;
+    }
+
+    /**
+     * @return the client certificate and key presented for mutual TLS, or null for none
+     */
+    public KeyStoreConfig getKeyStore() {
+        return keyStore;
+    }
+
+    /**
+     * @return the trust store to verify servers against, or null for the JVM default
+     */
+    public KeyStoreConfig getTrustStore() {
+        return trustStore;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -72,6 +153,33 @@ public class HttpConnectionConfig {
         if (sslProtocol != null ? !sslProtocol.equals(that.sslProtocol) : that.sslProtocol != null) {
             return false;
         }
+        if (maxHttpConnectionsPerRoute != null ? !maxHttpConnectionsPerRoute.equals(that.maxHttpConnectionsPerRoute) : that.maxHttpConnectionsPerRoute != null) {
+            return false;
+        }
+        if (connectionTimeToLive != null ? !connectionTimeToLive.equals(that.connectionTimeToLive) : that.connectionTimeToLive != null) {
+            return false;
+        }
+        if (validateAfterInactivity != null ? !validateAfterInactivity.equals(that.validateAfterInactivity) : that.validateAfterInactivity != null) {
+            return false;
+        }
+        if (keepAliveDuration != null ? !keepAliveDuration.equals(that.keepAliveDuration) : that.keepAliveDuration != null) {
+            return false;
+        }
+        if (idleConnectionTimeout != null ? !idleConnectionTimeout.equals(that.idleConnectionTimeout) : that.idleConnectionTimeout != null) {
+            return false;
+        }
+        if (sslSessionCacheSize != null ? !sslSessionCacheSize.equals(that.sslSessionCacheSize) : that.sslSessionCacheSize != null) {
+            return false;
+        }
+        if (sslSessionTimeout != null ? !sslSessionTimeout.equals(that.sslSessionTimeout) : that.sslSessionTimeout != null) {
+            return false;
+        }
+        if (keyStore != null ? !keyStore.equals(that.keyStore) : that.keyStore != null) {
+            return false;
+        }
+        if (trustStore != null ? !trustStore.equals(that.trustStore) : that.trustStore != null) {
+            return false;
+        }
 
         return true;
     }
@@ -82,6 +190,15 @@ public class HttpConnectionConfig {
         result = 31 * result + (httpSocketTimeout != null ? httpSocketTimeout.hashCode() : 0);
         result = 31 * result + (maxHttpConnections != null ? maxHttpConnections.hashCode() : 0);
         result = 31 * result + (sslProtocol != null ? sslProtocol.hashCode() : 0);
+        result = 31 * result + (maxHttpConnectionsPerRoute != null ? maxHttpConnectionsPerRoute.hashCode() : 0);
+        result = 31 * result + (connectionTimeToLive != null ? connectionTimeToLive.hashCode() : 0);
+        result = 31 * result + (validateAfterInactivity != null ? validateAfterInactivity.hashCode() : 0);
+        result = 31 * result + (keepAliveDuration != null ? keepAliveDuration.hashCode() : 0);
+        result = 31 * result + (idleConnectionTimeout != null ? idleConnectionTimeout.hashCode() : 0);
+        result = 31 * result + (sslSessionCacheSize != null ? sslSessionCacheSize.hashCode() : 0);
+        result = 31 * result + (sslSessionTimeout != null ? sslSessionTimeout.hashCode() : 0);
+        result = 31 * result + (keyStore != null ? keyStore.hashCode() : 0);
+        result = 31 * result + (trustStore != null ? trustStore.hashCode() : 0);
         return result;
     }
 
@@ -90,6 +207,15 @@ public class HttpConnectionConfig {
         private Integer httpSocketTimeout;
         private Integer maxHttpConnections;
         private String sslProtocol = DEFAULT_SSL_PROTOCOL;
+        private Integer maxHttpConnectionsPerRoute;
+        private Integer connectionTimeToLive;
+        private Integer validateAfterInactivity;
+        private Integer keepAliveDuration;
+        private Integer idleConnectionTimeout;
+        private Integer sslSessionCacheSize;
+        private Integer sslSessionTimeout;
+        private KeyStoreConfig keyStore;
+        private KeyStoreConfig trustStore;
 
         private Builder() {
         }
@@ -114,6 +240,51 @@ public class HttpConnectionConfig {
             return this;
         }
 
+        public Builder maxHttpConnectionsPerRoute(Integer val) {
+            maxHttpConnectionsPerRoute = val;
+            return this;
+        }
+
+        public Builder connectionTimeToLive(Integer val) {
+            connectionTimeToLive = val;
+            return this;
+        }
+
+        public Builder validateAfterInactivity(Integer val) {
+            validateAfterInactivity = val;
+            return this;
+        }
+
+        public Builder keepAliveDuration(Integer val) {
+            keepAliveDuration = val;
+            return this;
+        }
+
+        public Builder idleConnectionTimeout(Integer val) {
+            idleConnectionTimeout = val;
+            return this;
+        }
+
+        public Builder sslSessionCacheSize(Integer val) {
+            sslSessionCacheSize = val;
+            return this;
+        }
+
+        public Builder sslSessionTimeout(Integer val) {
+            sslSessionTimeout = val;
+            return this;
+        }
+
+        public Builder keyStore(KeyStoreConfig val) {
+            keyStore = val;
+            return this;
+        }
+
+        public Builder trustStore(KeyStoreConfig val) {
+            trustStore = val;
+            return this;
+        }
+
         public HttpConnectionConfig build() {
             return new HttpConnectionConfig(this);
         }
@@ -1,23 +1,23 @@
 package com.capitalone.auth.oauth.factory;
 
 import com.capitalone.auth.oauth.exceptions.LockInterruptedException;
-import com.capitalone.auth.oauth.exceptions.SSLContextException;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.ssl.SSLContexts;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
 import javax.net.ssl.SSLContext;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Copyright [2016] Capital One Services, LLC
@@ -33,65 +33,167 @@ import java.util.concurrent.locks.ReentrantLock;
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and limitations under the License.
  */
-public class HttpConnectionFactoryImpl implements HttpConnectionFactory {
+public class HttpConnectionFactoryImpl implements HttpConnectionFactory, Closeable {
 
-    private final Map<HttpConnectionConfig, HttpConnectionPool> connectionPools = new HashMap<>();
-    private final Lock lock;
+    private final ConcurrentMap<HttpConnectionConfig, FutureTask<HttpConnectionPool>> connectionPools = new ConcurrentHashMap<>();
+    private final DnsResolver dnsResolver;
+    private final SSLContextCache sslContextCache = new SSLContextCache();
+    private final TlsHandshakeStatistics handshakeStatistics = new TlsHandshakeStatistics();
 
-    public HttpConnectionFactoryImpl(Lock lock) {
-        this.lock = lock;
+    /**
+     * @param dnsResolver the resolver used by every pool, e.g. a {@link CachingDnsResolver}. Null uses the system
+     *                    resolver. The resolver is not closed with the factory.
+     */
+    public HttpConnectionFactoryImpl(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
     }
 
     public HttpConnectionFactoryImpl() {
-        this(new ReentrantLock());
+        this((DnsResolver) null);
+    }
+
+    /**
+     * @deprecated the pool registry no longer uses a lock, use {@link #HttpConnectionFactoryImpl()}
+     */
+    @Deprecated
+    public HttpConnectionFactoryImpl(Lock lock) {
+        this();
     }
 
     /**
-     * Note this can return null if it is not able to obtain a lock for your connection pool
+     * Returns the connection pool for the given configuration, creating it on first use. Each pool is built exactly
+     * once; callers asking for a pool that is still being built wait for it, callers asking for any other
+     * configuration are not blocked.
      *
      * @param connectionConfig the configuration
      * @return the connection pool
      */
-    public HttpConnectionPool getConnectionPool(HttpConnectionConfig connectionConfig) {
-        HttpConnectionPool pool = null;
-        try {
-            // use a re-entrant lock here as we can't easily track locks across the platform
-            // a re-entrant lock will attempt to acquire a lock, unless it already holds it.
-            // this should prepare the pool for reuse
-            if (lock.tryLock(60, TimeUnit.SECONDS)) {
-                if (connectionPools.containsKey(connectionConfig)) {
-                    return connectionPools.get(connectionConfig);
+    public HttpConnectionPool getConnectionPool(final HttpConnectionConfig connectionConfig) {
+        FutureTask<HttpConnectionPool> poolTask = connectionPools.get(connectionConfig);
+        if (null == poolTask) {
+            final FutureTask<HttpConnectionPool> newPoolTask = new FutureTask<>(new Callable<HttpConnectionPool>() {
+                @Override
+                public HttpConnectionPool call() {
+                    return newConnectionPool(connectionConfig);
                 }
-                pool = newConnectionPool(connectionConfig);
+            });
 
-                connectionPools.put(connectionConfig, pool);
+            poolTask = connectionPools.putIfAbsent(connectionConfig, newPoolTask);
+            if (null == poolTask) {
+                poolTask = newPoolTask;
+                poolTask.run();
             }
+        }
+
+        try {
+            return poolTask.get();
         } catch (InterruptedException e) {
-            throw new LockInterruptedException("Thread interrupted while attempting to acquire lock", e);
-        } finally {
-            lock.unlock();
+            Thread.currentThread().interrupt();
+            throw new LockInterruptedException("Thread interrupted while waiting for connection pool", e);
+        } catch (ExecutionException e) {
+            // forget the failed attempt so the next caller can try again
+            connectionPools.remove(connectionConfig, poolTask);
+
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("could not create connection pool", cause);
         }
-        return pool;
     }
 
-    private HttpConnectionPool newConnectionPool(HttpConnectionConfig connectionConfig) {
-        SSLContext sslContext;
+    /**
+     * Removes the connection pool for the given configuration from the factory and closes it.
+     *
+     * @param connectionConfig the configuration
+     * @return true if there was a pool for the configuration
+     */
+    public boolean removeConnectionPool(HttpConnectionConfig connectionConfig) throws IOException {
+        final FutureTask<HttpConnectionPool> poolTask = connectionPools.remove(connectionConfig);
+        if (null == poolTask) {
+            return false;
+        }
 
+        closeConnectionPool(poolTask);
+        return true;
+    }
+
+    /**
+     * @return resumed versus full TLS handshake counts across every pool created by this factory
+     */
+    public TlsHandshakeStatistics getHandshakeStatistics() {
+        return handshakeStatistics;
+    }
+
+    SSLContextCache getSSLContextCache() {
+        return sslContextCache;
+    }
+
+    /**
+     * Closes every connection pool handed out by this factory. Pools are shared between token services, so only
+     * close the factory once nothing is using it any more.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (HttpConnectionConfig connectionConfig : connectionPools.keySet()) {
+            final FutureTask<HttpConnectionPool> poolTask = connectionPools.remove(connectionConfig);
+            if (null != poolTask) {
+                try {
+                    closeConnectionPool(poolTask);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    int size() {
+        return connectionPools.size();
+    }
+
+    private void closeConnectionPool(FutureTask<HttpConnectionPool> poolTask) throws IOException {
+        final HttpConnectionPool pool;
         try {
-            sslContext = SSLContexts.custom()
-                    .useProtocol(connectionConfig.getSslProtocol())
-                    .build();
-        } catch (NoSuchAlgorithmException | KeyManagementException e) {
-            throw new SSLContextException(String.format("No such SSL protocol: %s", connectionConfig.getSslProtocol()), e);
+            pool = poolTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockInterruptedException("Thread interrupted while waiting for connection pool", e);
+        } catch (ExecutionException e) {
+            // the pool was never created, so there is nothing to close
+            return;
         }
+        pool.close();
+    }
+
+    private HttpConnectionPool newConnectionPool(HttpConnectionConfig connectionConfig) {
+        final SSLContext sslContext = sslContextCache.getSSLContext(connectionConfig);
         Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
                 .register("http", PlainConnectionSocketFactory.getSocketFactory())
-                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .register("https", new HandshakeCountingSSLConnectionSocketFactory(sslContext, handshakeStatistics))
                 .build();
 
-        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+        final Integer timeToLive = connectionConfig.getConnectionTimeToLive();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry,
+                null, null, dnsResolver, null != timeToLive ? timeToLive : -1, TimeUnit.MILLISECONDS);
         connectionManager.setMaxTotal(connectionConfig.getMaxHttpConnections());
 
+        // token requests from one pool mostly go to a single auth server, so by default let that route use the
+        // whole pool rather than HttpClient's default of two connections per route
+        final Integer maxPerRoute = connectionConfig.getMaxHttpConnectionsPerRoute();
+        connectionManager.setDefaultMaxPerRoute(null != maxPerRoute ? maxPerRoute : connectionConfig.getMaxHttpConnections());
+
+        if (null != connectionConfig.getValidateAfterInactivity()) {
+            connectionManager.setValidateAfterInactivity(connectionConfig.getValidateAfterInactivity());
+        }
+
         return new HttpConnectionPool(connectionManager, connectionConfig);
     }
 }
@@ -1,11 +1,33 @@
 package com.capitalone.auth.oauth.factory;
 
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionRequest;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Holds a single, long-lived http client on top of a pooled connection manager. Closing the pool closes the client,
+ * which shuts down the connection manager, every connection it holds and the idle connection evictor (if any).
+ *
  * Copyright [2016] Capital One Services, LLC
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -19,11 +41,12 @@ import org.apache.http.impl.client.HttpClients;
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and limitations under the License.
  */
-public class HttpConnectionPool {
+public class HttpConnectionPool implements Closeable {
 
     private HttpClientConnectionManager connectionManager;
     private RequestConfig requestConfig;
-
+    private CloseableHttpClient httpClient;
+    private long keepAliveDuration;
 
     public HttpConnectionPool(HttpClientConnectionManager manager, HttpConnectionConfig config) {
         this.connectionManager = manager;
@@ -31,13 +54,92 @@ public class HttpConnectionPool {
                 .setConnectTimeout(config.getHttpConnectionTimeout())
                 .setSocketTimeout(config.getHttpSocketTimeout())
                 .build();
-    }
 
-    public HttpClient getHttpClient() {
-        return HttpClients.custom()
+        // with a client certificate the default user token handler would tag each connection with its principal,
+        // and as neither token requests nor prewarm ask for one the pooled connections would never be reused
+        final HttpClientBuilder builder = HttpClients.custom()
                 .setConnectionManager(connectionManager)
                 .setDefaultRequestConfig(requestConfig)
-                .build();
+                .disableConnectionState();
+
+        if (null != config.getKeepAliveDuration()) {
+            keepAliveDuration = config.getKeepAliveDuration();
+            builder.setKeepAliveStrategy(new CappedKeepAliveStrategy(config.getKeepAliveDuration()));
+        }
+        if (null != config.getIdleConnectionTimeout()) {
+            builder.evictExpiredConnections()
+                    .evictIdleConnections(config.getIdleConnectionTimeout().longValue(), TimeUnit.MILLISECONDS);
+        }
+
+        this.httpClient = builder.build();
+    }
+
+    /**
+     * @return the connect and socket timeouts every request of this pool uses unless it sets its own
+     */
+    public RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Opens (or re-validates) a pooled connection to the host of the given uri and hands it back to the pool, so a
+     * request made shortly afterwards does not pay for DNS, TCP and TLS setup.
+     *
+     * @param uri any uri on the host to connect to
+     * @throws IOException if the connection could not be established
+     */
+    public void prewarm(URI uri) throws IOException {
+        final HttpHost host = URIUtils.extractHost(uri);
+        if (null == host) {
+            throw new IOException("no host in uri " + uri);
+        }
+
+        // normalise the route the same way the request route planner does, otherwise the warm connection would be
+        // pooled under a different route than the one the token request asks for
+        final HttpHost target = new HttpHost(host.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(host), host.getSchemeName());
+        final HttpRoute route = new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+        final HttpClientContext context = HttpClientContext.create();
+
+        final ConnectionRequest connectionRequest = connectionManager.requestConnection(route, null);
+        final HttpClientConnection connection;
+        try {
+            connection = connectionRequest.get(requestConfig.getConnectTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a connection to " + target, e);
+        } catch (ExecutionException e) {
+            throw new IOException("could not lease a connection to " + target, e);
+        }
+
+        boolean reusable = false;
+        try {
+            if (connection.isOpen() && connection.isStale()) {
+                connection.close();
+            }
+            if (!connection.isOpen()) {
+                connectionManager.connect(connection, route, requestConfig.getConnectTimeout(), context);
+                connectionManager.routeComplete(connection, route, context);
+            }
+            reusable = true;
+        } finally {
+            if (!reusable) {
+                connection.shutdown();
+            }
+            connectionManager.releaseConnection(connection, null, keepAliveDuration, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    HttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
     }
 
     @Override
@@ -66,4 +168,22 @@ public class HttpConnectionPool {
         result = 31 * result + (requestConfig != null ? requestConfig.hashCode() : 0);
         return result;
     }
+
+    /**
+     * Honours the server's Keep-Alive header, but never keeps a connection longer than the configured duration.
+     * The configured duration also applies when the server does not send one.
+     */
+    private static final class CappedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private final long maxKeepAlive;
+
+        private CappedKeepAliveStrategy(long maxKeepAlive) {
+            this.maxKeepAlive = maxKeepAlive;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            final long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 && keepAlive < maxKeepAlive ? keepAlive : maxKeepAlive;
+        }
+    }
 }
@@ -0,0 +1,124 @@
+package com.capitalone.auth.oauth.factory;
+
+/**
+ * Where to load a key store (client certificate and key, for mutual TLS) or trust store from.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class KeyStoreConfig {
+
+    private final String path;
+    private final String type;
+    private final String password;
+    private final String keyPassword;
+
+    private KeyStoreConfig(final Builder builder) {
+        this.path = builder.path;
+        this.type = builder.type;
+        this.password = builder.password;
+        this.keyPassword = builder.keyPassword;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the key store type (JKS, PKCS12...), or null for the JVM default
+     */
+    public String getType() {
+        return type;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * @return the password of the private key, or null if it is the store password
+     */
+    public String getKeyPassword() {
+        return keyPassword;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        KeyStoreConfig that = (KeyStoreConfig) o;
+
+        if (path != null ? !path.equals(that.path) : that.path != null) {
+            return false;
+        }
+        if (type != null ? !type.equals(that.type) : that.type != null) {
+            return false;
+        }
+        if (password != null ? !password.equals(that.password) : that.password != null) {
+            return false;
+        }
+        return keyPassword != null ? keyPassword.equals(that.keyPassword) : that.keyPassword == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path != null ? path.hashCode() : 0;
+        result = 31 * result + (type != null ? type.hashCode() : 0);
+        result = 31 * result + (password != null ? password.hashCode() : 0);
+        result = 31 * result + (keyPassword != null ? keyPassword.hashCode() : 0);
+        return result;
+    }
+
+    public static final class Builder {
+        private String path;
+        private String type;
+        private String password;
+        private String keyPassword;
+
+        private Builder() {
+        }
+
+        public Builder path(String val) {
+            path = val;
+            return this;
+        }
+
+        public Builder type(String val) {
+            type = val;
+            return this;
+        }
+
+        public Builder password(String val) {
+            password = val;
+            return this;
+        }
+
+        public Builder keyPassword(String val) {
+            keyPassword = val;
+            return this;
+        }
+
+        public KeyStoreConfig build() {
+            return new KeyStoreConfig(this);
+        }
+    }
+}
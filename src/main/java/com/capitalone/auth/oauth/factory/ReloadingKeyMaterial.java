@@ -0,0 +1,340 @@
+package com.capitalone.auth.oauth.factory;
+
+import com.capitalone.auth.oauth.exceptions.SSLContextException;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Key or trust material loaded from a key store file, reloaded when the file changes.
+ * <p/>
+ * The {@link javax.net.ssl.SSLContext}s built on it are long lived (connection pools hold on to them), so instead of building a new
+ * context the managers handed to it delegate to the material of the current file. The file's modification time and
+ * size are looked at no more than once per check interval, and the store is only parsed again when they changed. A
+ * file that fails to load keeps the previous material in place, e.g. while it is being rewritten.
+ * <p/>
+ * A client handshake picks an alias and then asks for its certificate chain and private key in separate calls, so
+ * the key manager tags the aliases it hands out with the generation of the material they came from. The chain and
+ * key are looked up in that same generation, which stays available for one reload, so a reload in the middle of a
+ * handshake can't pair the new certificate with the old key.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+abstract class ReloadingKeyMaterial<M> {
+
+    private final KeyStoreConfig keyStoreConfig;
+    private final File file;
+    private final long checkInterval;
+    private volatile Loaded<M> loaded;
+    private volatile Loaded<M> previous;
+    private volatile long nextCheck;
+    private int loads;
+
+    private ReloadingKeyMaterial(KeyStoreConfig keyStoreConfig, long checkInterval) {
+        this.keyStoreConfig = keyStoreConfig;
+        this.file = new File(keyStoreConfig.getPath());
+        this.checkInterval = checkInterval;
+        try {
+            this.loaded = load();
+        } catch (GeneralSecurityException | IOException e) {
+            throw new SSLContextException(String.format("Unable to load key store: %s", keyStoreConfig.getPath()), e);
+        }
+        this.nextCheck = System.currentTimeMillis() + checkInterval;
+    }
+
+    /**
+     * @return the key managers to initialise an {@link javax.net.ssl.SSLContext} with
+     */
+    static KeyManager[] keyManagers(KeyStoreConfig keyStoreConfig, long checkInterval) {
+        return new KeyManager[]{new ReloadingKeyManager(new ReloadingKeyMaterial<X509ExtendedKeyManager>(keyStoreConfig, checkInterval) {
+            @Override
+            X509ExtendedKeyManager createManager(KeyStore keyStore, KeyStoreConfig config) throws GeneralSecurityException {
+                final String keyPassword = null != config.getKeyPassword() ? config.getKeyPassword() : config.getPassword();
+                final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                factory.init(keyStore, null == keyPassword ? new char[0] : keyPassword.toCharArray());
+                for (KeyManager keyManager : factory.getKeyManagers()) {
+                    if (keyManager instanceof X509ExtendedKeyManager) {
+                        return (X509ExtendedKeyManager) keyManager;
+                    }
+                }
+                throw new GeneralSecurityException("no X509 key manager for " + config.getPath());
+            }
+        })};
+    }
+
+    /**
+     * @return the trust managers to initialise an {@link javax.net.ssl.SSLContext} with
+     */
+    static TrustManager[] trustManagers(KeyStoreConfig keyStoreConfig, long checkInterval) {
+        return new TrustManager[]{new ReloadingTrustManager(new ReloadingKeyMaterial<X509ExtendedTrustManager>(keyStoreConfig, checkInterval) {
+            @Override
+            X509ExtendedTrustManager createManager(KeyStore keyStore, KeyStoreConfig config) throws GeneralSecurityException {
+                final TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(keyStore);
+                for (TrustManager trustManager : factory.getTrustManagers()) {
+                    if (trustManager instanceof X509ExtendedTrustManager) {
+                        return (X509ExtendedTrustManager) trustManager;
+                    }
+                }
+                throw new GeneralSecurityException("no X509 trust manager for " + config.getPath());
+            }
+        })};
+    }
+
+    abstract M createManager(KeyStore keyStore, KeyStoreConfig config) throws GeneralSecurityException;
+
+    M get() {
+        return current().manager;
+    }
+
+    private Loaded<M> current() {
+        final long now = System.currentTimeMillis();
+        if (now >= nextCheck) {
+            reloadIfChanged(now);
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the manager of the given generation, or null if it has been replaced twice since
+     */
+    private M get(int generation) {
+        final Loaded<M> current = loaded;
+        if (current.generation == generation) {
+            return current.manager;
+        }
+        final Loaded<M> before = previous;
+        return null != before && before.generation == generation ? before.manager : null;
+    }
+
+    synchronized int loads() {
+        return loads;
+    }
+
+    private synchronized void reloadIfChanged(long now) {
+        if (now < nextCheck) {
+            // another thread just checked
+            return;
+        }
+        nextCheck = now + checkInterval;
+
+        final Loaded<M> current = loaded;
+        if (file.lastModified() == current.lastModified && file.length() == current.length) {
+            return;
+        }
+        try {
+            final Loaded<M> reloaded = load();
+            previous = current;
+            loaded = reloaded;
+        } catch (GeneralSecurityException | IOException e) {
+            // most likely caught the file half written, keep the current material until it loads
+        }
+    }
+
+    private synchronized Loaded<M> load() throws GeneralSecurityException, IOException {
+        // taken before reading, so a write that races the load is picked up by the next check
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        final KeyStore keyStore = KeyStore.getInstance(null != keyStoreConfig.getType() ? keyStoreConfig.getType() : KeyStore.getDefaultType());
+        try (InputStream content = new FileInputStream(file)) {
+            keyStore.load(content, null == keyStoreConfig.getPassword() ? null : keyStoreConfig.getPassword().toCharArray());
+        }
+        final M manager = createManager(keyStore, keyStoreConfig);
+        loads++;
+        return new Loaded<>(manager, loads, lastModified, length);
+    }
+
+    private static final class Loaded<M> {
+        private final M manager;
+        private final int generation;
+        private final long lastModified;
+        private final long length;
+
+        private Loaded(M manager, int generation, long lastModified, long length) {
+            this.manager = manager;
+            this.generation = generation;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    static final class ReloadingKeyManager extends X509ExtendedKeyManager {
+        private static final String GENERATION_SEPARATOR = ":";
+
+        private final ReloadingKeyMaterial<X509ExtendedKeyManager> material;
+
+        private ReloadingKeyManager(ReloadingKeyMaterial<X509ExtendedKeyManager> material) {
+            this.material = material;
+        }
+
+        ReloadingKeyMaterial<X509ExtendedKeyManager> getMaterial() {
+            return material;
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            final Loaded<X509ExtendedKeyManager> current = material.current();
+            return tag(current, current.manager.getClientAliases(keyType, issuers));
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            final Loaded<X509ExtendedKeyManager> current = material.current();
+            return tag(current, current.manager.chooseClientAlias(keyType, issuers, socket));
+        }
+
+        @Override
+        public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+            final Loaded<X509ExtendedKeyManager> current = material.current();
+            return tag(current, current.manager.chooseEngineClientAlias(keyType, issuers, engine));
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            final Loaded<X509ExtendedKeyManager> current = material.current();
+            return tag(current, current.manager.getServerAliases(keyType, issuers));
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            final Loaded<X509ExtendedKeyManager> current = material.current();
+            return tag(current, current.manager.chooseServerAlias(keyType, issuers, socket));
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            final Loaded<X509ExtendedKeyManager> current = material.current();
+            return tag(current, current.manager.chooseEngineServerAlias(keyType, issuers, engine));
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            final X509ExtendedKeyManager manager = managerFor(alias);
+            return null == manager ? null : manager.getCertificateChain(untag(alias));
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            final X509ExtendedKeyManager manager = managerFor(alias);
+            return null == manager ? null : manager.getPrivateKey(untag(alias));
+        }
+
+        private static String tag(Loaded<?> loaded, String alias) {
+            return null == alias ? null : loaded.generation + GENERATION_SEPARATOR + alias;
+        }
+
+        private static String[] tag(Loaded<?> loaded, String[] aliases) {
+            if (null == aliases) {
+                return null;
+            }
+            final String[] tagged = new String[aliases.length];
+            for (int i = 0; i < aliases.length; i++) {
+                tagged[i] = tag(loaded, aliases[i]);
+            }
+            return tagged;
+        }
+
+        /**
+         * @return the manager of the generation the alias was tagged with, the current one for untagged aliases
+         */
+        private X509ExtendedKeyManager managerFor(String alias) {
+            final int separator = null == alias ? -1 : alias.indexOf(GENERATION_SEPARATOR);
+            if (separator <= 0) {
+                return material.get();
+            }
+            try {
+                return material.get(Integer.parseInt(alias.substring(0, separator)));
+            } catch (NumberFormatException e) {
+                return material.get();
+            }
+        }
+
+        private static String untag(String alias) {
+            final int separator = null == alias ? -1 : alias.indexOf(GENERATION_SEPARATOR);
+            if (separator <= 0) {
+                return alias;
+            }
+            for (int i = 0; i < separator; i++) {
+                if (!Character.isDigit(alias.charAt(i))) {
+                    return alias;
+                }
+            }
+            return alias.substring(separator + GENERATION_SEPARATOR.length());
+        }
+    }
+
+    static final class ReloadingTrustManager extends X509ExtendedTrustManager {
+        private final ReloadingKeyMaterial<X509ExtendedTrustManager> material;
+
+        private ReloadingTrustManager(ReloadingKeyMaterial<X509ExtendedTrustManager> material) {
+            this.material = material;
+        }
+
+        ReloadingKeyMaterial<X509ExtendedTrustManager> getMaterial() {
+            return material;
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            material.get().checkClientTrusted(chain, authType, socket);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            material.get().checkServerTrusted(chain, authType, socket);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            material.get().checkClientTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            material.get().checkServerTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            material.get().checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            material.get().checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return material.get().getAcceptedIssuers();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.capitalone.auth.oauth.factory;
+
+import com.capitalone.auth.oauth.exceptions.SSLContextException;
+import org.apache.http.ssl.SSLContexts;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares one {@link SSLContext} between every connection pool with the same protocol and TLS session settings.
+ * <p/>
+ * The client-side session cache lives on the context, so pools sharing a context can resume each others TLS
+ * sessions instead of paying a full handshake on every (infrequent) token refresh.
+ * <p/>
+ * Key and trust stores (for mutual TLS) are loaded once per store and shared by every context that uses them. The
+ * contexts keep working on the loaded material, which is only reloaded when the store file changes.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+class SSLContextCache {
+
+    static final long DEFAULT_KEY_STORE_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    private final ConcurrentMap<Key, SSLContext> sslContexts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<KeyStoreConfig, KeyManager[]> keyManagers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<KeyStoreConfig, TrustManager[]> trustManagers = new ConcurrentHashMap<>();
+    private final long keyStoreCheckInterval;
+
+    SSLContextCache() {
+        this(DEFAULT_KEY_STORE_CHECK_INTERVAL);
+    }
+
+    /**
+     * @param keyStoreCheckInterval how often (in milliseconds) key and trust store files are checked for changes
+     */
+    SSLContextCache(long keyStoreCheckInterval) {
+        this.keyStoreCheckInterval = keyStoreCheckInterval;
+    }
+
+    SSLContext getSSLContext(HttpConnectionConfig connectionConfig) {
+        final Key key = new Key(connectionConfig);
+
+        SSLContext sslContext = sslContexts.get(key);
+        if (null == sslContext) {
+            // building a context twice under a race is harmless, only one of them is ever handed out
+            final SSLContext newSslContext = newSSLContext(connectionConfig);
+            sslContext = sslContexts.putIfAbsent(key, newSslContext);
+            if (null == sslContext) {
+                sslContext = newSslContext;
+            }
+        }
+        return sslContext;
+    }
+
+    int size() {
+        return sslContexts.size();
+    }
+
+    KeyManager[] getKeyManagers(KeyStoreConfig keyStoreConfig) {
+        KeyManager[] managers = keyManagers.get(keyStoreConfig);
+        if (null == managers) {
+            final KeyManager[] newManagers = ReloadingKeyMaterial.keyManagers(keyStoreConfig, keyStoreCheckInterval);
+            managers = keyManagers.putIfAbsent(keyStoreConfig, newManagers);
+            if (null == managers) {
+                managers = newManagers;
+            }
+        }
+        return managers;
+    }
+
+    TrustManager[] getTrustManagers(KeyStoreConfig trustStoreConfig) {
+        TrustManager[] managers = trustManagers.get(trustStoreConfig);
+        if (null == managers) {
+            final TrustManager[] newManagers = ReloadingKeyMaterial.trustManagers(trustStoreConfig, keyStoreCheckInterval);
+            managers = trustManagers.putIfAbsent(trustStoreConfig, newManagers);
+            if (null == managers) {
+                managers = newManagers;
+            }
+        }
+        return managers;
+    }
+
+    private SSLContext newSSLContext(HttpConnectionConfig connectionConfig) {
+        final SSLContext sslContext;
+        if (null == connectionConfig.getKeyStore() && null == connectionConfig.getTrustStore()) {
+            try {
+                sslContext = SSLContexts.custom()
+                        .useProtocol(connectionConfig.getSslProtocol())
+                        .build();
+            } catch (NoSuchAlgorithmException | KeyManagementException e) {
+                throw new SSLContextException(String.format("No such SSL protocol: %s", connectionConfig.getSslProtocol()), e);
+            }
+        } else {
+            sslContext = newMutualTLSContext(connectionConfig);
+        }
+
+        final SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (null != sessionContext) {
+            if (null != connectionConfig.getSslSessionCacheSize()) {
+                sessionContext.setSessionCacheSize(connectionConfig.getSslSessionCacheSize());
+            }
+            if (null != connectionConfig.getSslSessionTimeout()) {
+                sessionContext.setSessionTimeout(connectionConfig.getSslSessionTimeout());
+            }
+        }
+        return sslContext;
+    }
+
+    private SSLContext newMutualTLSContext(HttpConnectionConfig connectionConfig) {
+        // null managers make the context fall back to the JVM defaults
+        final KeyManager[] contextKeyManagers = null == connectionConfig.getKeyStore() ? null : getKeyManagers(connectionConfig.getKeyStore());
+        final TrustManager[] contextTrustManagers = null == connectionConfig.getTrustStore() ? null : getTrustManagers(connectionConfig.getTrustStore());
+
+        final SSLContext sslContext;
+        try {
+            sslContext = SSLContext.getInstance(connectionConfig.getSslProtocol());
+        } catch (NoSuchAlgorithmException e) {
+            throw new SSLContextException(String.format("No such SSL protocol: %s", connectionConfig.getSslProtocol()), e);
+        }
+        try {
+            sslContext.init(contextKeyManagers, contextTrustManagers, null);
+        } catch (KeyManagementException e) {
+            throw new SSLContextException("Unable to initialise SSL context with the configured key material", e);
+        }
+        return sslContext;
+    }
+
+    private static final class Key {
+        private final String sslProtocol;
+        private final Integer sslSessionCacheSize;
+        private final Integer sslSessionTimeout;
+        private final KeyStoreConfig keyStore;
+        private final KeyStoreConfig trustStore;
+
+        private Key(HttpConnectionConfig connectionConfig) {
+            this.sslProtocol = connectionConfig.getSslProtocol();
+            this.sslSessionCacheSize = connectionConfig.getSslSessionCacheSize();
+            this.sslSessionTimeout = connectionConfig.getSslSessionTimeout();
+            this.keyStore = connectionConfig.getKeyStore();
+            this.trustStore = connectionConfig.getTrustStore();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            Key that = (Key) o;
+
+            if (sslProtocol != null ? !sslProtocol.equals(that.sslProtocol) : that.sslProtocol != null) {
+                return false;
+            }
+            if (sslSessionCacheSize != null ? !sslSessionCacheSize.equals(that.sslSessionCacheSize) : that.sslSessionCacheSize != null) {
+                return false;
+            }
+            if (sslSessionTimeout != null ? !sslSessionTimeout.equals(that.sslSessionTimeout) : that.sslSessionTimeout != null) {
+                return false;
+            }
+            if (keyStore != null ? !keyStore.equals(that.keyStore) : that.keyStore != null) {
+                return false;
+            }
+            return trustStore != null ? trustStore.equals(that.trustStore) : that.trustStore == null;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = sslProtocol != null ? sslProtocol.hashCode() : 0;
+            result = 31 * result + (sslSessionCacheSize != null ? sslSessionCacheSize.hashCode() : 0);
+            result = 31 * result + (sslSessionTimeout != null ? sslSessionTimeout.hashCode() : 0);
+            result = 31 * result + (keyStore != null ? keyStore.hashCode() : 0);
+            result = 31 * result + (trustStore != null ? trustStore.hashCode() : 0);
+            return result;
+        }
+    }
+}
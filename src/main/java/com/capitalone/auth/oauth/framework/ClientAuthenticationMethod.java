@@ -0,0 +1,34 @@
+package com.capitalone.auth.oauth.framework;
+
+/**
+ * How the client authenticates itself to the token endpoint (RFC 6749 section 2.3, RFC 7523).
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public enum ClientAuthenticationMethod {
+    /**
+     * client_id and client_secret are sent in the form body.
+     */
+    CLIENT_SECRET_POST,
+
+    /**
+     * client_id and client_secret are sent in an HTTP Basic Authorization header.
+     */
+    CLIENT_SECRET_BASIC,
+
+    /**
+     * The client sends a JWT signed with its private key (RFC 7523 section 2.2), no client secret is used.
+     */
+    PRIVATE_KEY_JWT
+}
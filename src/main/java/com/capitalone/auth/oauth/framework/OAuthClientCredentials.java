@@ -1,6 +1,11 @@
 package com.capitalone.auth.oauth.framework;
 
 import java.net.URI;
+import java.security.PrivateKey;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Copyright [2016] Capital One Services, LLC
@@ -24,6 +29,14 @@ public class OAuthClientCredentials implements Cloneable {
     private URI authServerURI;
     private String clientURIRegex;
     private String clientSecretEncryptionKey;
+    private Set<String> scopes;
+    private Long expirySkew;
+    private ClientAuthenticationMethod clientAuthenticationMethod;
+    private PrivateKey clientAssertionSigningKey;
+    private String clientAssertionKeyId;
+    private Long clientAssertionLifetime;
+    private boolean clientAssertionReuse;
+    private volatile OAuthClientCredentials unscoped;
 
     private OAuthClientCredentials(Builder builder) {
         grantType = builder.grantType;
@@ -32,6 +45,13 @@ public class OAuthClientCredentials implements Cloneable {
         authServerURI = builder.authServerURI;
         clientURIRegex = builder.clientURIRegex;
         clientSecretEncryptionKey = builder.clientSecretEncryptionKey;
+        scopes = builder.scopes;
+        expirySkew = builder.expirySkew;
+        clientAuthenticationMethod = builder.clientAuthenticationMethod;
+        clientAssertionSigningKey = builder.clientAssertionSigningKey;
+        clientAssertionKeyId = builder.clientAssertionKeyId;
+        clientAssertionLifetime = builder.clientAssertionLifetime;
+        clientAssertionReuse = builder.clientAssertionReuse;
     }
 
     public static Builder newBuilder() {
@@ -54,6 +74,88 @@ public class OAuthClientCredentials implements Cloneable {
         return authServerURI;
     }
 
+    /**
+     * @return the scopes to request, never null. Empty means no scope parameter is sent.
+     */
+    public Set<String> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * @return how many seconds before the server side expiry tokens for these credentials are treated as expired,
+     * or null for the default
+     */
+    public Long getExpirySkew() {
+        return expirySkew;
+    }
+
+    /**
+     * @return how the client authenticates to the token endpoint, {@link ClientAuthenticationMethod#CLIENT_SECRET_POST}
+     * unless configured otherwise
+     */
+    public ClientAuthenticationMethod getClientAuthenticationMethod() {
+        return clientAuthenticationMethod;
+    }
+
+    /**
+     * @return the RSA or EC key client assertions are signed with, for {@link ClientAuthenticationMethod#PRIVATE_KEY_JWT}
+     */
+    public PrivateKey getClientAssertionSigningKey() {
+        return clientAssertionSigningKey;
+    }
+
+    /**
+     * @return the key id (kid header) of the signing key, or null
+     */
+    public String getClientAssertionKeyId() {
+        return clientAssertionKeyId;
+    }
+
+    /**
+     * @return how many seconds a signed client assertion is valid (and reused) for, or null for the default
+     */
+    public Long getClientAssertionLifetime() {
+        return clientAssertionLifetime;
+    }
+
+    /**
+     * @return true (the default) if a signed client assertion, and with it its jti, is reused for most of its
+     * lifetime, false if a fresh one is signed for every token request
+     */
+    public boolean isClientAssertionReused() {
+        return clientAssertionReuse;
+    }
+
+    /**
+     * @param requestedScopes the scopes to request instead of the configured ones
+     * @return a copy of these credentials requesting the given scopes
+     */
+    public OAuthClientCredentials withScopes(Collection<String> requestedScopes) {
+        final OAuthClientCredentials clone = clone();
+        clone.scopes = toScopeSet(requestedScopes);
+        clone.unscoped = withoutScopes();
+        return clone;
+    }
+
+    /**
+     * @return these credentials without any scopes, to key whatever doesn't depend on the scopes (the client secret,
+     * signed client assertions...) once per client rather than once per scope set. Scoped variants share the
+     * instance of the credentials they were made from.
+     */
+    public OAuthClientCredentials withoutScopes() {
+        OAuthClientCredentials result = unscoped;
+        if (null == result) {
+            if (scopes.isEmpty()) {
+                result = this;
+            } else {
+                result = clone();
+                result.scopes = Collections.<String>emptySet();
+            }
+            unscoped = result;
+        }
+        return result;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -78,8 +180,35 @@ public class OAuthClientCredentials implements Cloneable {
             return false;
         }
 
-        return authServerURI != null ? authServerURI.equals(that.authServerURI) : that.authServerURI == null;
+        if (authServerURI != null ? !authServerURI.equals(that.authServerURI) : that.authServerURI != null) {
+            return false;
+        }
+
+        if (expirySkew != null ? !expirySkew.equals(that.expirySkew) : that.expirySkew != null) {
+            return false;
+        }
+
+        if (clientAuthenticationMethod != that.clientAuthenticationMethod) {
+            return false;
+        }
+
+        if (clientAssertionSigningKey != null ? !clientAssertionSigningKey.equals(that.clientAssertionSigningKey) : that.clientAssertionSigningKey != null) {
+            return false;
+        }
 
+        if (clientAssertionKeyId != null ? !clientAssertionKeyId.equals(that.clientAssertionKeyId) : that.clientAssertionKeyId != null) {
+            return false;
+        }
+
+        if (clientAssertionLifetime != null ? !clientAssertionLifetime.equals(that.clientAssertionLifetime) : that.clientAssertionLifetime != null) {
+            return false;
+        }
+
+        if (clientAssertionReuse != that.clientAssertionReuse) {
+            return false;
+        }
+
+        return scopes.equals(that.scopes);
     }
 
     @Override
@@ -88,6 +217,13 @@ public class OAuthClientCredentials implements Cloneable {
         result = 31 * result + (clientId != null ? clientId.hashCode() : 0);
         result = 31 * result + (clientSecret != null ? clientSecret.hashCode() : 0);
         result = 31 * result + (authServerURI != null ? authServerURI.hashCode() : 0);
+        result = 31 * result + scopes.hashCode();
+        result = 31 * result + (expirySkew != null ? expirySkew.hashCode() : 0);
+        result = 31 * result + clientAuthenticationMethod.hashCode();
+        result = 31 * result + (clientAssertionSigningKey != null ? clientAssertionSigningKey.hashCode() : 0);
+        result = 31 * result + (clientAssertionKeyId != null ? clientAssertionKeyId.hashCode() : 0);
+        result = 31 * result + (clientAssertionLifetime != null ? clientAssertionLifetime.hashCode() : 0);
+        result = 31 * result + (clientAssertionReuse ? 1 : 0);
         return result;
     }
 
@@ -100,6 +236,13 @@ public class OAuthClientCredentials implements Cloneable {
                 .clientSecret(clientSecret)
                 .authServerURI(authServerURI)
                 .clientSecretEncryptionKey(clientSecretEncryptionKey)
+                .scopes(scopes)
+                .expirySkew(expirySkew)
+                .clientAuthenticationMethod(clientAuthenticationMethod)
+                .clientAssertionSigningKey(clientAssertionSigningKey)
+                .clientAssertionKeyId(clientAssertionKeyId)
+                .clientAssertionLifetime(clientAssertionLifetime)
+                .clientAssertionReuse(clientAssertionReuse)
                 .build();
     }
 
@@ -111,6 +254,14 @@ public class OAuthClientCredentials implements Cloneable {
         return clientSecretEncryptionKey;
     }
 
+    private static Set<String> toScopeSet(Collection<String> scopes) {
+        if (null == scopes || scopes.isEmpty()) {
+            return Collections.emptySet();
+        }
+        // sorted so equal scope sets always render the same scope parameter
+        return Collections.unmodifiableSet(new TreeSet<>(scopes));
+    }
+
     public static final class Builder {
         private String grantType;
         private String clientId;
@@ -118,6 +269,13 @@ public class OAuthClientCredentials implements Cloneable {
         private URI authServerURI;
         private String clientURIRegex;
         private String clientSecretEncryptionKey;
+        private Set<String> scopes = Collections.emptySet();
+        private Long expirySkew;
+        private ClientAuthenticationMethod clientAuthenticationMethod = ClientAuthenticationMethod.CLIENT_SECRET_POST;
+        private PrivateKey clientAssertionSigningKey;
+        private String clientAssertionKeyId;
+        private Long clientAssertionLifetime;
+        private boolean clientAssertionReuse = true;
 
         private Builder() {
         }
@@ -152,6 +310,44 @@ public class OAuthClientCredentials implements Cloneable {
             return this;
         }
 
+        public Builder scopes(Collection<String> val) {
+            scopes = toScopeSet(val);
+            return this;
+        }
+
+        public Builder expirySkew(Long val) {
+            expirySkew = val;
+            return this;
+        }
+
+        public Builder clientAuthenticationMethod(ClientAuthenticationMethod val) {
+            clientAuthenticationMethod = null != val ? val : ClientAuthenticationMethod.CLIENT_SECRET_POST;
+            return this;
+        }
+
+        public Builder clientAssertionSigningKey(PrivateKey val) {
+            clientAssertionSigningKey = val;
+            return this;
+        }
+
+        public Builder clientAssertionKeyId(String val) {
+            clientAssertionKeyId = val;
+            return this;
+        }
+
+        public Builder clientAssertionLifetime(Long val) {
+            clientAssertionLifetime = val;
+            return this;
+        }
+
+        /**
+         * @param val false to sign a fresh client assertion (with a new jti) for every token request, for auth servers
+         *            that reject a jti they have seen before
+         */
+        public Builder clientAssertionReuse(boolean val) {
+            clientAssertionReuse = val;
+            return this;
+        }
 
         public OAuthClientCredentials build() {
             return new OAuthClientCredentials(this);
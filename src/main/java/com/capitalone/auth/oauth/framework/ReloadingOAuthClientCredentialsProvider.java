@@ -0,0 +1,285 @@
+package com.capitalone.auth.oauth.framework;
+
+import com.capitalone.auth.ClientCredentialsProvider;
+import com.capitalone.auth.oauth.factory.DaemonThreadFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A {@link ClientCredentialsProvider} that reads its credentials from a JSON file and reloads them whenever the
+ * file changes.
+ * <p/>
+ * The file holds an array of objects with the {@link OAuthClientCredentials} fields ({@code clientId},
+ * {@code clientSecret}, {@code clientSecretEncryptionKey}, {@code clientURIRegex}, {@code grantType},
+ * {@code authServerURI}, and optionally {@code scopes}, {@code expirySkew} and {@code clientAuthenticationMethod}).
+ * Every load builds a new immutable credential set with pre-compiled URI patterns which is swapped in at once, so
+ * lookups never block and never see a half loaded file. A file that fails to load leaves the current credentials in
+ * place.
+ * <p/>
+ * {@link Listener}s are told which credentials a reload added and which it removed or changed (credentials are
+ * compared by value), so e.g. the {@code OAuthTokenService} can drop their tokens and keep the rest, and resolve the
+ * new auth servers before their first token request.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class ReloadingOAuthClientCredentialsProvider implements ClientCredentialsProvider<OAuthClientCredentials>, Closeable {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Path file;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final WatchService watchService;
+    private final ExecutorService watcher;
+    private volatile CredentialSet credentialSet;
+
+    /**
+     * Loads the credentials from the given file and starts watching it for changes.
+     *
+     * @throws IOException if the file can not be read or parsed
+     */
+    public ReloadingOAuthClientCredentialsProvider(Path file) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.credentialSet = load();
+
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watcher = Executors.newSingleThreadExecutor(new DaemonThreadFactory("oauth-credentials-watcher"));
+        this.watcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        });
+    }
+
+    @Override
+    public OAuthClientCredentials getClientCredentialsFor(URI uri) throws ClientCredentialsNotFoundException {
+        final CredentialSet current = credentialSet;
+        final String uriString = uri.toString();
+        for (int i = 0; i < current.patterns.length; i++) {
+            if (current.patterns[i].matcher(uriString).matches()) {
+                return current.clientCredentials.get(i);
+            }
+        }
+
+        throw new ClientCredentialsNotFoundException("client credentials not found");
+    }
+
+    /**
+     * @return the credentials currently in use, in file order
+     */
+    public List<OAuthClientCredentials> getClientCredentials() {
+        return credentialSet.clientCredentials;
+    }
+
+    /**
+     * @return true if the credentials (compared by value) are currently in use, in constant time
+     */
+    public boolean contains(OAuthClientCredentials clientCredentials) {
+        return credentialSet.clientCredentialSet.contains(clientCredentials);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reloads the file now and swaps in its credentials. Reloads run one at a time, from reading the file to telling
+     * the listeners, so a slow read can't swap in an older file over a newer one or report the wrong removals.
+     *
+     * @throws IOException if the file can not be read or parsed, the current credentials are kept
+     */
+    public synchronized void reload() throws IOException {
+        final CredentialSet newCredentialSet = load();
+        final CredentialSet oldCredentialSet = credentialSet;
+        credentialSet = newCredentialSet;
+
+        final Set<OAuthClientCredentials> removed = new LinkedHashSet<>(oldCredentialSet.clientCredentials);
+        removed.removeAll(newCredentialSet.clientCredentials);
+        if (!removed.isEmpty()) {
+            final Set<OAuthClientCredentials> unmodifiableRemoved = Collections.unmodifiableSet(removed);
+            for (Listener listener : listeners) {
+                listener.credentialsRemoved(unmodifiableRemoved);
+            }
+        }
+
+        final Set<OAuthClientCredentials> added = new LinkedHashSet<>(newCredentialSet.clientCredentials);
+        added.removeAll(oldCredentialSet.clientCredentials);
+        if (!added.isEmpty()) {
+            final Set<OAuthClientCredentials> unmodifiableAdded = Collections.unmodifiableSet(added);
+            for (Listener listener : listeners) {
+                listener.credentialsAdded(unmodifiableAdded);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the file. The last loaded credentials stay available.
+     */
+    @Override
+    public void close() throws IOException {
+        watcher.shutdownNow();
+        watchService.close();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (file.getFileName().equals(event.context()) || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    try {
+                        reload();
+                    } catch (IOException e) {
+                        // most likely caught the file half written, the write that completes it triggers another event
+                    }
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private CredentialSet load() throws IOException {
+        final JsonNode root;
+        try (InputStream content = Files.newInputStream(file)) {
+            root = objectMapper.readTree(content);
+        }
+        if (null == root || !root.isArray()) {
+            throw new IOException(file + " does not hold a json array of client credentials");
+        }
+
+        final List<OAuthClientCredentials> clientCredentials = new ArrayList<>();
+        for (JsonNode node : root) {
+            clientCredentials.add(toClientCredentials(node));
+        }
+        try {
+            return new CredentialSet(clientCredentials);
+        } catch (PatternSyntaxException e) {
+            throw new IOException("invalid clientURIRegex in " + file, e);
+        }
+    }
+
+    private OAuthClientCredentials toClientCredentials(JsonNode node) throws IOException {
+        final OAuthClientCredentials.Builder builder = OAuthClientCredentials.newBuilder()
+                .clientId(text(node, "clientId"))
+                .clientSecret(text(node, "clientSecret"))
+                .clientSecretEncryptionKey(text(node, "clientSecretEncryptionKey"))
+                .clientURIRegex(text(node, "clientURIRegex"))
+                .grantType(text(node, "grantType"));
+
+        final String authServerURI = text(node, "authServerURI");
+        if (null != authServerURI) {
+            try {
+                builder.authServerURI(new URI(authServerURI));
+            } catch (URISyntaxException e) {
+                throw new IOException("invalid authServerURI " + authServerURI + " in " + file, e);
+            }
+        }
+
+        final JsonNode scopes = node.get("scopes");
+        if (null != scopes && scopes.isArray()) {
+            final List<String> scopeList = new ArrayList<>();
+            for (JsonNode scope : scopes) {
+                scopeList.add(scope.asText());
+            }
+            builder.scopes(scopeList);
+        }
+
+        final JsonNode expirySkew = node.get("expirySkew");
+        if (null != expirySkew && expirySkew.canConvertToLong()) {
+            builder.expirySkew(expirySkew.asLong());
+        }
+
+        final String clientAuthenticationMethod = text(node, "clientAuthenticationMethod");
+        if (null != clientAuthenticationMethod) {
+            try {
+                builder.clientAuthenticationMethod(ClientAuthenticationMethod.valueOf(clientAuthenticationMethod));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("invalid clientAuthenticationMethod " + clientAuthenticationMethod + " in " + file, e);
+            }
+        }
+
+        final OAuthClientCredentials clientCredentials = builder.build();
+        if (null == clientCredentials.getClientURIRegex()) {
+            throw new IOException("client credentials " + clientCredentials.getClientId() + " in " + file + " have no clientURIRegex");
+        }
+        return clientCredentials;
+    }
+
+    private static String text(JsonNode node, String field) {
+        final JsonNode value = node.get(field);
+        return null == value || value.isNull() ? null : value.asText();
+    }
+
+    /**
+     * Told about the credentials that a reload removed or changed, then about the ones it added or changed.
+     */
+    public interface Listener {
+        void credentialsRemoved(Set<OAuthClientCredentials> removed);
+
+        void credentialsAdded(Set<OAuthClientCredentials> added);
+    }
+
+    private static final class CredentialSet {
+        private final List<OAuthClientCredentials> clientCredentials;
+        private final Set<OAuthClientCredentials> clientCredentialSet;
+        private final Pattern[] patterns;
+
+        private CredentialSet(List<OAuthClientCredentials> clientCredentials) {
+            this.clientCredentials = Collections.unmodifiableList(new ArrayList<>(clientCredentials));
+            this.clientCredentialSet = new HashSet<>(clientCredentials);
+            this.patterns = new Pattern[clientCredentials.size()];
+            for (int i = 0; i < patterns.length; i++) {
+                patterns[i] = Pattern.compile(clientCredentials.get(i).getClientURIRegex());
+            }
+        }
+    }
+}
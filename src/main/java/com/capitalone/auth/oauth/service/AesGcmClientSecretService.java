@@ -0,0 +1,140 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
+import org.apache.commons.codec.binary.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link ClientSecretService} for client secrets encrypted with AES-GCM.
+ * <p/>
+ * The {@code clientSecretEncryptionKey} of the credentials is the base64 encoded AES key (128, 192 or 256 bit) and
+ * the {@code clientSecret} is the base64 encoding of the 12 byte IV followed by the ciphertext and the 128 bit
+ * authentication tag, as produced by {@link #encrypt(String, String)}. Credentials without an encryption key are
+ * taken to carry the secret in plain text.
+ * <p/>
+ * Decoded keys are cached and {@link Cipher}s are pooled by each service, so a decryption only pays for the
+ * cipher initialisation and the decryption itself. Nothing is kept per thread, so a discarded service (or a
+ * redeployed application) leaves no ciphers behind in pooled threads.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class AesGcmClientSecretService implements ClientSecretService {
+
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    static final int IV_LENGTH = 12;
+    static final int TAG_LENGTH_BITS = 128;
+
+    private static final String ALGORITHM = "AES";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ConcurrentMap<String, SecretKeySpec> keys = new ConcurrentHashMap<>();
+    // grows to the number of threads decrypting at once
+    private final Queue<Cipher> ciphers = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public String obtainClientSecret(OAuthClientCredentials clientCredentials) throws ClientSecretException {
+        final String encryptionKey = clientCredentials.getClientSecretEncryptionKey();
+        if (null == encryptionKey) {
+            return clientCredentials.getClientSecret();
+        }
+        if (null == clientCredentials.getClientSecret()) {
+            throw new ClientSecretException("no client secret for " + clientCredentials.getClientId());
+        }
+
+        try {
+            return decrypt(keyFor(encryptionKey), clientCredentials.getClientSecret());
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new ClientSecretException("unable to decrypt client secret for " + clientCredentials.getClientId(), e);
+        }
+    }
+
+    /**
+     * Encrypts a client secret into the format this service decrypts.
+     *
+     * @param encryptionKey the base64 encoded AES key
+     * @param clientSecret  the plain text secret
+     * @return the base64 encoded IV, ciphertext and tag
+     */
+    public static String encrypt(String encryptionKey, String clientSecret) throws GeneralSecurityException {
+        final byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+
+        final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, decodeKey(encryptionKey), new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+        final byte[] cipherText = cipher.doFinal(clientSecret.getBytes(UTF_8));
+
+        final byte[] encrypted = new byte[IV_LENGTH + cipherText.length];
+        System.arraycopy(iv, 0, encrypted, 0, IV_LENGTH);
+        System.arraycopy(cipherText, 0, encrypted, IV_LENGTH, cipherText.length);
+        return Base64.encodeBase64String(encrypted);
+    }
+
+    int cachedKeys() {
+        return keys.size();
+    }
+
+    int pooledCiphers() {
+        return ciphers.size();
+    }
+
+    private String decrypt(SecretKeySpec key, String encryptedClientSecret) throws GeneralSecurityException {
+        final byte[] encrypted = Base64.decodeBase64(encryptedClientSecret);
+        if (encrypted.length < IV_LENGTH + TAG_LENGTH_BITS / 8) {
+            throw new GeneralSecurityException("encrypted client secret is too short");
+        }
+
+        Cipher cipher = ciphers.poll();
+        if (null == cipher) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+        }
+        // init resets the cipher, so one that failed half way is fine to reuse
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, encrypted, 0, IV_LENGTH));
+        try {
+            return new String(cipher.doFinal(encrypted, IV_LENGTH, encrypted.length - IV_LENGTH), UTF_8);
+        } finally {
+            ciphers.offer(cipher);
+        }
+    }
+
+    private SecretKeySpec keyFor(String encryptionKey) throws GeneralSecurityException {
+        SecretKeySpec key = keys.get(encryptionKey);
+        if (null == key) {
+            key = decodeKey(encryptionKey);
+            final SecretKeySpec existing = keys.putIfAbsent(encryptionKey, key);
+            if (null != existing) {
+                key = existing;
+            }
+        }
+        return key;
+    }
+
+    private static SecretKeySpec decodeKey(String encryptionKey) throws GeneralSecurityException {
+        final byte[] key = Base64.decodeBase64(encryptionKey);
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new GeneralSecurityException("client secret encryption key must be 128, 192 or 256 bits");
+        }
+        return new SecretKeySpec(key, ALGORITHM);
+    }
+}
@@ -0,0 +1,80 @@
+package com.capitalone.auth.oauth.service;
+
+import java.net.URI;
+
+/**
+ * A snapshot of the refresh bulkhead of one auth server, see
+ * {@link OAuthTokenService.Builder#bulkheadThreads(int)}.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class BulkheadStatistics {
+
+    private final URI authServerURI;
+    private final int queueDepth;
+    private final int activeRefreshes;
+    private final long completedRefreshes;
+    private final long rejectedRefreshes;
+
+    BulkheadStatistics(URI authServerURI, int queueDepth, int activeRefreshes, long completedRefreshes, long rejectedRefreshes) {
+        this.authServerURI = authServerURI;
+        this.queueDepth = queueDepth;
+        this.activeRefreshes = activeRefreshes;
+        this.completedRefreshes = completedRefreshes;
+        this.rejectedRefreshes = rejectedRefreshes;
+    }
+
+    public URI getAuthServerURI() {
+        return authServerURI;
+    }
+
+    /**
+     * @return the number of refreshes waiting for a thread
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return the number of refreshes running (approximate)
+     */
+    public int getActiveRefreshes() {
+        return activeRefreshes;
+    }
+
+    /**
+     * @return the number of refreshes that have finished (approximate)
+     */
+    public long getCompletedRefreshes() {
+        return completedRefreshes;
+    }
+
+    /**
+     * @return the number of refreshes dropped because the queue was full
+     */
+    public long getRejectedRefreshes() {
+        return rejectedRefreshes;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkheadStatistics{" +
+                "authServerURI=" + authServerURI +
+                ", queueDepth=" + queueDepth +
+                ", activeRefreshes=" + activeRefreshes +
+                ", completedRefreshes=" + completedRefreshes +
+                ", rejectedRefreshes=" + rejectedRefreshes +
+                '}';
+    }
+}
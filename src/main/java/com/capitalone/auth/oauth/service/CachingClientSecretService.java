@@ -0,0 +1,342 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.factory.DaemonThreadFactory;
+import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link ClientSecretService} decorator that caches the secrets of another (typically slow or rate limited)
+ * secret service.
+ * <p/>
+ * Concurrent requests for a secret that is not cached share a single load. A cached secret that is close to the
+ * end of its time to live is reloaded in the background while the cached one keeps being served, so secret
+ * retrieval normally never sits on the token refresh path. Optionally, evicted secrets are wiped from memory (the
+ * Strings handed out to callers can not be).
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class CachingClientSecretService implements ClientSecretService, Closeable {
+
+    private final ClientSecretService delegate;
+    private final long defaultTimeToLive;
+    private final Map<OAuthClientCredentials, Long> timeToLives;
+    private final long refreshAhead;
+    private final boolean wipeEvictedSecrets;
+    private final TokenClock clock;
+    private final ConcurrentMap<OAuthClientCredentials, CachedSecret> secrets = new ConcurrentHashMap<>();
+    private final ExecutorService refresher;
+
+    private CachingClientSecretService(Builder builder) {
+        this.delegate = builder.delegate;
+        this.defaultTimeToLive = builder.defaultTimeToLive;
+        this.timeToLives = new HashMap<>(builder.timeToLives);
+        this.refreshAhead = builder.refreshAhead;
+        this.wipeEvictedSecrets = builder.wipeEvictedSecrets;
+        this.clock = builder.clock;
+        this.refresher = Executors.newSingleThreadExecutor(new DaemonThreadFactory("oauth-client-secret-refresh"));
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    @Override
+    public String obtainClientSecret(OAuthClientCredentials clientCredentials) throws ClientSecretException {
+        // the secret doesn't depend on the scopes, so every scope set shares one entry
+        final OAuthClientCredentials key = clientCredentials.withoutScopes();
+        while (true) {
+            CachedSecret cachedSecret = secrets.get(key);
+            final long now = clock.currentTimeMillis();
+
+            if (null == cachedSecret || cachedSecret.hasExpired(now)) {
+                cachedSecret = load(key, clientCredentials, cachedSecret);
+                if (null == cachedSecret) {
+                    // someone else replaced or evicted the entry in the meantime, look again
+                    continue;
+                }
+            } else if (cachedSecret.isDueForRefresh(now)) {
+                refreshInBackground(key, clientCredentials, cachedSecret);
+            }
+
+            final String secret = cachedSecret.getSecret(clientCredentials);
+            if (null != secret) {
+                return secret;
+            }
+            // the entry was wiped while we were reading it, look again
+        }
+    }
+
+    /**
+     * Drops the cached secret for the given credentials (whatever their scopes), e.g. after the auth server rejected
+     * it.
+     */
+    public void invalidate(OAuthClientCredentials clientCredentials) {
+        final CachedSecret cachedSecret = secrets.remove(clientCredentials.withoutScopes());
+        if (null != cachedSecret) {
+            evict(cachedSecret);
+        }
+    }
+
+    /**
+     * Stops the background refresh and drops (and wipes, if enabled) every cached secret.
+     */
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+        for (OAuthClientCredentials clientCredentials : secrets.keySet()) {
+            invalidate(clientCredentials);
+        }
+    }
+
+    int size() {
+        return secrets.size();
+    }
+
+    /**
+     * Installs a new entry in place of the stale (or missing) one and loads it on the calling thread.
+     *
+     * @param key               the credentials without scopes the entry is cached under
+     * @param clientCredentials the credentials the secret is loaded for
+     * @return the loaded entry, or null if another thread changed the entry first
+     */
+    private CachedSecret load(OAuthClientCredentials key, OAuthClientCredentials clientCredentials, CachedSecret staleSecret) throws ClientSecretException {
+        final CachedSecret newSecret = new CachedSecret(clientCredentials);
+        final boolean installed = null == staleSecret
+                ? null == secrets.putIfAbsent(key, newSecret)
+                : secrets.replace(key, staleSecret, newSecret);
+
+        if (!installed) {
+            final CachedSecret current = secrets.get(key);
+            if (null == current || current.hasExpired(clock.currentTimeMillis())) {
+                return null;
+            }
+            current.await(clientCredentials);
+            return current;
+        }
+
+        newSecret.load();
+        try {
+            newSecret.await(clientCredentials);
+        } catch (ClientSecretException e) {
+            // don't cache failures, the next caller tries again
+            secrets.remove(key, newSecret);
+            throw e;
+        }
+
+        if (null != staleSecret) {
+            evict(staleSecret);
+        }
+        return newSecret;
+    }
+
+    private void refreshInBackground(final OAuthClientCredentials key, final OAuthClientCredentials clientCredentials, final CachedSecret currentSecret) {
+        if (!currentSecret.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final CachedSecret newSecret = new CachedSecret(clientCredentials);
+                    newSecret.load();
+                    try {
+                        newSecret.await(clientCredentials);
+                    } catch (ClientSecretException e) {
+                        // keep serving the current secret, it is reloaded inline once it expires
+                        currentSecret.refreshing.set(false);
+                        return;
+                    }
+
+                    if (secrets.replace(key, currentSecret, newSecret)) {
+                        evict(currentSecret);
+                    } else {
+                        evict(newSecret);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing down
+            currentSecret.refreshing.set(false);
+        }
+    }
+
+    private void evict(CachedSecret cachedSecret) {
+        if (wipeEvictedSecrets) {
+            cachedSecret.wipe();
+        }
+    }
+
+    private long timeToLiveFor(OAuthClientCredentials clientCredentials) {
+        final Long timeToLive = timeToLives.get(clientCredentials.withoutScopes());
+        return null == timeToLive ? defaultTimeToLive : timeToLive;
+    }
+
+    private final class CachedSecret {
+        private final FutureTask<char[]> loader;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private final long timeToLive;
+        private volatile long loadedAt = -1;
+        private boolean wiped;
+
+        private CachedSecret(final OAuthClientCredentials clientCredentials) {
+            this.timeToLive = timeToLiveFor(clientCredentials);
+            this.loader = new FutureTask<>(new Callable<char[]>() {
+                @Override
+                public char[] call() throws ClientSecretException {
+                    final String secret = delegate.obtainClientSecret(clientCredentials);
+                    if (null == secret) {
+                        throw new ClientSecretException("no client secret for " + clientCredentials.getClientId());
+                    }
+                    loadedAt = clock.currentTimeMillis();
+                    return secret.toCharArray();
+                }
+            });
+        }
+
+        private void load() {
+            loader.run();
+        }
+
+        private void await(OAuthClientCredentials clientCredentials) throws ClientSecretException {
+            try {
+                loader.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClientSecretException("interrupted while loading client secret for " + clientCredentials.getClientId(), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ClientSecretException) {
+                    throw (ClientSecretException) e.getCause();
+                }
+                throw new ClientSecretException("error loading client secret for " + clientCredentials.getClientId(), e.getCause());
+            }
+        }
+
+        /**
+         * @return the secret, or null if the entry was wiped
+         */
+        private String getSecret(OAuthClientCredentials clientCredentials) throws ClientSecretException {
+            await(clientCredentials);
+            synchronized (this) {
+                if (wiped) {
+                    return null;
+                }
+                try {
+                    return new String(loader.get());
+                } catch (InterruptedException | ExecutionException e) {
+                    // unreachable, the load has completed successfully above
+                    throw new ClientSecretException("error loading client secret for " + clientCredentials.getClientId(), e);
+                }
+            }
+        }
+
+        private boolean hasExpired(long now) {
+            final long loaded = loadedAt;
+            return loaded >= 0 && loaded + timeToLive <= now;
+        }
+
+        private boolean isDueForRefresh(long now) {
+            final long loaded = loadedAt;
+            return loaded >= 0 && loaded + timeToLive - refreshAhead <= now;
+        }
+
+        private synchronized void wipe() {
+            if (wiped || !loader.isDone()) {
+                return;
+            }
+            wiped = true;
+            try {
+                Arrays.fill(loader.get(), '\0');
+            } catch (InterruptedException | ExecutionException e) {
+                // nothing was loaded, so there is nothing to wipe
+            }
+        }
+    }
+
+    public static final class Builder {
+        private ClientSecretService delegate;
+        private long defaultTimeToLive = TimeUnit.MINUTES.toMillis(10);
+        private final Map<OAuthClientCredentials, Long> timeToLives = new HashMap<>();
+        private long refreshAhead = TimeUnit.MINUTES.toMillis(1);
+        private boolean wipeEvictedSecrets;
+        private TokenClock clock = MonotonicClock.INSTANCE;
+
+        private Builder() {
+        }
+
+        /**
+         * @param val the secret service whose secrets are cached
+         */
+        public Builder delegate(ClientSecretService val) {
+            delegate = val;
+            return this;
+        }
+
+        /**
+         * Sets how long a secret is cached, ten minutes by default.
+         */
+        public Builder timeToLive(long val, TimeUnit unit) {
+            defaultTimeToLive = unit.toMillis(val);
+            return this;
+        }
+
+        /**
+         * Sets how long the secret of the given credentials (whatever their scopes) is cached, overriding the default.
+         */
+        public Builder timeToLive(OAuthClientCredentials clientCredentials, long val, TimeUnit unit) {
+            timeToLives.put(clientCredentials.withoutScopes(), unit.toMillis(val));
+            return this;
+        }
+
+        /**
+         * Sets how long before the end of its time to live a secret is reloaded in the background, one minute by
+         * default.
+         */
+        public Builder refreshAhead(long val, TimeUnit unit) {
+            refreshAhead = unit.toMillis(val);
+            return this;
+        }
+
+        /**
+         * @param val overwrite the cached copy of a secret once it is evicted or replaced
+         */
+        public Builder wipeEvictedSecrets(boolean val) {
+            wipeEvictedSecrets = val;
+            return this;
+        }
+
+        public Builder clock(TokenClock val) {
+            clock = val;
+            return this;
+        }
+
+        public CachingClientSecretService build() {
+            return new CachingClientSecretService(this);
+        }
+    }
+}
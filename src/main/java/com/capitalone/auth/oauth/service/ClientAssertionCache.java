@@ -0,0 +1,248 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.factory.DaemonThreadFactory;
+import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Signs and caches the client assertions (RFC 7523 section 2.2) for
+ * {@link com.capitalone.auth.oauth.framework.ClientAuthenticationMethod#PRIVATE_KEY_JWT} credentials.
+ * <p/>
+ * Signing is expensive, so an assertion is reused for the first three quarters of its lifetime. Once half of it has
+ * passed a replacement is signed on a background thread, so token fetches normally find a usable assertion. RS256
+ * is used for RSA keys, ES256, ES384 or ES512 (by curve size) for EC keys.
+ * <p/>
+ * <b>A reused assertion carries the same jti claim every time.</b> Auth servers that enforce one-time use of the jti
+ * (RFC 7523 allows them to) reject every request after the first until the assertion is replaced. Credentials for
+ * those servers must turn reuse off with
+ * {@link com.capitalone.auth.oauth.framework.OAuthClientCredentials.Builder#clientAssertionReuse(boolean)}, which
+ * signs a fresh assertion on the fetching thread for every token request.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+final class ClientAssertionCache implements Closeable {
+
+    static final String ASSERTION_TYPE = "urn:ietf:params:oauth:client-assertion-type:jwt-bearer";
+    static final long DEFAULT_LIFETIME_SECONDS = 300;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final TokenClock clock;
+    private final ConcurrentMap<OAuthClientCredentials, CachedAssertion> assertions = new ConcurrentHashMap<>();
+    // no thread is started until the first background re-sign
+    private final ExecutorService signer = Executors.newSingleThreadExecutor(new DaemonThreadFactory("oauth-client-assertion-signer"));
+
+    ClientAssertionCache(TokenClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return a signed client assertion for the credentials that is valid for at least a quarter of its lifetime, or
+     * a freshly signed one if the credentials don't reuse assertions
+     */
+    String getAssertion(final OAuthClientCredentials clientCredentials) throws IOException {
+        final long now = clock.currentTimeMillis();
+        if (!clientCredentials.isClientAssertionReused()) {
+            return sign(clientCredentials, now).assertion;
+        }
+
+        // assertions don't carry the scopes, so every scope set shares one
+        final OAuthClientCredentials key = clientCredentials.withoutScopes();
+        CachedAssertion cachedAssertion = assertions.get(key);
+
+        if (null == cachedAssertion || cachedAssertion.usableUntil <= now) {
+            cachedAssertion = sign(clientCredentials, now);
+            assertions.put(key, cachedAssertion);
+        } else if (cachedAssertion.refreshOn <= now) {
+            resignInBackground(key, clientCredentials, cachedAssertion);
+        }
+        return cachedAssertion.assertion;
+    }
+
+    void remove(OAuthClientCredentials clientCredentials) {
+        assertions.remove(clientCredentials.withoutScopes());
+    }
+
+    @Override
+    public void close() {
+        signer.shutdownNow();
+    }
+
+    private void resignInBackground(final OAuthClientCredentials key, final OAuthClientCredentials clientCredentials, final CachedAssertion current) {
+        if (!current.resigning.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            signer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        assertions.replace(key, current, sign(clientCredentials, clock.currentTimeMillis()));
+                    } catch (IOException e) {
+                        // the current assertion stays in use, it is signed inline once it is no longer usable
+                        current.resigning.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing down
+            current.resigning.set(false);
+        }
+    }
+
+    private static CachedAssertion sign(OAuthClientCredentials clientCredentials, long now) throws IOException {
+        final long lifetime = (null != clientCredentials.getClientAssertionLifetime()
+                ? clientCredentials.getClientAssertionLifetime()
+                : DEFAULT_LIFETIME_SECONDS) * 1000;
+        try {
+            final String assertion = sign(clientCredentials, now / 1000, (now + lifetime) / 1000);
+            return new CachedAssertion(assertion, now + lifetime / 2, now + lifetime * 3 / 4);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("unable to sign client assertion for " + clientCredentials.getClientId(), e);
+        }
+    }
+
+    static String sign(OAuthClientCredentials clientCredentials, long issuedAt, long expiresAt) throws GeneralSecurityException, IOException {
+        final PrivateKey key = clientCredentials.getClientAssertionSigningKey();
+        if (null == key) {
+            throw new GeneralSecurityException("no client assertion signing key for " + clientCredentials.getClientId());
+        }
+        final JwsAlgorithm algorithm = JwsAlgorithm.forKey(key);
+
+        final Map<String, Object> header = new LinkedHashMap<>();
+        header.put("alg", algorithm.name());
+        header.put("typ", "JWT");
+        if (null != clientCredentials.getClientAssertionKeyId()) {
+            header.put("kid", clientCredentials.getClientAssertionKeyId());
+        }
+
+        final Map<String, Object> claims = new LinkedHashMap<>();
+        claims.put("iss", clientCredentials.getClientId());
+        claims.put("sub", clientCredentials.getClientId());
+        claims.put("aud", String.valueOf(clientCredentials.getAuthServerURI()));
+        claims.put("jti", UUID.randomUUID().toString());
+        claims.put("iat", issuedAt);
+        claims.put("exp", expiresAt);
+
+        final String signingInput = Base64.encodeBase64URLSafeString(OBJECT_MAPPER.writeValueAsBytes(header))
+                + "." + Base64.encodeBase64URLSafeString(OBJECT_MAPPER.writeValueAsBytes(claims));
+
+        final Signature signature = Signature.getInstance(algorithm.javaAlgorithm);
+        signature.initSign(key);
+        signature.update(signingInput.getBytes(UTF_8));
+        byte[] signed = signature.sign();
+        if (algorithm.ecPartLength > 0) {
+            signed = derToJose(signed, algorithm.ecPartLength);
+        }
+        return signingInput + "." + Base64.encodeBase64URLSafeString(signed);
+    }
+
+    /**
+     * JCE produces ECDSA signatures as a DER sequence of two integers, JWS wants them as fixed length big-endian
+     * values one after the other (RFC 7518 section 3.4).
+     */
+    static byte[] derToJose(byte[] der, int partLength) throws GeneralSecurityException {
+        if (der.length < 8 || der[0] != 0x30) {
+            throw new GeneralSecurityException("invalid ECDSA signature");
+        }
+        // the sequence length takes a second byte for P-521 signatures
+        int offset = (der[1] & 0xff) == 0x81 ? 3 : 2;
+
+        final byte[] jose = new byte[partLength * 2];
+        for (int part = 0; part < 2; part++) {
+            if (offset + 2 > der.length || der[offset] != 0x02) {
+                throw new GeneralSecurityException("invalid ECDSA signature");
+            }
+            int length = der[offset + 1] & 0xff;
+            int start = offset + 2;
+            offset = start + length;
+            if (offset > der.length) {
+                throw new GeneralSecurityException("invalid ECDSA signature");
+            }
+            // drop the sign byte and any other leading zeros
+            while (length > partLength) {
+                if (der[start] != 0) {
+                    throw new GeneralSecurityException("invalid ECDSA signature");
+                }
+                start++;
+                length--;
+            }
+            System.arraycopy(der, start, jose, part * partLength + partLength - length, length);
+        }
+        return jose;
+    }
+
+    private enum JwsAlgorithm {
+        RS256("SHA256withRSA", 0),
+        ES256("SHA256withECDSA", 32),
+        ES384("SHA384withECDSA", 48),
+        ES512("SHA512withECDSA", 66);
+
+        private final String javaAlgorithm;
+        private final int ecPartLength;
+
+        JwsAlgorithm(String javaAlgorithm, int ecPartLength) {
+            this.javaAlgorithm = javaAlgorithm;
+            this.ecPartLength = ecPartLength;
+        }
+
+        static JwsAlgorithm forKey(PrivateKey key) throws GeneralSecurityException {
+            if (key instanceof RSAPrivateKey) {
+                return RS256;
+            }
+            if (key instanceof ECPrivateKey) {
+                final int fieldSize = ((ECPrivateKey) key).getParams().getCurve().getField().getFieldSize();
+                if (fieldSize <= 256) {
+                    return ES256;
+                }
+                return fieldSize <= 384 ? ES384 : ES512;
+            }
+            throw new GeneralSecurityException("unsupported client assertion signing key " + key.getAlgorithm());
+        }
+    }
+
+    private static final class CachedAssertion {
+        private final String assertion;
+        private final long refreshOn;
+        private final long usableUntil;
+        private final AtomicBoolean resigning = new AtomicBoolean();
+
+        private CachedAssertion(String assertion, long refreshOn, long usableUntil) {
+            this.assertion = assertion;
+            this.refreshOn = refreshOn;
+            this.usableUntil = usableUntil;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.factory.DaemonThreadFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that is read from a volatile field, refreshed from another clock at a fixed resolution by a background
+ * thread. Expiry checks on the hot path then cost a single field read instead of a clock call.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class CoarseClock implements TokenClock, Closeable {
+
+    private final TokenClock source;
+    private final ScheduledExecutorService ticker;
+    private volatile long currentTimeMillis;
+
+    /**
+     * @param resolution how often (in milliseconds) the time is refreshed, i.e. how stale a reading may be
+     */
+    public CoarseClock(long resolution) {
+        this(MonotonicClock.INSTANCE, resolution);
+    }
+
+    public CoarseClock(TokenClock source, long resolution) {
+        this.source = source;
+        this.currentTimeMillis = source.currentTimeMillis();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("oauth-coarse-clock"));
+        this.ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                currentTimeMillis = CoarseClock.this.source.currentTimeMillis();
+            }
+        }, resolution, resolution, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return currentTimeMillis;
+    }
+
+    /**
+     * Stops the background refresh, the clock stands still afterwards.
+     */
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+}
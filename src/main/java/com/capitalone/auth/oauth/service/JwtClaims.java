@@ -0,0 +1,118 @@
+package com.capitalone.auth.oauth.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.IOException;
+
+/**
+ * The time claims of a JWT access token, decoded from its payload. The signature is deliberately not verified: the
+ * token is only ever presented to the resource server, which verifies it, we only use the claims to know when to
+ * refresh.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+final class JwtClaims {
+
+    static final long UNKNOWN = -1;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final long expiresAt;
+    private final long notBefore;
+    private final long issuedAt;
+
+    private JwtClaims(long expiresAt, long notBefore, long issuedAt) {
+        this.expiresAt = expiresAt;
+        this.notBefore = notBefore;
+        this.issuedAt = issuedAt;
+    }
+
+    /**
+     * @param token the access token
+     * @return the decoded claims, or null if the token is not a JWT with a readable json payload
+     */
+    static JwtClaims decode(String token) {
+        if (null == token) {
+            return null;
+        }
+
+        final int payloadStart = token.indexOf('.');
+        final int payloadEnd = payloadStart < 0 ? -1 : token.indexOf('.', payloadStart + 1);
+        if (payloadEnd < 0) {
+            return null;
+        }
+
+        // commons-codec accepts the url safe alphabet and missing padding
+        final byte[] payload = Base64.decodeBase64(token.substring(payloadStart + 1, payloadEnd));
+
+        long expiresAt = UNKNOWN;
+        long notBefore = UNKNOWN;
+        long issuedAt = UNKNOWN;
+        try {
+            final JsonParser parser = JSON_FACTORY.createParser(payload);
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return null;
+                }
+
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String claim = parser.getCurrentName();
+                    final JsonToken value = parser.nextToken();
+
+                    if (value == JsonToken.VALUE_NUMBER_INT || value == JsonToken.VALUE_NUMBER_FLOAT) {
+                        if ("exp".equals(claim)) {
+                            expiresAt = parser.getValueAsLong() * 1000;
+                        } else if ("nbf".equals(claim)) {
+                            notBefore = parser.getValueAsLong() * 1000;
+                        } else if ("iat".equals(claim)) {
+                            issuedAt = parser.getValueAsLong() * 1000;
+                        }
+                    } else if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                        parser.skipChildren();
+                    }
+                }
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        return new JwtClaims(expiresAt, notBefore, issuedAt);
+    }
+
+    /**
+     * @return the exp claim in epoch milliseconds, or {@link #UNKNOWN}
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return the nbf claim in epoch milliseconds, or {@link #UNKNOWN}
+     */
+    long getNotBefore() {
+        return notBefore;
+    }
+
+    /**
+     * @return the iat claim in epoch milliseconds, or {@link #UNKNOWN}
+     */
+    long getIssuedAt() {
+        return issuedAt;
+    }
+}
@@ -0,0 +1,70 @@
+package com.capitalone.auth.oauth.service;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed pool of locks shared by any number of keys, so guarding millions of cache entries doesn't take a lock
+ * object per entry.
+ * <p/>
+ * Keys are spread over the stripes by hash. Two keys on the same stripe serialise their (rare) refreshes, which is
+ * the price for the fixed footprint, so size the pool well above the number of refreshes expected to run at once.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+final class LockStripes {
+
+    private final Lock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes the number of locks, rounded up to a power of two
+     */
+    LockStripes(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive: " + stripes);
+        }
+        final int size = Integer.highestOneBit(stripes) == stripes ? stripes : Integer.highestOneBit(stripes) << 1;
+        this.locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * A single stripe holding the given lock, so tests can watch the locking.
+     */
+    LockStripes(Lock lock) {
+        this.locks = new Lock[]{lock};
+        this.mask = 0;
+    }
+
+    Lock lockFor(Object key) {
+        return locks[spread(key.hashCode()) & mask];
+    }
+
+    int size() {
+        return locks.length;
+    }
+
+    /**
+     * Mixes the high bits into the low ones, credentials hashes are built from strings and differ mostly in their
+     * low bits otherwise.
+     */
+    private static int spread(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
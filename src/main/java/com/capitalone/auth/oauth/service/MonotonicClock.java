@@ -0,0 +1,36 @@
+package com.capitalone.auth.oauth.service;
+
+/**
+ * A clock that reads the wall clock once and from then on advances with {@link System#nanoTime()}, so NTP
+ * corrections and other wall clock jumps never move it. It is the default clock for tokens.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class MonotonicClock implements TokenClock {
+
+    public static final MonotonicClock INSTANCE = new MonotonicClock();
+
+    private final long originMillis;
+    private final long originNanos;
+
+    public MonotonicClock() {
+        this.originMillis = System.currentTimeMillis();
+        this.originNanos = System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return originMillis + (System.nanoTime() - originNanos) / 1000000L;
+    }
+}
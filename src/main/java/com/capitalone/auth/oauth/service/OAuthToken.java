@@ -1,8 +1,27 @@
 package com.capitalone.auth.oauth.service;
 
 import com.capitalone.auth.Token;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.message.BasicHeader;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
 
 /**
+ * An OAuth access token with its expiry.
+ * <p/>
+ * Tokens built {@link Builder#compact(boolean) compact} keep the access token as UTF-8 bytes and don't hold on to
+ * the String or the Authorization header rendered from them, trading a decode and a new header per use for heap. On
+ * Java 9 and later, where Strings of ASCII are already a byte each, the saving is almost all from not keeping the
+ * header. Java 8 and earlier store Strings as UTF-16, so there the bytes also halve the token itself. Neither is
+ * cached after first use, as that would give the saving back.
+ * <p/>
+ * The refresh token, the scopes and what is needed for and read from JWT claims are kept in a separate object that
+ * is only allocated for tokens that have any of them, so a plain token carries none of their fields.
+ *
  * Copyright [2016] Capital One Services, LLC
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -18,22 +37,47 @@ import com.capitalone.auth.Token;
  */
 public class OAuthToken implements Token {
 
+    public static final long DEFAULT_EXPIRY_SKEW_SECONDS = 10;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private String accessToken;
+    private byte[] compactAccessToken;
     private String tokenType;
     private long expiresIn;
     private long expiresOn;
     private long creationTime;
+    private volatile boolean expiryResolved = true;
+    private TokenClock clock;
+    private long expirySkew;
+    private volatile Header authorizationHeader;
+    // null unless the token has a refresh token, scopes or JWT claims to decode
+    private Details details;
 
     public OAuthToken() {
-        this.creationTime = System.currentTimeMillis();
+        this(MonotonicClock.INSTANCE);
+    }
+
+    private OAuthToken(TokenClock clock) {
+        this.clock = clock;
+        this.creationTime = clock.currentTimeMillis();
     }
 
     private OAuthToken(Builder builder) {
-        this();
-        this.accessToken = builder.accessToken;
+        this(builder.clock);
+        if (builder.compact && null != builder.accessToken) {
+            this.compactAccessToken = builder.accessToken.getBytes(UTF_8);
+        } else {
+            this.accessToken = builder.accessToken;
+        }
         this.tokenType = builder.tokenType;
-        this.expiresIn = builder.expiresIn - 10;    // TODO: Needs to be configurable at some point.
+        this.expirySkew = builder.expirySkew;
+        this.expiresIn = builder.expiresIn - expirySkew;
         this.expiresOn = this.creationTime + (this.expiresIn * 1000);
+        if (null != builder.refreshToken || !builder.scopes.isEmpty() || builder.decodeJwtExpiry) {
+            this.details = new Details(builder.refreshToken, builder.scopes, builder.serverClockOffset, this.creationTime);
+        }
+        this.expiryResolved = !builder.decodeJwtExpiry;
     }
 
     public static Builder newBuilder() {
@@ -42,11 +86,20 @@ public class OAuthToken implements Token {
 
     @Override
     public String getValue() {
-        return accessToken;
+        final byte[] compact = compactAccessToken;
+        return null != compact ? new String(compact, UTF_8) : accessToken;
+    }
+
+    /**
+     * @return true if the access token is kept as bytes and every {@link #getValue()} creates a new String
+     */
+    public boolean isCompact() {
+        return null != compactAccessToken;
     }
 
     public boolean hasExpired() {
-        long currentTime = System.currentTimeMillis();
+        resolveExpiry();
+        long currentTime = clock.currentTimeMillis();
         return expiresOn <= currentTime;
     }
 
@@ -59,11 +112,36 @@ public class OAuthToken implements Token {
     }
 
     public long getExpiresOn() {
+        resolveExpiry();
         return expiresOn;
     }
 
+    /**
+     * @return when the token was issued: the iat claim of a decoded JWT, otherwise the local creation time
+     */
+    public long getIssuedAt() {
+        resolveExpiry();
+        return null == details ? creationTime : details.issuedAt;
+    }
+
+    /**
+     * @return the nbf claim of a decoded JWT, or -1 if unknown
+     */
+    public long getNotBefore() {
+        resolveExpiry();
+        return null == details ? JwtClaims.UNKNOWN : details.notBefore;
+    }
+
+    /**
+     * @return true once the token has expired on the auth server too, i.e. also its expiry skew has passed
+     */
+    boolean hasExpiredOnServer() {
+        return getRemainingTime() + expirySkew * 1000 <= 0;
+    }
+
     public long getRemainingTime() {
-        long currentTime = System.currentTimeMillis();
+        resolveExpiry();
+        long currentTime = clock.currentTimeMillis();
         long expiresOn = this.expiresOn;
         return expiresOn - currentTime;
     }
@@ -72,10 +150,105 @@ public class OAuthToken implements Token {
         return tokenType;
     }
 
+    /**
+     * @return the refresh token issued with (or carried over to) this token, or null if the server issued none
+     */
+    public String getRefreshToken() {
+        return null == details ? null : details.refreshToken;
+    }
+
+    /**
+     * @return the Authorization header carrying this token. It is rendered on first use and the same instance is
+     * returned from then on, except for compact tokens which render it on every call.
+     */
+    public Header getAuthorizationHeader() {
+        Header header = authorizationHeader;
+        if (null == header) {
+            // a race only renders an equal header twice
+            final String scheme = null == tokenType || "bearer".equalsIgnoreCase(tokenType) ? "Bearer" : tokenType;
+            header = new BasicHeader(HttpHeaders.AUTHORIZATION, scheme + " " + getValue());
+            if (!isCompact()) {
+                authorizationHeader = header;
+            }
+        }
+        return header;
+    }
+
+    /**
+     * @return the scopes granted to this token
+     */
+    public Set<String> getScopes() {
+        return null == details ? Collections.<String>emptySet() : details.scopes;
+    }
+
+    /**
+     * @return true if this token was granted every one of the given scopes
+     */
+    public boolean hasScopes(Collection<String> requestedScopes) {
+        return getScopes().containsAll(requestedScopes);
+    }
+
+    /**
+     * For tokens built with {@code decodeJwtExpiry}, decodes the JWT payload the first time the expiry is needed and
+     * takes the expiry from its exp claim. Tokens that turn out not to be JWTs keep the expires_in based expiry.
+     * The claims are in auth server time, so they are moved onto our clock by the estimated server clock offset.
+     */
+    private void resolveExpiry() {
+        if (expiryResolved) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!expiryResolved) {
+                // tokens to decode always have details
+                final JwtClaims claims = JwtClaims.decode(getValue());
+                if (null != claims) {
+                    final long serverClockOffset = details.serverClockOffset;
+                    if (claims.getExpiresAt() != JwtClaims.UNKNOWN) {
+                        expiresOn = claims.getExpiresAt() - serverClockOffset - (expirySkew * 1000);
+                    }
+                    if (claims.getIssuedAt() != JwtClaims.UNKNOWN) {
+                        details.issuedAt = claims.getIssuedAt() - serverClockOffset;
+                    }
+                    if (claims.getNotBefore() != JwtClaims.UNKNOWN) {
+                        details.notBefore = claims.getNotBefore() - serverClockOffset;
+                    }
+                }
+                expiryResolved = true;
+            }
+        }
+    }
+
+    /**
+     * The rarely set parts of a token. The claims are written before the volatile {@code expiryResolved} and read
+     * after it.
+     */
+    private static final class Details {
+        private final String refreshToken;
+        private final Set<String> scopes;
+        private final long serverClockOffset;
+        private long issuedAt;
+        private long notBefore = JwtClaims.UNKNOWN;
+
+        private Details(String refreshToken, Set<String> scopes, long serverClockOffset, long issuedAt) {
+            this.refreshToken = refreshToken;
+            this.scopes = scopes;
+            this.serverClockOffset = serverClockOffset;
+            this.issuedAt = issuedAt;
+        }
+    }
+
     public static final class Builder {
         private String accessToken;
         private String tokenType;
+        private String refreshToken;
         private long expiresIn;
+        private Set<String> scopes = Collections.emptySet();
+        private boolean decodeJwtExpiry;
+        private TokenClock clock = MonotonicClock.INSTANCE;
+        private long expirySkew = DEFAULT_EXPIRY_SKEW_SECONDS;
+        private long serverClockOffset;
+        private boolean compact;
 
         public Builder() {
         }
@@ -90,11 +263,61 @@ public class OAuthToken implements Token {
             return this;
         }
 
+        public Builder refreshToken(String val) {
+            refreshToken = val;
+            return this;
+        }
+
         public Builder expiresIn(long val) {
             expiresIn = val;
             return this;
         }
 
+        public Builder scopes(Set<String> val) {
+            scopes = null == val ? Collections.<String>emptySet() : val;
+            return this;
+        }
+
+        /**
+         * @param val take the expiry from the exp claim of the access token if it is a JWT, rather than from
+         *            expires_in and the local creation time. This also gives tokens restored with
+         *            {@link OAuthTokenService#restoreToken} an expiry. The signature is not verified.
+         */
+        public Builder decodeJwtExpiry(boolean val) {
+            decodeJwtExpiry = val;
+            return this;
+        }
+
+        public Builder clock(TokenClock val) {
+            clock = val;
+            return this;
+        }
+
+        /**
+         * @param val how many seconds before the server side expiry the token is treated as expired
+         */
+        public Builder expirySkew(long val) {
+            expirySkew = val;
+            return this;
+        }
+
+        /**
+         * @param val the auth server clock minus our clock (in milliseconds), applied to JWT time claims
+         */
+        public Builder serverClockOffset(long val) {
+            serverClockOffset = val;
+            return this;
+        }
+
+        /**
+         * @param val keep the access token as UTF-8 bytes and create its String (and Authorization header) on each
+         *            use instead of holding on to them
+         */
+        public Builder compact(boolean val) {
+            compact = val;
+            return this;
+        }
+
         public OAuthToken build() {
             return new OAuthToken(this);
         }
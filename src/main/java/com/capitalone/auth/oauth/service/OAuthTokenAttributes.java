@@ -1,7 +1,6 @@
 package com.capitalone.auth.oauth.service;
 
 import java.util.concurrent.Future;
-import java.util.concurrent.locks.Lock;
 
 /**
  * Copyright [2016] Capital One Services, LLC
@@ -19,13 +18,11 @@ import java.util.concurrent.locks.Lock;
  */
 public class OAuthTokenAttributes {
 
-    private OAuthToken token;
-    private Lock lock;
+    private volatile OAuthToken token;
     private Future<OAuthToken> job;
 
     private OAuthTokenAttributes(Builder builder) {
         setToken(builder.token);
-        lock = builder.lock;
         job = builder.job;
     }
 
@@ -41,10 +38,6 @@ public class OAuthTokenAttributes {
         this.token = token;
     }
 
-    public Lock getLock() {
-        return lock;
-    }
-
     public Future<OAuthToken> getJob() {
         return job;
     }
@@ -59,7 +52,6 @@ public class OAuthTokenAttributes {
 
     public static final class Builder {
         private OAuthToken token;
-        private Lock lock;
         private Future<OAuthToken> job;
 
         private Builder() {
@@ -74,11 +66,6 @@ public class OAuthTokenAttributes {
             return this;
         }
 
-        public Builder lock(Lock val) {
-            lock = val;
-            return this;
-        }
-
         public Builder job(Future<OAuthToken> val) {
             job = val;
             return this;
@@ -0,0 +1,108 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.Token;
+import com.capitalone.auth.TokenService;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * An {@link HttpRequestInterceptor} that obtains the token for each request's URI and sets it as the
+ * Authorization header. Register it with {@code HttpClientBuilder.addInterceptorLast}.
+ * <p/>
+ * For {@link OAuthToken}s the header rendered and cached on the token is set, so no header string is built per
+ * request while the token stays cached. {@link OAuthToken#isCompact() Compact} tokens are the exception: they keep
+ * no header, so every request decodes the token and builds one (about a microsecond for a 1.5 KB JWT), in exchange
+ * for not holding a header per cached token. The token and its URI are left in the context, so that
+ * {@link OAuthTokenRetryStrategy} can invalidate a rejected token and retry with a new one.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class OAuthTokenInterceptor implements HttpRequestInterceptor {
+
+    /**
+     * Context attribute holding the {@link Token} set on the request, read by {@link OAuthTokenRetryStrategy}.
+     */
+    public static final String TOKEN_ATTRIBUTE = "com.capitalone.auth.oauth.token";
+
+    /**
+     * Context attribute holding the {@link URI} the token was obtained for.
+     */
+    public static final String TOKEN_URI_ATTRIBUTE = "com.capitalone.auth.oauth.token-uri";
+
+    private final TokenService tokenService;
+
+    public OAuthTokenInterceptor(TokenService tokenService) {
+        this.tokenService = tokenService;
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+        final URI uri = requestURI(request, context);
+        final Token token = tokenService.obtainTokenFor(uri);
+        request.setHeader(authorizationHeaderFor(token));
+        context.setAttribute(TOKEN_ATTRIBUTE, token);
+        context.setAttribute(TOKEN_URI_ATTRIBUTE, uri);
+    }
+
+    static Header authorizationHeaderFor(Token token) {
+        if (token instanceof OAuthToken) {
+            return ((OAuthToken) token).getAuthorizationHeader();
+        }
+        return new BasicHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token.getValue());
+    }
+
+    /**
+     * Recovers the absolute URI of the request. By the time interceptors run HttpClient has usually wrapped the
+     * request and made its URI relative, so the original request or the target host is consulted.
+     */
+    private static URI requestURI(HttpRequest request, HttpContext context) throws HttpException {
+        HttpRequest original = request;
+        if (original instanceof HttpRequestWrapper) {
+            original = ((HttpRequestWrapper) original).getOriginal();
+        }
+        if (original instanceof HttpUriRequest) {
+            final URI uri = ((HttpUriRequest) original).getURI();
+            if (uri.isAbsolute()) {
+                return uri;
+            }
+        }
+
+        try {
+            final URI uri = new URI(request.getRequestLine().getUri());
+            if (uri.isAbsolute()) {
+                return uri;
+            }
+            final HttpHost target = HttpClientContext.adapt(context).getTargetHost();
+            if (null == target) {
+                throw new HttpException("no target host for " + uri);
+            }
+            return new URI(target.toURI()).resolve(uri);
+        } catch (URISyntaxException e) {
+            throw new HttpException("invalid request uri " + request.getRequestLine().getUri(), e);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.exceptions.TokenRequestException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Parses the token endpoint response straight from the entity stream into an {@link OAuthToken}.
+ * <p/>
+ * Unknown fields are skipped without being bound and the response is capped at {@code maxResponseSize} bytes,
+ * so a misbehaving server can't make us buffer an arbitrarily large body. Error responses, and responses without an
+ * access token, fail with a {@link TokenRequestException} carrying the status and the error of the response. That
+ * includes error responses that aren't json at all, such as the html page of a proxy or load balancer.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+class OAuthTokenResponseParser {
+
+    static final int DEFAULT_MAX_RESPONSE_SIZE = 64 * 1024;
+
+    static final String FIELD_ACCESS_TOKEN = "access_token";
+    static final String FIELD_TOKEN_TYPE = "token_type";
+    static final String FIELD_EXPIRES_IN = "expires_in";
+    static final String FIELD_SCOPE = "scope";
+    static final String FIELD_REFRESH_TOKEN = "refresh_token";
+    static final String FIELD_ERROR = "error";
+    static final String FIELD_ERROR_DESCRIPTION = "error_description";
+
+    private final JsonFactory jsonFactory;
+    private final int maxResponseSize;
+
+    OAuthTokenResponseParser(JsonFactory jsonFactory) {
+        this(jsonFactory, DEFAULT_MAX_RESPONSE_SIZE);
+    }
+
+    OAuthTokenResponseParser(JsonFactory jsonFactory, int maxResponseSize) {
+        this.jsonFactory = jsonFactory;
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * @param entity  the token endpoint response
+     * @param builder a builder carrying everything not read from the response (clock, skew, requested scopes...),
+     *                the response fields are set on it
+     */
+    OAuthToken parse(HttpEntity entity, OAuthToken.Builder builder) throws IOException {
+        return parse(HttpStatus.SC_OK, entity, builder);
+    }
+
+    /**
+     * @param statusCode the http status of the response
+     * @throws TokenRequestException if the status is not 2xx or the response has no access token
+     */
+    OAuthToken parse(int statusCode, HttpEntity entity, OAuthToken.Builder builder) throws IOException {
+        if (null == entity) {
+            if (statusCode < 200 || statusCode >= 300) {
+                throw new TokenRequestException("oauth server responded " + statusCode, statusCode, null, null);
+            }
+            throw new IOException("empty response from oauth server");
+        }
+        final boolean success = isSuccess(statusCode);
+        if (entity.getContentLength() > maxResponseSize) {
+            if (!success) {
+                throw new TokenRequestException("oauth server responded " + statusCode, statusCode, null, null);
+            }
+            throw new IOException("oauth server response exceeds " + maxResponseSize + " bytes");
+        }
+
+        final InputStream content = new SizeLimitedInputStream(entity.getContent(), maxResponseSize);
+        try {
+            return parse(statusCode, content, builder);
+        } catch (TokenRequestException e) {
+            throw e;
+        } catch (IOException e) {
+            if (!success) {
+                // an error body that isn't json (or is too large) must not hide the status
+                final TokenRequestException statusException = new TokenRequestException("oauth server responded " + statusCode, statusCode, null, null);
+                statusException.initCause(e);
+                throw statusException;
+            }
+            throw e;
+        } finally {
+            // closing the content stream hands the connection back to the pool
+            content.close();
+        }
+    }
+
+    private static boolean isSuccess(int statusCode) {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    /**
+     * @throws JsonProcessingException if the content is not json
+     */
+    private OAuthToken parse(int statusCode, InputStream content, OAuthToken.Builder builder) throws IOException {
+        final boolean success = isSuccess(statusCode);
+        String accessToken = null;
+        String error = null;
+        String errorDescription = null;
+
+        final JsonParser parser = jsonFactory.createParser(content);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                if (!success) {
+                    throw new TokenRequestException("oauth server responded " + statusCode, statusCode, null, null);
+                }
+                throw new IOException("oauth server response is not a json object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    // no field we read is structured, skip the whole value so its fields aren't taken for ours
+                    parser.skipChildren();
+                } else if (FIELD_ACCESS_TOKEN.equals(fieldName)) {
+                    accessToken = parser.getValueAsString();
+                    builder.accessToken(accessToken);
+                } else if (FIELD_ERROR.equals(fieldName) && value == JsonToken.VALUE_STRING) {
+                    error = parser.getText();
+                } else if (FIELD_ERROR_DESCRIPTION.equals(fieldName) && value == JsonToken.VALUE_STRING) {
+                    errorDescription = parser.getText();
+                } else if (FIELD_TOKEN_TYPE.equals(fieldName)) {
+                    builder.tokenType(parser.getValueAsString());
+                } else if (FIELD_EXPIRES_IN.equals(fieldName)) {
+                    // some servers send expires_in as a string, getValueAsLong copes with both
+                    builder.expiresIn(parser.getValueAsLong());
+                } else if (FIELD_REFRESH_TOKEN.equals(fieldName) && value == JsonToken.VALUE_STRING) {
+                    builder.refreshToken(parser.getText());
+                } else if (FIELD_SCOPE.equals(fieldName) && value == JsonToken.VALUE_STRING) {
+                    builder.scopes(parseScopes(parser.getText()));
+                }
+            }
+        } finally {
+            parser.close();
+        }
+
+        if (!success || null == accessToken) {
+            final StringBuilder message = new StringBuilder(success ? "oauth server response has no access_token" : "oauth server responded " + statusCode);
+            if (null != error) {
+                message.append(": ").append(error);
+            }
+            if (null != errorDescription) {
+                message.append(" (").append(errorDescription).append(')');
+            }
+            throw new TokenRequestException(message.toString(), statusCode, error, errorDescription);
+        }
+        return builder.build();
+    }
+
+    static Set<String> parseScopes(String scope) {
+        final Set<String> scopes = new TreeSet<>();
+        for (String token : scope.split(" ")) {
+            if (!token.isEmpty()) {
+                scopes.add(token);
+            }
+        }
+        return Collections.unmodifiableSet(scopes);
+    }
+
+    private static final class SizeLimitedInputStream extends FilterInputStream {
+        private final int limit;
+        private long count;
+
+        private SizeLimitedInputStream(InputStream in, int limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long read) throws IOException {
+            count += read;
+            if (count > limit) {
+                throw new IOException("oauth server response exceeds " + limit + " bytes");
+            }
+        }
+    }
+}
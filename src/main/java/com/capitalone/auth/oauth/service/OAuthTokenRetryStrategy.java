@@ -0,0 +1,70 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.Token;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ServiceUnavailableRetryStrategy;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Retries a request once when the resource server answers 401 Unauthorized, after invalidating the token the
+ * {@link OAuthTokenInterceptor} attached, so the retry goes out with a freshly fetched token. Register it with
+ * {@code HttpClientBuilder.setServiceUnavailableRetryStrategy} next to the interceptor. Requests with a
+ * non-repeatable body can't be retried.
+ * <p/>
+ * If the token was already replaced (e.g. by another request that was rejected with it) the request is retried with
+ * the replacement. If it is too young to be invalidated (see
+ * {@link OAuthTokenService.Builder#minRefetchInterval(long)}) the 401 is returned as is, as the retry would only go
+ * out with the same token.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class OAuthTokenRetryStrategy implements ServiceUnavailableRetryStrategy {
+
+    private final OAuthTokenService tokenService;
+
+    public OAuthTokenRetryStrategy(OAuthTokenService tokenService) {
+        this.tokenService = tokenService;
+    }
+
+    @Override
+    public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
+        if (executionCount > 1 || response.getStatusLine().getStatusCode() != HttpStatus.SC_UNAUTHORIZED) {
+            return false;
+        }
+
+        final Object token = context.getAttribute(OAuthTokenInterceptor.TOKEN_ATTRIBUTE);
+        final Object uri = context.getAttribute(OAuthTokenInterceptor.TOKEN_URI_ATTRIBUTE);
+        if (!(token instanceof Token) || !(uri instanceof URI)) {
+            // not a request we attached a token to
+            return false;
+        }
+
+        try {
+            // retry if the token was dropped here or has already been replaced, a token kept because it is younger
+            // than the minimum re-fetch interval would only be rejected again
+            return tokenService.invalidate((URI) uri, (Token) token) || !tokenService.isCached((URI) uri, (Token) token);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public long getRetryInterval() {
+        return 0;
+    }
+}
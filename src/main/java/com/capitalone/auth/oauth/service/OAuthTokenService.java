@@ -3,31 +3,43 @@ package com.capitalone.auth.oauth.service;
 import com.capitalone.auth.ClientCredentialsProvider;
 import com.capitalone.auth.Token;
 import com.capitalone.auth.TokenService;
+import com.capitalone.auth.oauth.exceptions.TokenRequestException;
+import com.capitalone.auth.oauth.exceptions.TokenTimeoutException;
+import com.capitalone.auth.oauth.factory.CachingDnsResolver;
+import com.capitalone.auth.oauth.factory.DaemonThreadFactory;
 import com.capitalone.auth.oauth.factory.HttpConnectionConfig;
 import com.capitalone.auth.oauth.factory.HttpConnectionFactory;
 import com.capitalone.auth.oauth.factory.HttpConnectionPool;
+import com.capitalone.auth.oauth.framework.ClientAuthenticationMethod;
 import com.capitalone.auth.oauth.framework.ClientCredentialsNotFoundException;
 import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
-import com.capitalone.auth.oauth.framework.protocol.ServerOAuthToken;
+import com.capitalone.auth.oauth.framework.ReloadingOAuthClientCredentialsProvider;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.client.utils.DateUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <p/>
@@ -35,6 +47,16 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p/>
  * You just ask it for a token for the given uri (client uri) and it will work out which oauth server it will use
  * and manages locks etc for that service.
+ * <p/>
+ * The token cache is a concurrent map, so lookups of cached tokens take no lock. Refreshes of an entry are
+ * serialised by a lock from a fixed pool of striped locks (see {@link Builder#lockStripes(int)}) rather than a lock
+ * per entry, which keeps the per-entry footprint small when there are very many client credentials.
+ * <p/>
+ * Refreshes run on the prefetch executor, or with {@link Builder#bulkheadThreads(int)} on a bulkhead per auth server so
+ * that a degraded auth server can't starve the refreshes of the others.
+ * <p/>
+ * Closing the service drains the prefetch executor. The connection pool is shared through the
+ * {@link HttpConnectionFactory}, so close the factory to release the pooled connections.
  *
  * Copyright [2016] Capital One Services, LLC
  *
@@ -49,20 +71,45 @@ import java.util.concurrent.locks.ReentrantLock;
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and limitations under the License.
  */
-public class OAuthTokenService implements TokenService {
+public class OAuthTokenService implements TokenService, Closeable {
 
     public static final String KEY_GRANT_TYPE = "grant_type";
     public static final String KEY_CLIENT_ID = "client_id";
     public static final String KEY_CLIENT_SECRET = "client_secret";
+    public static final String KEY_SCOPE = "scope";
+    public static final String KEY_REFRESH_TOKEN = "refresh_token";
+    public static final String GRANT_TYPE_REFRESH_TOKEN = "refresh_token";
+    public static final String KEY_CLIENT_ASSERTION_TYPE = "client_assertion_type";
+    public static final String KEY_CLIENT_ASSERTION = "client_assertion";
+
+    public static final long DEFAULT_MIN_REFETCH_INTERVAL = 1000;
+    public static final int DEFAULT_LOCK_STRIPES = 1024;
+    public static final int DEFAULT_BULKHEAD_QUEUE_SIZE = 100;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
 
     private ObjectMapper objectMapper = new ObjectMapper();
     private ClientCredentialsProvider<OAuthClientCredentials> clientCredentialsProvider;
     private int prefetchTimeout;
     private ClientSecretService clientSecretService;
-    private Lock lock = new ReentrantLock();
+    private LockStripes lockStripes;
     private HttpConnectionPool httpConnectionPool;
-    private Map<OAuthClientCredentials, OAuthTokenAttributes> tokenCache = new HashMap<>();
+    private final ConcurrentMap<OAuthClientCredentials, OAuthTokenAttributes> tokenCache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<OAuthClientCredentials, Set<OAuthClientCredentials>> scopedCredentials = new ConcurrentHashMap<>();
+    private final ConcurrentMap<OAuthClientCredentials, OAuthClientCredentials> baseCredentials = new ConcurrentHashMap<>();
+    private final ConcurrentMap<OAuthClientCredentials, TokenRequestTemplate> requestTemplates = new ConcurrentHashMap<>();
     private ExecutorService executorService;
+    private final RefreshBulkheads refreshBulkheads;
+    private long connectionPrewarmTime;
+    private ScheduledExecutorService prewarmScheduler;
+    private boolean decodeJwtExpiry;
+    private boolean compactTokens;
+    private long minRefetchInterval;
+    private TokenClock clock;
+    private final ConcurrentMap<URI, Long> serverClockOffsets = new ConcurrentHashMap<>();
+    private ReloadingOAuthClientCredentialsProvider.Listener credentialsListener;
+    private ClientAssertionCache clientAssertions;
+    private CachingDnsResolver dnsResolver;
 
     /**
      * Creates an oauth token service that is responsible for managing oauth tokens.
@@ -72,99 +119,744 @@ public class OAuthTokenService implements TokenService {
      */
     public OAuthTokenService(HttpConnectionFactory httpConnectionFactory, HttpConnectionConfig httpConnectionConfig, int prefetchPoolSize,
                              int prefetchTimeout, ClientCredentialsProvider<OAuthClientCredentials> oAuthClientCredentialsProvider, ClientSecretService clientSecretService) {
-        this.prefetchTimeout = prefetchTimeout;
-        this.clientSecretService = clientSecretService;
-        this.httpConnectionPool = httpConnectionFactory.getConnectionPool(httpConnectionConfig);
-        this.executorService = Executors.newFixedThreadPool(prefetchPoolSize);
-        this.clientCredentialsProvider = oAuthClientCredentialsProvider;
+        this(newBuilder()
+                .httpConnectionFactory(httpConnectionFactory)
+                .httpConnectionConfig(httpConnectionConfig)
+                .prefetchPoolSize(prefetchPoolSize)
+                .prefetchTimeout(prefetchTimeout)
+                .clientCredentialsProvider(oAuthClientCredentialsProvider)
+                .clientSecretService(clientSecretService));
+    }
+
+    private OAuthTokenService(Builder builder) {
+        this.prefetchTimeout = builder.prefetchTimeout;
+        this.clientSecretService = builder.clientSecretService;
+        this.httpConnectionPool = builder.httpConnectionFactory.getConnectionPool(builder.httpConnectionConfig);
+        this.executorService = Executors.newFixedThreadPool(builder.prefetchPoolSize);
+        this.clientCredentialsProvider = builder.clientCredentialsProvider;
+        this.connectionPrewarmTime = builder.connectionPrewarmTime;
+        this.decodeJwtExpiry = builder.decodeJwtExpiry;
+        this.compactTokens = builder.compactTokens;
+        this.minRefetchInterval = builder.minRefetchInterval;
+        this.clock = builder.clock;
+        this.lockStripes = new LockStripes(builder.lockStripes);
+        this.refreshBulkheads = builder.bulkheadThreads > 0 ? new RefreshBulkheads(builder.bulkheadThreads, builder.bulkheadQueueSize) : null;
+        this.clientAssertions = new ClientAssertionCache(this.clock);
+        this.dnsResolver = builder.dnsResolver;
+        if (this.connectionPrewarmTime > 0) {
+            this.prewarmScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("oauth-connection-prewarm"));
+        }
+        if (this.clientCredentialsProvider instanceof ReloadingOAuthClientCredentialsProvider) {
+            this.credentialsListener = new ReloadingOAuthClientCredentialsProvider.Listener() {
+                @Override
+                public void credentialsRemoved(Set<OAuthClientCredentials> removed) {
+                    evictTokensFor(removed);
+                    evictClientSecretsFor(removed);
+                }
+
+                @Override
+                public void credentialsAdded(Set<OAuthClientCredentials> added) {
+                    preResolveAuthServers(added);
+                }
+            };
+            ((ReloadingOAuthClientCredentialsProvider) this.clientCredentialsProvider).addListener(credentialsListener);
+            preResolveAuthServers(((ReloadingOAuthClientCredentialsProvider) this.clientCredentialsProvider).getClientCredentials());
+        }
+    }
+
+    /**
+     * Resolves the auth server hosts of the credentials with the DNS resolver, if there is one, so they stay cached
+     * between token refreshes.
+     */
+    private void preResolveAuthServers(Collection<OAuthClientCredentials> clientCredentials) {
+        if (null == dnsResolver) {
+            return;
+        }
+
+        final Set<String> hosts = new LinkedHashSet<>();
+        for (OAuthClientCredentials credentials : clientCredentials) {
+            final URI authServerURI = credentials.getAuthServerURI();
+            if (null != authServerURI && null != authServerURI.getHost()) {
+                hosts.add(authServerURI.getHost());
+            }
+        }
+        for (String host : hosts) {
+            try {
+                dnsResolver.preResolve(host);
+            } catch (UnknownHostException e) {
+                // resolved again by the first token request for it
+            }
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
     }
 
     @Override
     public Token obtainTokenFor(URI uri) throws IOException {
-        final OAuthClientCredentials clientCredentials;
-        try {
-            clientCredentials = clientCredentialsProvider.getClientCredentialsFor(uri);
-        } catch (ClientCredentialsNotFoundException e) {
-            throw new IOException("oauth configuration not found for uri", e);
+        return obtainTokenFor(getClientCredentialsFor(uri));
+    }
+
+    /**
+     * Obtains a token within the given time. The deadline covers waiting for the lock of the token, waiting for a
+     * refresh already in flight, and connecting to and reading from the auth server. If it passes, a token that is
+     * still valid on the auth server (it is only inside its expiry skew) is returned instead.
+     *
+     * @param uri     the uri to obtain a token for
+     * @param timeout how long to wait for the token at most
+     * @param unit    the unit of the timeout
+     * @return the token
+     * @throws TokenTimeoutException if there is no token within the deadline and no still valid one to fall back on
+     */
+    public Token obtainTokenFor(URI uri, long timeout, TimeUnit unit) throws IOException {
+        return obtainTokenFor(getClientCredentialsFor(uri), Deadline.after(timeout, unit));
+    }
+
+    /**
+     * Obtains a token carrying at least the given scopes. Tokens are cached per client credentials and scope set, and
+     * any cached token (for the same client credentials) whose granted scopes cover the requested ones is reused
+     * rather than fetching a narrower one.
+     *
+     * @param uri    the uri to obtain a token for
+     * @param scopes the scopes the token must carry, an empty collection uses the configured scopes
+     * @return the token
+     */
+    public Token obtainTokenFor(URI uri, Collection<String> scopes) throws IOException {
+        final OAuthClientCredentials clientCredentials = getClientCredentialsFor(uri);
+        if (null == scopes || scopes.isEmpty()) {
+            return obtainTokenFor(clientCredentials);
+        }
+
+        final OAuthToken coveringToken = findTokenCovering(clientCredentials, scopes);
+        if (null != coveringToken) {
+            return coveringToken;
+        }
+
+        final OAuthClientCredentials scopedCredentials = clientCredentials.withScopes(scopes);
+        registerScopedCredentials(clientCredentials, scopedCredentials);
+        return obtainTokenFor(scopedCredentials);
+    }
+
+    /**
+     * Looks for a cached token, fetched with the given client credentials or any scoped variant of them, that carries
+     * every requested scope and is not yet due for prefetch.
+     */
+    private OAuthToken findTokenCovering(OAuthClientCredentials clientCredentials, Collection<String> scopes) throws IOException {
+        final OAuthToken token = coveringToken(peekTokenAttributes(clientCredentials), scopes);
+        if (null != token) {
+            return token;
+        }
+
+        final Set<OAuthClientCredentials> scopedVariants = this.scopedCredentials.get(clientCredentials);
+        if (null != scopedVariants) {
+            // the server may grant more than was asked for, so check the granted scopes of every variant
+            for (OAuthClientCredentials scopedVariant : scopedVariants) {
+                final OAuthToken scopedToken = coveringToken(peekTokenAttributes(scopedVariant), scopes);
+                if (null != scopedToken) {
+                    return scopedToken;
+                }
+            }
         }
+        return null;
+    }
+
+    private OAuthToken coveringToken(OAuthTokenAttributes oauthTokenAttributes, Collection<String> scopes) {
+        if (null == oauthTokenAttributes) {
+            return null;
+        }
+
+        final OAuthToken token = oauthTokenAttributes.getToken();
+        if (null != token && token.hasScopes(scopes) && token.getRemainingTime() > prefetchTimeout) {
+            return token;
+        }
+        return null;
+    }
 
-        OAuthTokenAttributes oauthTokenAttributes = null;
+    /**
+     * Caches a token obtained earlier, e.g. one restored from a persistent or shared cache at startup, so the first
+     * request for the uri doesn't go to the auth server.
+     * <p/>
+     * How long ago the token was issued isn't known, so its expiry is always taken from its JWT exp claim (whether or
+     * not {@link Builder#decodeJwtExpiry(boolean)} is set), moved onto our clock like the exp of fetched tokens. Tokens
+     * that aren't JWTs with an exp claim, or that are already due for prefetch, are not cached. Neither is a token
+     * for credentials that already have a valid token or a fetch in flight.
+     *
+     * @param uri          the uri the token was obtained for
+     * @param accessToken  the access token
+     * @param tokenType    the token type, null for Bearer
+     * @param refreshToken the refresh token issued with it, or null
+     * @return true if the token was cached
+     */
+    public boolean restoreToken(URI uri, String accessToken, String tokenType, String refreshToken) throws IOException {
+        final OAuthClientCredentials clientCredentials = getClientCredentialsFor(uri);
+        final OAuthToken token = OAuthToken.newBuilder()
+                .accessToken(accessToken)
+                .tokenType(tokenType)
+                .refreshToken(refreshToken)
+                .clock(clock)
+                .scopes(clientCredentials.getScopes())
+                .expirySkew(null != clientCredentials.getExpirySkew() ? clientCredentials.getExpirySkew() : OAuthToken.DEFAULT_EXPIRY_SKEW_SECONDS)
+                .serverClockOffset(getServerClockOffset(clientCredentials.getAuthServerURI()))
+                .decodeJwtExpiry(true)
+                .compact(compactTokens)
+                .build();
+        // without an exp claim the token expires on creation
+        if (token.getRemainingTime() <= prefetchTimeout) {
+            return false;
+        }
 
-        // global lock here - manage the individual locks. must be locked globally to avoid creating
-        // multiple lock objects for the same url.
+        final OAuthTokenAttributes oauthTokenAttributes = getTokenAttributes(clientCredentials);
+        final Lock oauthTokenAttributesLock = lockStripes.lockFor(clientCredentials);
+        oauthTokenAttributesLock.lock();
         try {
-            if (lock.tryLock(10, TimeUnit.SECONDS)) {
-                if (tokenCache.containsKey(clientCredentials)) {
-                    oauthTokenAttributes = tokenCache.get(clientCredentials);
-                } else {
-                    oauthTokenAttributes = OAuthTokenAttributes.newBuilder()
-                            .token(null)
-                            .lock(new ReentrantLock())
-                            .build();
-
-                    tokenCache.put(clientCredentials, oauthTokenAttributes);
+            final OAuthToken cachedToken = oauthTokenAttributes.getToken();
+            if (null != oauthTokenAttributes.getJob() || (null != cachedToken && !cachedToken.hasExpired())
+                    || tokenCache.get(clientCredentials) != oauthTokenAttributes) {
+                return false;
+            }
+            oauthTokenAttributes.setToken(token);
+            schedulePrewarm(clientCredentials, token);
+            return true;
+        } finally {
+            oauthTokenAttributesLock.unlock();
+        }
+    }
+
+    /**
+     * Drops a token that a resource server rejected (e.g. with a 401 because it was revoked or rotated early), so the
+     * next {@link #obtainTokenFor(URI)} fetches a new one.
+     * <p/>
+     * The token is only dropped if it is still the cached one, so any number of threads reporting the same rejected
+     * token cause a single re-fetch, and tokens younger than the minimum re-fetch interval are kept to protect the
+     * auth server from rejection loops.
+     *
+     * @param uri           the uri the token was obtained for
+     * @param rejectedToken the token that was rejected
+     * @return true if the token was dropped
+     */
+    public boolean invalidate(URI uri, Token rejectedToken) throws IOException {
+        final OAuthClientCredentials clientCredentials = getClientCredentialsFor(uri);
+        if (invalidate(clientCredentials, rejectedToken)) {
+            return true;
+        }
+
+        // the token may have come from the cache entry of a scope set
+        final Set<OAuthClientCredentials> scopedVariants = scopedCredentials.get(clientCredentials);
+        if (null != scopedVariants) {
+            for (OAuthClientCredentials scopedVariant : scopedVariants) {
+                if (invalidate(scopedVariant, rejectedToken)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param uri   the uri the token was obtained for
+     * @param token a token obtained earlier
+     * @return true if the token is still the cached one, i.e. it hasn't been dropped or replaced since
+     */
+    public boolean isCached(URI uri, Token token) throws IOException {
+        final OAuthClientCredentials clientCredentials = getClientCredentialsFor(uri);
+        if (isCached(clientCredentials, token)) {
+            return true;
+        }
+
+        final Set<OAuthClientCredentials> scopedVariants = scopedCredentials.get(clientCredentials);
+        if (null != scopedVariants) {
+            for (OAuthClientCredentials scopedVariant : scopedVariants) {
+                if (isCached(scopedVariant, token)) {
+                    return true;
                 }
-            } else {
-                throw new IOException("failed to acquire global lock in time");
+            }
+        }
+        return false;
+    }
+
+    private boolean isCached(OAuthClientCredentials clientCredentials, Token token) {
+        final OAuthTokenAttributes oauthTokenAttributes = peekTokenAttributes(clientCredentials);
+        return null != oauthTokenAttributes && oauthTokenAttributes.getToken() == token;
+    }
+
+    private boolean invalidate(OAuthClientCredentials clientCredentials, Token rejectedToken) throws IOException {
+        final OAuthTokenAttributes oauthTokenAttributes = peekTokenAttributes(clientCredentials);
+        if (null == oauthTokenAttributes || oauthTokenAttributes.getToken() != rejectedToken) {
+            return false;
+        }
+
+        final Lock oauthTokenAttributesLock = lockStripes.lockFor(clientCredentials);
+        try {
+            if (!oauthTokenAttributesLock.tryLock(10, TimeUnit.SECONDS)) {
+                throw new IOException("failed to acquire lock in time for " + clientCredentials.getAuthServerURI());
             }
         } catch (InterruptedException e) {
-            throw new IOException("error acquiring global lock", e);
+            throw new IOException("error acquiring lock for " + clientCredentials.getAuthServerURI(), e);
+        }
+
+        try {
+            final OAuthToken token = oauthTokenAttributes.getToken();
+            if (token != rejectedToken || clock.currentTimeMillis() - token.getCreationTime() < minRefetchInterval) {
+                return false;
+            }
+            oauthTokenAttributes.setToken(null);
+            return true;
         } finally {
-            lock.unlock();
+            oauthTokenAttributesLock.unlock();
         }
+    }
 
-        // now get the lock for the individual oauth server
-        Lock oauthTokenAttributesLock = oauthTokenAttributes.getLock();
+    /**
+     * Drops the cached tokens (including the scoped ones) of the given client credentials, e.g. because they were
+     * removed or changed. Tokens of other credentials are left alone. Fetches still in flight for them hand their
+     * token to the caller but don't cache it.
+     */
+    public void evictTokensFor(Collection<OAuthClientCredentials> clientCredentials) {
+        final List<OAuthClientCredentials> evicted = new ArrayList<>();
+        for (OAuthClientCredentials credentials : clientCredentials) {
+            evicted.add(credentials);
+            final Set<OAuthClientCredentials> scopedVariants = scopedCredentials.remove(credentials);
+            if (null != scopedVariants) {
+                evicted.addAll(scopedVariants);
+            }
+        }
+
+        for (OAuthClientCredentials credentials : evicted) {
+            baseCredentials.remove(credentials);
+            tokenCache.remove(credentials);
+            requestTemplates.remove(credentials);
+            clientAssertions.remove(credentials);
+        }
+    }
+
+    /**
+     * Drops the secrets of removed or rotated credentials from a {@link CachingClientSecretService}, so decrypted
+     * secrets that are no longer used don't stay in memory (or are wiped, if it wipes evicted secrets).
+     */
+    private void evictClientSecretsFor(Collection<OAuthClientCredentials> clientCredentials) {
+        if (clientSecretService instanceof CachingClientSecretService) {
+            for (OAuthClientCredentials credentials : clientCredentials) {
+                ((CachingClientSecretService) clientSecretService).invalidate(credentials);
+            }
+        }
+    }
+
+    /**
+     * Returns the pre-encoded request for the credentials, rebuilding it if the secret service handed out a
+     * different secret since it was built.
+     */
+    private TokenRequestTemplate getRequestTemplate(OAuthClientCredentials clientCredentials, String clientSecret) {
+        TokenRequestTemplate requestTemplate = requestTemplates.get(clientCredentials);
+        if (null == requestTemplate || !requestTemplate.isFor(clientSecret)) {
+            requestTemplate = TokenRequestTemplate.create(clientCredentials, clientSecret);
+            // don't bring back the template of credentials evicted while the fetch was in flight
+            if (tokenCache.containsKey(clientCredentials)) {
+                requestTemplates.put(clientCredentials, requestTemplate);
+            }
+        }
+        return requestTemplate;
+    }
+
+    private void registerScopedCredentials(OAuthClientCredentials clientCredentials, OAuthClientCredentials scopedCredentials) {
+        Set<OAuthClientCredentials> scopedVariants = this.scopedCredentials.get(clientCredentials);
+        if (null == scopedVariants) {
+            final Set<OAuthClientCredentials> newScopedVariants = Collections.newSetFromMap(new ConcurrentHashMap<OAuthClientCredentials, Boolean>());
+            scopedVariants = this.scopedCredentials.putIfAbsent(clientCredentials, newScopedVariants);
+            if (null == scopedVariants) {
+                scopedVariants = newScopedVariants;
+            }
+        }
+        scopedVariants.add(scopedCredentials);
+        baseCredentials.put(scopedCredentials, clientCredentials);
+    }
+
+    /**
+     * Obtains tokens for several uris at once. The uris are resolved to their client credentials first, so uris
+     * sharing credentials share a single token. Cached tokens are returned straight away and every missing or
+     * expired token is fetched in parallel on the prefetch executor, so the call takes as long as the slowest fetch
+     * rather than the sum of them.
+     *
+     * @param uris the uris to obtain tokens for
+     * @return the token for each uri, in the iteration order of {@code uris}
+     */
+    public Map<URI, Token> obtainTokensFor(Collection<URI> uris) throws IOException {
+        final Map<URI, OAuthClientCredentials> credentialsByUri = new LinkedHashMap<>();
+        final Set<OAuthClientCredentials> distinctCredentials = new LinkedHashSet<>();
+        for (URI uri : uris) {
+            final OAuthClientCredentials clientCredentials = getClientCredentialsFor(uri);
+            credentialsByUri.put(uri, clientCredentials);
+            distinctCredentials.add(clientCredentials);
+        }
+
+        // start a fetch for every missing token before waiting on any of them
+        for (OAuthClientCredentials clientCredentials : distinctCredentials) {
+            startFetchIfMissing(clientCredentials, getTokenAttributes(clientCredentials));
+        }
+
+        final Map<OAuthClientCredentials, Token> tokens = new HashMap<>();
+        for (OAuthClientCredentials clientCredentials : distinctCredentials) {
+            tokens.put(clientCredentials, obtainTokenFor(clientCredentials));
+        }
+
+        final Map<URI, Token> tokensByUri = new LinkedHashMap<>();
+        for (Map.Entry<URI, OAuthClientCredentials> entry : credentialsByUri.entrySet()) {
+            tokensByUri.put(entry.getKey(), tokens.get(entry.getValue()));
+        }
+        return tokensByUri;
+    }
+
+    private OAuthClientCredentials getClientCredentialsFor(URI uri) throws IOException {
+        try {
+            return clientCredentialsProvider.getClientCredentialsFor(uri);
+        } catch (ClientCredentialsNotFoundException e) {
+            throw new IOException("oauth configuration not found for uri", e);
+        }
+    }
+
+    /**
+     * Submits a fetch job for the credentials unless there is a usable token or a job already in flight. The
+     * job is picked up by {@link #obtainTokenFor(OAuthClientCredentials)} just like a prefetch.
+     */
+    private void startFetchIfMissing(OAuthClientCredentials clientCredentials, OAuthTokenAttributes oauthTokenAttributes) throws IOException {
+        final Lock oauthTokenAttributesLock = lockStripes.lockFor(clientCredentials);
         try {
-            // lock it with a timeout
             if (oauthTokenAttributesLock.tryLock(10, TimeUnit.SECONDS)) {
+                try {
+                    final OAuthToken token = oauthTokenAttributes.getToken();
+                    if ((null == token || token.hasExpired()) && null == oauthTokenAttributes.getJob()) {
+                        // if the refresh is rejected, obtainTokenFor fetches the token itself
+                        oauthTokenAttributes.setJob(submitRefresh(clientCredentials, token));
+                    }
+                } finally {
+                    oauthTokenAttributesLock.unlock();
+                }
+            }
+            // if the lock could not be taken someone else is already working on the token, obtainTokenFor waits for it
+        } catch (InterruptedException e) {
+            throw new IOException("error acquiring lock for " + clientCredentials.getAuthServerURI(), e);
+        }
+    }
 
-                // check to see if the token has expired
-                OAuthToken token = oauthTokenAttributes.getToken();
-                if (token == null || token.hasExpired()) {
+    private OAuthTokenAttributes peekTokenAttributes(OAuthClientCredentials clientCredentials) {
+        return tokenCache.get(clientCredentials);
+    }
+
+    private OAuthTokenAttributes getTokenAttributes(OAuthClientCredentials clientCredentials) {
+        OAuthTokenAttributes oauthTokenAttributes = tokenCache.get(clientCredentials);
+        if (null == oauthTokenAttributes) {
+            // entries carry no lock of their own, so whichever thread installs the entry first wins and the others use it
+            final OAuthTokenAttributes newOAuthTokenAttributes = OAuthTokenAttributes.newBuilder().build();
+            oauthTokenAttributes = tokenCache.putIfAbsent(clientCredentials, newOAuthTokenAttributes);
+            if (null == oauthTokenAttributes) {
+                oauthTokenAttributes = newOAuthTokenAttributes;
+                // the credentials may have been looked up just before a reload removed them, in which case the
+                // entry is used for this call only
+                if (hasBeenRemoved(clientCredentials)) {
+                    tokenCache.remove(clientCredentials, newOAuthTokenAttributes);
+                }
+            }
+        }
+        return oauthTokenAttributes;
+    }
 
-                    // it has expired, so check if we have a prefetch job in progress, if so wait for it
-                    final Future<OAuthToken> inFlightJob = oauthTokenAttributes.getJob();
+    /**
+     * @return true if the credentials (or the credentials they are a scoped variant of) are no longer offered by a
+     * reloading provider. Reloads swap the credentials in before evicting the removed ones, so an entry installed
+     * before this check is evicted by the reload and one installed after it is removed by the caller.
+     */
+    private boolean hasBeenRemoved(OAuthClientCredentials clientCredentials) {
+        if (null == credentialsListener) {
+            return false;
+        }
 
-                    if (null != inFlightJob) {
-                        token = inFlightJob.get();
-                        oauthTokenAttributes.clearJob();
+        // evicting the base credentials also forgets their scoped variants, which then count as removed
+        final OAuthClientCredentials base = baseCredentials.get(clientCredentials);
+        return !((ReloadingOAuthClientCredentialsProvider) clientCredentialsProvider).contains(null == base ? clientCredentials : base);
+    }
+
+    private Token obtainTokenFor(OAuthClientCredentials clientCredentials) throws IOException {
+        return obtainTokenFor(clientCredentials, null);
+    }
+
+    /**
+     * The lock only guards reading the token and installing or reading the job that fetches it. It is released
+     * before the auth server is called or a job is waited for, as the striped locks are shared with unrelated
+     * credentials and a hung auth server must not hold up anyone else's tokens.
+     *
+     * @param deadline when to give up, or null to wait up to 10 seconds for the lock and as long as the auth server
+     *                 takes for the token
+     */
+    private Token obtainTokenFor(OAuthClientCredentials clientCredentials, Deadline deadline) throws IOException {
+        final OAuthTokenAttributes oauthTokenAttributes = getTokenAttributes(clientCredentials);
+
+        // now get the lock for the individual oauth server
+        final Lock oauthTokenAttributesLock = lockStripes.lockFor(clientCredentials);
+        try {
+            boolean refetched = false;
+            while (true) {
+                final Future<OAuthToken> inFlightJob;
+                FutureTask<OAuthToken> ownJob = null;
+
+                // lock it with a timeout
+                final boolean locked = null == deadline
+                        ? oauthTokenAttributesLock.tryLock(10, TimeUnit.SECONDS)
+                        : oauthTokenAttributesLock.tryLock(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                if (!locked) {
+                    if (null != deadline) {
+                        return timedOut(clientCredentials, oauthTokenAttributes, null);
+                    }
+                    throw new IOException("failed to acquire lock in time for " + clientCredentials.getAuthServerURI());
+                }
+                try {
+                    // check to see if the token has expired
+                    final OAuthToken cachedToken = oauthTokenAttributes.getToken();
+                    if (null != cachedToken && !cachedToken.hasExpired()) {
+                        prefetchIfDue(clientCredentials, oauthTokenAttributes, cachedToken);
+                        return cachedToken;
                     }
 
-                    // token could have been replaced by prefetch job, so check to make sure that it has not expired
-                    if (null == token || token.hasExpired()) {
-                        final OAuthTokenRequestTask oauthTokenRequestTask = new OAuthTokenRequestTask(clientCredentials, httpConnectionPool, objectMapper, clientSecretService);
-                        token = oauthTokenRequestTask.call();
+                    // it has expired, so wait for the job in progress or install our own, renewing with the refresh
+                    // token of whichever token we last had
+                    if (null != oauthTokenAttributes.getJob()) {
+                        inFlightJob = oauthTokenAttributes.getJob();
+                    } else {
+                        ownJob = new FutureTask<>(new OAuthTokenRequestTask(clientCredentials, cachedToken, deadline));
+                        oauthTokenAttributes.setJob(ownJob);
+                        inFlightJob = ownJob;
                     }
+                } finally {
+                    oauthTokenAttributesLock.unlock();
                 }
 
-                // now set the valid token
-                oauthTokenAttributes.setToken(token);
+                if (null != ownJob) {
+                    ownJob.run();
+                }
 
-                // and if we are close to expiry, start a job to get it
-                if (this.prefetchTimeout > token.getRemainingTime() && null == oauthTokenAttributes.getJob()) {
-                    final OAuthTokenRequestTask oauthTokenRequestTask = new OAuthTokenRequestTask(clientCredentials, httpConnectionPool, objectMapper, clientSecretService);
-                    final Future<OAuthToken> job = executorService.submit(oauthTokenRequestTask);
-                    oauthTokenAttributes.setJob(job);
+                final OAuthToken token;
+                try {
+                    token = null == deadline
+                            ? inFlightJob.get()
+                            : inFlightJob.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    // leave the job in place, a later caller picks up its token
+                    return timedOut(clientCredentials, oauthTokenAttributes, e);
+                } catch (ExecutionException e) {
+                    // a failed job must not stick to the entry
+                    complete(oauthTokenAttributesLock, clientCredentials, oauthTokenAttributes, inFlightJob, null);
+                    if (null != deadline && deadline.hasPassed()) {
+                        return timedOut(clientCredentials, oauthTokenAttributes, e.getCause());
+                    }
+                    if (null != ownJob || refetched) {
+                        throw rethrow(e);
+                    }
+                    // somebody else's job failed, fetch the token again ourselves
+                    refetched = true;
+                    continue;
                 }
 
-                return token;
-            } else {
-                throw new IOException("failed to acquire lock in time for " + clientCredentials.getAuthServerURI());
+                final OAuthToken completedToken = complete(oauthTokenAttributesLock, clientCredentials, oauthTokenAttributes, inFlightJob, token);
+                if (completedToken.hasExpired() && null == ownJob && !refetched) {
+                    // a prefetch that finished too long ago, fetch the token again with its refresh token
+                    refetched = true;
+                    continue;
+                }
+                return completedToken;
             }
+        } catch (TokenTimeoutException e) {
+            throw e;
         } catch (IOException e) {
             throw new IOException("Could not get authorisation from server", e);
         } catch (InterruptedException e) {
             throw new IOException("error acquiring lock for " + clientCredentials.getAuthServerURI(), e);
-        } catch (ExecutionException e) {
-            throw new IOException("error requesting oauth token", e);
         } catch (ClientSecretException e) {
             throw new IOException("error obtaining client secret", e);
+        }
+    }
+
+    /**
+     * Clears the finished job from the entry and stores its token, unless another caller already did.
+     *
+     * @param token the job's token, null if it failed
+     * @return the entry's token
+     */
+    private OAuthToken complete(Lock oauthTokenAttributesLock, OAuthClientCredentials clientCredentials,
+                                OAuthTokenAttributes oauthTokenAttributes, Future<OAuthToken> job, OAuthToken token) {
+        // only held for a moment by anyone, so no need for a timeout
+        oauthTokenAttributesLock.lock();
+        try {
+            if (job != oauthTokenAttributes.getJob()) {
+                // another caller waiting on the same job got here first
+                final OAuthToken cachedToken = oauthTokenAttributes.getToken();
+                return null != cachedToken && !cachedToken.hasExpired() ? cachedToken : token;
+            }
+            oauthTokenAttributes.clearJob();
+            if (null == token || tokenCache.get(clientCredentials) != oauthTokenAttributes) {
+                // evicted while the job was in flight, the token is the caller's only
+                return token;
+            }
+
+            // now set the valid token, warming up a connection ahead of the refresh if it is a new one
+            if (token != oauthTokenAttributes.getToken()) {
+                schedulePrewarm(clientCredentials, token);
+            }
+            oauthTokenAttributes.setToken(token);
+            if (!token.hasExpired()) {
+                prefetchIfDue(clientCredentials, oauthTokenAttributes, token);
+            }
+            return token;
         } finally {
             oauthTokenAttributesLock.unlock();
         }
     }
 
+    /**
+     * Starts a job to get the next token if this one is close to expiry. Called with the entry's lock held.
+     */
+    private void prefetchIfDue(OAuthClientCredentials clientCredentials, OAuthTokenAttributes oauthTokenAttributes, OAuthToken token) {
+        if (this.prefetchTimeout > token.getRemainingTime() && null == oauthTokenAttributes.getJob()) {
+            // a rejected prefetch is tried again by the next request for the token
+            oauthTokenAttributes.setJob(submitRefresh(clientCredentials, token));
+        }
+    }
+
+    private static IOException rethrow(ExecutionException e) throws IOException, ClientSecretException {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof ClientSecretException) {
+            throw (ClientSecretException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException("error requesting oauth token", cause);
+    }
+
+    /**
+     * Called when a deadline passes before a token could be obtained.
+     *
+     * @return the cached token, if it has only expired on our side (its expiry skew hasn't passed yet)
+     * @throws TokenTimeoutException if there is no such token
+     */
+    private OAuthToken timedOut(OAuthClientCredentials clientCredentials, OAuthTokenAttributes oauthTokenAttributes, Throwable cause) throws TokenTimeoutException {
+        final OAuthToken token = oauthTokenAttributes.getToken();
+        if (null != token && !token.hasExpiredOnServer()) {
+            return token;
+        }
+        throw new TokenTimeoutException("no token from " + clientCredentials.getAuthServerURI() + " within the deadline", cause);
+    }
+
+    /**
+     * Submits a refresh to the bulkhead of the credentials' auth server, or to the prefetch executor.
+     *
+     * @return the refresh job, or null if it was rejected because the bulkhead is full or the service is closing
+     */
+    private Future<OAuthToken> submitRefresh(OAuthClientCredentials clientCredentials, OAuthToken previousToken) {
+        final OAuthTokenRequestTask oauthTokenRequestTask = new OAuthTokenRequestTask(clientCredentials, previousToken);
+        try {
+            if (null != refreshBulkheads && null != clientCredentials.getAuthServerURI()) {
+                return refreshBulkheads.submit(clientCredentials.getAuthServerURI(), oauthTokenRequestTask);
+            }
+            return executorService.submit(oauthTokenRequestTask);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the queue depth, activity and rejections of every auth server's bulkhead, empty unless the service was
+     * built with {@link Builder#bulkheadThreads(int)}
+     */
+    public List<BulkheadStatistics> getBulkheadStatistics() {
+        return null == refreshBulkheads ? Collections.<BulkheadStatistics>emptyList() : refreshBulkheads.getStatistics();
+    }
+
+    /**
+     * Schedules a connection to the auth server to be opened shortly before the token becomes due for prefetch,
+     * so only the token request itself is left on the refresh path.
+     */
+    private void schedulePrewarm(final OAuthClientCredentials clientCredentials, OAuthToken token) {
+        if (null == prewarmScheduler || null == clientCredentials.getAuthServerURI()) {
+            return;
+        }
+
+        final long delay = Math.max(0, token.getRemainingTime() - prefetchTimeout - connectionPrewarmTime);
+        try {
+            prewarmScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        httpConnectionPool.prewarm(clientCredentials.getAuthServerURI());
+                    } catch (IOException | RuntimeException e) {
+                        // best effort only, the refresh itself will open a connection if this one failed
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the service is being closed
+        }
+    }
+
+    /**
+     * @param authServerURI the auth server
+     * @return the estimated auth server clock minus our clock (in milliseconds), zero until a response with a Date
+     * header has been seen
+     */
+    public long getServerClockOffset(URI authServerURI) {
+        final Long offset = serverClockOffsets.get(authServerURI);
+        return null == offset ? 0 : offset;
+    }
+
+    /**
+     * Estimates the auth server clock offset from the Date header of its response. The header only has second
+     * precision, so the middle of that second is taken as the server time.
+     */
+    private long estimateServerClockOffset(URI authServerURI, HttpResponse httpResponse) {
+        final Header dateHeader = httpResponse.getFirstHeader(HttpHeaders.DATE);
+        final Date serverDate = null == dateHeader ? null : DateUtils.parseDate(dateHeader.getValue());
+        if (null == serverDate || null == authServerURI) {
+            return getServerClockOffset(authServerURI);
+        }
+
+        final long offset = serverDate.getTime() + 500 - clock.currentTimeMillis();
+        serverClockOffsets.put(authServerURI, offset);
+        return offset;
+    }
+
+    /**
+     * Stops accepting prefetch jobs and waits for the ones in flight to finish before releasing the prefetch threads.
+     */
+    @Override
+    public void close() throws IOException {
+        if (null != credentialsListener) {
+            ((ReloadingOAuthClientCredentialsProvider) clientCredentialsProvider).removeListener(credentialsListener);
+        }
+        if (null != prewarmScheduler) {
+            prewarmScheduler.shutdownNow();
+        }
+        clientAssertions.close();
+        executorService.shutdown();
+        if (null != refreshBulkheads) {
+            refreshBulkheads.shutdown();
+        }
+        try {
+            if (!executorService.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                executorService.shutdownNow();
+            }
+            if (null != refreshBulkheads && !refreshBulkheads.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                refreshBulkheads.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            if (null != refreshBulkheads) {
+                refreshBulkheads.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
     ObjectMapper getObjectMapper() {
         return objectMapper;
     }
@@ -193,57 +885,290 @@ public class OAuthTokenService implements TokenService {
         return tokenCache;
     }
 
-    void setLock(Lock lock) {
-        this.lock = lock;
+    LockStripes getLockStripes() {
+        return lockStripes;
     }
 
     ExecutorService getExecutorService() {
         return executorService;
     }
 
+    void setLockStripes(LockStripes lockStripes) {
+        this.lockStripes = lockStripes;
+    }
+
     void setExecutorService(ExecutorService executorService) {
         this.executorService = executorService;
     }
 
-    private static final class OAuthTokenRequestTask implements Callable<OAuthToken> {
-        private OAuthClientCredentials clientCredentials;
-        private HttpConnectionPool httpConnectionPool;
-        private ObjectMapper objectMapper;
+    void setPrewarmScheduler(ScheduledExecutorService prewarmScheduler) {
+        this.prewarmScheduler = prewarmScheduler;
+    }
+
+    public static final class Builder {
+        private HttpConnectionFactory httpConnectionFactory;
+        private HttpConnectionConfig httpConnectionConfig;
+        private int prefetchPoolSize;
+        private int prefetchTimeout;
+        private ClientCredentialsProvider<OAuthClientCredentials> clientCredentialsProvider;
         private ClientSecretService clientSecretService;
+        private long connectionPrewarmTime;
+        private boolean decodeJwtExpiry;
+        private boolean compactTokens;
+        private long minRefetchInterval = DEFAULT_MIN_REFETCH_INTERVAL;
+        private TokenClock clock = MonotonicClock.INSTANCE;
+        private int lockStripes = DEFAULT_LOCK_STRIPES;
+        private int bulkheadThreads;
+        private int bulkheadQueueSize = DEFAULT_BULKHEAD_QUEUE_SIZE;
+        private CachingDnsResolver dnsResolver;
+
+        private Builder() {
+        }
+
+        public Builder httpConnectionFactory(HttpConnectionFactory val) {
+            httpConnectionFactory = val;
+            return this;
+        }
+
+        public Builder httpConnectionConfig(HttpConnectionConfig val) {
+            httpConnectionConfig = val;
+            return this;
+        }
+
+        public Builder prefetchPoolSize(int val) {
+            prefetchPoolSize = val;
+            return this;
+        }
+
+        /**
+         * @param val the prefetch buffer (in milliseconds)
+         */
+        public Builder prefetchTimeout(int val) {
+            prefetchTimeout = val;
+            return this;
+        }
+
+        public Builder clientCredentialsProvider(ClientCredentialsProvider<OAuthClientCredentials> val) {
+            clientCredentialsProvider = val;
+            return this;
+        }
+
+        public Builder clientSecretService(ClientSecretService val) {
+            clientSecretService = val;
+            return this;
+        }
+
+        /**
+         * @param val how long (in milliseconds) before a token becomes due for prefetch to open a connection to its
+         *            auth server. Zero (the default) disables pre-warming.
+         */
+        public Builder connectionPrewarmTime(long val) {
+            connectionPrewarmTime = val;
+            return this;
+        }
 
-        public OAuthTokenRequestTask(OAuthClientCredentials clientCredentials, HttpConnectionPool httpConnectionPool, ObjectMapper objectMapper, ClientSecretService clientSecretService) {
+        /**
+         * @param val take token expiry from the exp claim of JWT access tokens instead of expires_in, see
+         *            {@link OAuthToken.Builder#decodeJwtExpiry(boolean)}
+         */
+        public Builder decodeJwtExpiry(boolean val) {
+            decodeJwtExpiry = val;
+            return this;
+        }
+
+        /**
+         * @param val cache tokens in their compact form, see {@link OAuthToken.Builder#compact(boolean)}. Worth it
+         *            for large numbers of long (JWT) tokens, at the cost of a String per {@link Token#getValue()}.
+         */
+        public Builder compactTokens(boolean val) {
+            compactTokens = val;
+            return this;
+        }
+
+        /**
+         * @param val how old (in milliseconds) a token must be before {@link #invalidate(URI, Token)} drops it,
+         *            {@link #DEFAULT_MIN_REFETCH_INTERVAL} by default
+         */
+        public Builder minRefetchInterval(long val) {
+            minRefetchInterval = val;
+            return this;
+        }
+
+        /**
+         * @param val the clock for token creation and expiry, {@link MonotonicClock} by default. A
+         *            {@link CoarseClock} makes expiry checks cheaper on the hot path.
+         */
+        public Builder clock(TokenClock val) {
+            clock = val;
+            return this;
+        }
+
+        /**
+         * @param val the number of locks shared by all cache entries to serialise their refreshes,
+         *            {@link #DEFAULT_LOCK_STRIPES} by default. Credentials landing on the same stripe wait for each
+         *            other's synchronous fetches.
+         */
+        public Builder lockStripes(int val) {
+            lockStripes = val;
+            return this;
+        }
+
+        /**
+         * @param val the number of refresh threads per auth server. Zero (the default) runs every refresh on the
+         *            shared prefetch executor.
+         */
+        public Builder bulkheadThreads(int val) {
+            bulkheadThreads = val;
+            return this;
+        }
+
+        /**
+         * @param val how many refreshes may wait for a thread per auth server, {@link #DEFAULT_BULKHEAD_QUEUE_SIZE}
+         *            by default. Refreshes beyond that are dropped: a prefetch is tried again by the next request
+         *            and an expired token is fetched on the requesting thread.
+         */
+        public Builder bulkheadQueueSize(int val) {
+            bulkheadQueueSize = val;
+            return this;
+        }
+
+        /**
+         * @param val the resolver the {@link HttpConnectionFactory} was built with. With a
+         *            {@link ReloadingOAuthClientCredentialsProvider}, the auth server hosts of all credentials are
+         *            pre-resolved when the service is built and whenever a reload adds credentials, and stay cached
+         *            however long they go between refreshes.
+         */
+        public Builder dnsResolver(CachingDnsResolver val) {
+            dnsResolver = val;
+            return this;
+        }
+
+        public OAuthTokenService build() {
+            return new OAuthTokenService(this);
+        }
+    }
+
+    /**
+     * @return the smaller of an http timeout (where zero or less means none) and the time left
+     */
+    private static int cap(int timeout, int remaining) {
+        return timeout > 0 ? Math.min(timeout, remaining) : remaining;
+    }
+
+    /**
+     * Requests a token for the given client credentials using the pool, secret service and parsing settings of the
+     * enclosing service. If the previous token came with a refresh token, renewal uses the refresh_token grant first
+     * and falls back to the full grant if the auth server rejects it.
+     */
+    private final class OAuthTokenRequestTask implements Callable<OAuthToken> {
+        private final OAuthClientCredentials clientCredentials;
+        private final OAuthToken previousToken;
+        private final Deadline deadline;
+
+        private OAuthTokenRequestTask(OAuthClientCredentials clientCredentials, OAuthToken previousToken) {
+            this(clientCredentials, previousToken, null);
+        }
+
+        /**
+         * @param deadline caps the time spent getting a connection, connecting and waiting for data, null for the
+         *                 timeouts of the connection pool
+         */
+        private OAuthTokenRequestTask(OAuthClientCredentials clientCredentials, OAuthToken previousToken, Deadline deadline) {
             this.clientCredentials = clientCredentials;
-            this.httpConnectionPool = httpConnectionPool;
-            this.objectMapper = objectMapper;
-            this.clientSecretService = clientSecretService;
+            this.previousToken = previousToken;
+            this.deadline = deadline;
         }
 
         @Override
         public OAuthToken call() throws IOException, ClientSecretException {
-            final HttpClient httpClient = this.httpConnectionPool.getHttpClient();
+            // private_key_jwt clients authenticate with a signed assertion rather than a secret
+            final boolean assertion = clientCredentials.getClientAuthenticationMethod() == ClientAuthenticationMethod.PRIVATE_KEY_JWT;
+            final String clientSecret = assertion ? null : clientSecretService.obtainClientSecret(clientCredentials);
+            final String clientAssertion = assertion ? clientAssertions.getAssertion(clientCredentials) : null;
+            final TokenRequestTemplate requestTemplate = getRequestTemplate(clientCredentials, clientSecret);
 
-            final List<NameValuePair> urlParameters = new ArrayList<>();
-            urlParameters.add(new BasicNameValuePair(KEY_CLIENT_ID, clientCredentials.getClientId()));
+            if (null != previousToken && null != previousToken.getRefreshToken()) {
+                final OAuthToken refreshedToken = refresh(requestTemplate, previousToken.getRefreshToken(), clientAssertion);
+                if (null != refreshedToken) {
+                    return refreshedToken;
+                }
+            }
 
-            String clientSecret = clientSecretService.obtainClientSecret(clientCredentials);
+            final HttpPost httpPost = new HttpPost(clientCredentials.getAuthServerURI());
+            requestTemplate.applyTo(httpPost, clientAssertion);
+            applyDeadline(httpPost);
+            return parse(httpConnectionPool.getHttpClient().execute(httpPost), null);
+        }
 
-            urlParameters.add(new BasicNameValuePair(KEY_CLIENT_SECRET, clientSecret));
-            urlParameters.add(new BasicNameValuePair(KEY_GRANT_TYPE, clientCredentials.getGrantType()));
+        /**
+         * Caps the request's timeouts at the time left. The socket timeout bounds each read, not the whole response.
+         */
+        private void applyDeadline(HttpPost httpPost) throws TokenTimeoutException {
+            if (null == deadline) {
+                return;
+            }
+            if (deadline.hasPassed()) {
+                throw new TokenTimeoutException("deadline passed before requesting a token from " + clientCredentials.getAuthServerURI());
+            }
 
+            final int remaining = deadline.remainingMillis();
+            final RequestConfig poolConfig = httpConnectionPool.getRequestConfig();
+            final RequestConfig.Builder requestConfig = null == poolConfig ? RequestConfig.custom() : RequestConfig.copy(poolConfig);
+            httpPost.setConfig(requestConfig
+                    .setConnectionRequestTimeout(remaining)
+                    .setConnectTimeout(cap(null == poolConfig ? 0 : poolConfig.getConnectTimeout(), remaining))
+                    .setSocketTimeout(cap(null == poolConfig ? 0 : poolConfig.getSocketTimeout(), remaining))
+                    .build());
+        }
+
+        /**
+         * @return the renewed token, or null if the refresh token was rejected
+         * @throws TokenRequestException if the auth server failed the refresh for any other reason, e.g. because it
+         *                               is throttling (429) or unavailable (5xx). Falling back on the full grant,
+         *                               which servers usually throttle harder, would only add to its load.
+         */
+        private OAuthToken refresh(TokenRequestTemplate requestTemplate, String refreshToken, String clientAssertion) throws IOException {
             final HttpPost httpPost = new HttpPost(clientCredentials.getAuthServerURI());
-            httpPost.setEntity(new UrlEncodedFormEntity(urlParameters));
-
-            final HttpResponse httpResponse = httpClient.execute(httpPost);
-            final HttpEntity entity = httpResponse.getEntity();
-            final String content = IOUtils.toString(entity.getContent());
-            final ServerOAuthToken serverToken = this.objectMapper.readValue(content, ServerOAuthToken.class);
-            final OAuthToken token = OAuthToken.newBuilder()
-                    .accessToken(serverToken.getAccessToken())
-                    .tokenType(serverToken.getTokenType())
-                    .expiresIn(serverToken.getExpiresIn())
-                    .build();
+            requestTemplate.applyRefreshTo(httpPost, refreshToken, clientAssertion);
+            applyDeadline(httpPost);
 
-            return token;
+            final HttpResponse httpResponse = httpConnectionPool.getHttpClient().execute(httpPost);
+            try {
+                return parse(httpResponse, refreshToken);
+            } catch (TokenRequestException e) {
+                if (isRejectedGrant(e)) {
+                    // the refresh token expired or was revoked
+                    return null;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * @return true for invalid_grant answers, and for 400 and 401 answers that don't say what was wrong
+         */
+        private boolean isRejectedGrant(TokenRequestException e) {
+            if (null != e.getError()) {
+                return "invalid_grant".equals(e.getError());
+            }
+            return e.getStatusCode() == HttpStatus.SC_BAD_REQUEST || e.getStatusCode() == HttpStatus.SC_UNAUTHORIZED;
+        }
+
+        /**
+         * @param refreshToken the refresh token to carry over if the response doesn't issue a new one
+         * @throws TokenRequestException if the response has an error status or no access token
+         */
+        private OAuthToken parse(HttpResponse httpResponse, String refreshToken) throws IOException {
+            final OAuthToken.Builder tokenBuilder = OAuthToken.newBuilder()
+                    .clock(clock)
+                    .refreshToken(refreshToken)
+                    .scopes(clientCredentials.getScopes())
+                    .expirySkew(null != clientCredentials.getExpirySkew() ? clientCredentials.getExpirySkew() : OAuthToken.DEFAULT_EXPIRY_SKEW_SECONDS)
+                    .serverClockOffset(estimateServerClockOffset(clientCredentials.getAuthServerURI(), httpResponse))
+                    .decodeJwtExpiry(decodeJwtExpiry)
+                    .compact(compactTokens);
+            return new OAuthTokenResponseParser(objectMapper.getFactory())
+                    .parse(httpResponse.getStatusLine().getStatusCode(), httpResponse.getEntity(), tokenBuilder);
         }
     }
 }
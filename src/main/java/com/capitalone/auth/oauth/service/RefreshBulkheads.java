@@ -0,0 +1,145 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.factory.DaemonThreadFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One small executor with a bounded queue per auth server, so a slow or hung auth server can only tie up its own
+ * refresh threads and the refreshes for healthy servers keep running.
+ * <p/>
+ * Refreshes that find the queue of their server full are rejected (and counted) rather than queued without bound or
+ * run on the caller's thread. Threads are started on demand and time out when their server is idle.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+final class RefreshBulkheads {
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+
+    private final int threads;
+    private final int queueSize;
+    private final ConcurrentMap<URI, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private volatile boolean shutdown;
+
+    RefreshBulkheads(int threads, int queueSize) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("bulkhead threads and queue size must be positive");
+        }
+        this.threads = threads;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue of the auth server is full or the bulkheads are shut down
+     */
+    <T> Future<T> submit(URI authServerURI, Callable<T> task) {
+        return bulkheadFor(authServerURI).executor.submit(task);
+    }
+
+    List<BulkheadStatistics> getStatistics() {
+        final List<BulkheadStatistics> statistics = new ArrayList<>();
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            statistics.add(bulkhead.statistics());
+        }
+        return Collections.unmodifiableList(statistics);
+    }
+
+    void shutdown() {
+        shutdown = true;
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.executor.shutdown();
+        }
+    }
+
+    void shutdownNow() {
+        shutdown = true;
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true if every bulkhead finished its refreshes within the timeout
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            if (!bulkhead.executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Bulkhead bulkheadFor(URI authServerURI) {
+        Bulkhead bulkhead = bulkheads.get(authServerURI);
+        if (null == bulkhead) {
+            // an executor starts no threads until its first task, so losing a race costs next to nothing
+            final Bulkhead newBulkhead = new Bulkhead(authServerURI);
+            bulkhead = bulkheads.putIfAbsent(authServerURI, newBulkhead);
+            if (null == bulkhead) {
+                bulkhead = newBulkhead;
+                if (shutdown) {
+                    // raced with shutdown, don't leave this one behind running
+                    newBulkhead.executor.shutdown();
+                }
+            } else {
+                newBulkhead.executor.shutdown();
+            }
+        }
+        return bulkhead;
+    }
+
+    private final class Bulkhead {
+        private final URI authServerURI;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong rejected = new AtomicLong();
+
+        private Bulkhead(URI authServerURI) {
+            this.authServerURI = authServerURI;
+            this.executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    new DaemonThreadFactory("oauth-refresh-" + (null == authServerURI ? "default" : authServerURI.getHost())),
+                    new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                            if (!executor.isShutdown()) {
+                                rejected.incrementAndGet();
+                            }
+                            throw new RejectedExecutionException("refresh queue full for " + Bulkhead.this.authServerURI);
+                        }
+                    });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        private BulkheadStatistics statistics() {
+            return new BulkheadStatistics(authServerURI, executor.getQueue().size(), executor.getActiveCount(),
+                    executor.getCompletedTaskCount(), rejected.get());
+        }
+    }
+}
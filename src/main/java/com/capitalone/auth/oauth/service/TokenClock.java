@@ -0,0 +1,26 @@
+package com.capitalone.auth.oauth.service;
+
+/**
+ * The time source used for token creation and expiry checks. Implementations should not jump when the wall clock
+ * is corrected, otherwise a correction can make every cached token look expired at once.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public interface TokenClock {
+
+    /**
+     * @return the current time in milliseconds since the epoch, as seen by this clock
+     */
+    long currentTimeMillis();
+}
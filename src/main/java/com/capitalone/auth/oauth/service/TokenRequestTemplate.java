@@ -0,0 +1,208 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.framework.ClientAuthenticationMethod;
+import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pre-encoded parts of a token request for one set of client credentials and one version of their secret.
+ * <p/>
+ * The form body (and, for {@link ClientAuthenticationMethod#CLIENT_SECRET_BASIC}, the Authorization header) is
+ * encoded once and every request sends the same bytes through a repeatable entity. A template is only valid for the
+ * secret it was built with, {@link #isFor(String)} tells when it has to be rebuilt. For
+ * {@link ClientAuthenticationMethod#PRIVATE_KEY_JWT} the body is re-encoded only when the client assertion changes.
+ * <p/>
+ * The secret itself is not kept: only the encoded header or form parameters that carry it, and a SHA-256 digest to
+ * recognise it by.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+final class TokenRequestTemplate {
+
+    // the same encoding UrlEncodedFormEntity used by default
+    static final ContentType FORM_CONTENT_TYPE = ContentType.create(URLEncodedUtils.CONTENT_TYPE, Consts.ISO_8859_1);
+
+    private final byte[] secretDigest;
+    private final String grantType;
+    private final String scope;
+    private final ClientAuthenticationMethod clientAuthenticationMethod;
+    private final Header authorization;
+    // the form-encoded client_id and client_secret, for CLIENT_SECRET_POST only
+    private final byte[] clientAuthentication;
+    private final byte[] body;
+    private volatile AssertionBody assertionBody;
+
+    private TokenRequestTemplate(OAuthClientCredentials clientCredentials, String clientSecret) {
+        this.secretDigest = digest(clientSecret);
+        this.grantType = clientCredentials.getGrantType();
+        this.scope = clientCredentials.getScopes().isEmpty() ? null : StringUtils.join(clientCredentials.getScopes(), ' ');
+        this.clientAuthenticationMethod = clientCredentials.getClientAuthenticationMethod();
+        this.authorization = clientAuthenticationMethod == ClientAuthenticationMethod.CLIENT_SECRET_BASIC
+                ? basicAuthorization(clientCredentials.getClientId(), clientSecret)
+                : null;
+        this.clientAuthentication = clientAuthenticationMethod == ClientAuthenticationMethod.CLIENT_SECRET_POST
+                ? encodeClientAuthentication(clientCredentials.getClientId(), clientSecret)
+                : null;
+        this.body = clientAuthenticationMethod == ClientAuthenticationMethod.PRIVATE_KEY_JWT ? null : encodeBody(null);
+    }
+
+    /**
+     * @param clientSecret the secret, or null for {@link ClientAuthenticationMethod#PRIVATE_KEY_JWT}
+     */
+    static TokenRequestTemplate create(OAuthClientCredentials clientCredentials, String clientSecret) {
+        return new TokenRequestTemplate(clientCredentials, clientSecret);
+    }
+
+    /**
+     * RFC 6749 section 2.3.1: client id and secret are form-url-encoded before being joined and base64 encoded.
+     */
+    static Header basicAuthorization(String clientId, String clientSecret) {
+        try {
+            final String userPass = URLEncoder.encode(clientId, "UTF-8") + ":" + URLEncoder.encode(clientSecret, "UTF-8");
+            return new BasicHeader(HttpHeaders.AUTHORIZATION, "Basic " + Base64.encodeBase64String(userPass.getBytes(Consts.UTF_8)));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    boolean isFor(String clientSecret) {
+        final byte[] digest = digest(clientSecret);
+        return null == digest ? null == secretDigest : null != secretDigest && MessageDigest.isEqual(digest, secretDigest);
+    }
+
+    private static byte[] digest(String clientSecret) {
+        return null == clientSecret ? null : DigestUtils.sha256(clientSecret);
+    }
+
+    /**
+     * Sets the pre-encoded body (through a new entity over the shared bytes, which are never written to) and, if
+     * needed, the Authorization header on the request.
+     *
+     * @param clientAssertion the signed client assertion for {@link ClientAuthenticationMethod#PRIVATE_KEY_JWT},
+     *                        null otherwise
+     */
+    void applyTo(HttpPost httpPost, String clientAssertion) {
+        httpPost.setEntity(new ByteArrayEntity(bodyFor(clientAssertion), FORM_CONTENT_TYPE));
+        if (null != authorization) {
+            httpPost.setHeader(authorization);
+        }
+    }
+
+    /**
+     * Turns the request into a refresh_token grant (RFC 6749 section 6), authenticated like the full grant. The
+     * refresh token changes between requests, so this body is encoded per request.
+     */
+    void applyRefreshTo(HttpPost httpPost, String refreshToken, String clientAssertion) {
+        final List<NameValuePair> urlParameters = new ArrayList<>();
+        addClientAuthentication(urlParameters, clientAssertion);
+        urlParameters.add(new BasicNameValuePair(OAuthTokenService.KEY_GRANT_TYPE, OAuthTokenService.GRANT_TYPE_REFRESH_TOKEN));
+        urlParameters.add(new BasicNameValuePair(OAuthTokenService.KEY_REFRESH_TOKEN, refreshToken));
+        addScope(urlParameters);
+
+        httpPost.setEntity(new ByteArrayEntity(encode(urlParameters), FORM_CONTENT_TYPE));
+        if (null != authorization) {
+            httpPost.setHeader(authorization);
+        }
+    }
+
+    private byte[] bodyFor(String clientAssertion) {
+        if (null != body) {
+            return body;
+        }
+
+        // assertions are reused for a while, so keep the body of the current one
+        AssertionBody current = assertionBody;
+        if (null == current || !current.clientAssertion.equals(clientAssertion)) {
+            current = new AssertionBody(clientAssertion, encodeBody(clientAssertion));
+            assertionBody = current;
+        }
+        return current.body;
+    }
+
+    private byte[] encodeBody(String clientAssertion) {
+        final List<NameValuePair> urlParameters = new ArrayList<>();
+        addClientAuthentication(urlParameters, clientAssertion);
+        urlParameters.add(new BasicNameValuePair(OAuthTokenService.KEY_GRANT_TYPE, grantType));
+        addScope(urlParameters);
+        return encode(urlParameters);
+    }
+
+    /**
+     * Adds the client assertion for {@link ClientAuthenticationMethod#PRIVATE_KEY_JWT}. The other methods send the
+     * pre-encoded Authorization header or {@link #clientAuthentication} instead.
+     */
+    private void addClientAuthentication(List<NameValuePair> urlParameters, String clientAssertion) {
+        if (clientAuthenticationMethod == ClientAuthenticationMethod.PRIVATE_KEY_JWT) {
+            urlParameters.add(new BasicNameValuePair(OAuthTokenService.KEY_CLIENT_ASSERTION_TYPE, ClientAssertionCache.ASSERTION_TYPE));
+            urlParameters.add(new BasicNameValuePair(OAuthTokenService.KEY_CLIENT_ASSERTION, clientAssertion));
+        }
+    }
+
+    private static byte[] encodeClientAuthentication(String clientId, String clientSecret) {
+        final List<NameValuePair> urlParameters = new ArrayList<>();
+        urlParameters.add(new BasicNameValuePair(OAuthTokenService.KEY_CLIENT_ID, clientId));
+        urlParameters.add(new BasicNameValuePair(OAuthTokenService.KEY_CLIENT_SECRET, clientSecret));
+        return URLEncodedUtils.format(urlParameters, Consts.ISO_8859_1).getBytes(Consts.ISO_8859_1);
+    }
+
+    private void addScope(List<NameValuePair> urlParameters) {
+        if (null != scope) {
+            urlParameters.add(new BasicNameValuePair(OAuthTokenService.KEY_SCOPE, scope));
+        }
+    }
+
+    /**
+     * @return the form-encoded parameters, after the client id and secret if they go in the body
+     */
+    private byte[] encode(List<NameValuePair> urlParameters) {
+        final byte[] parameters = URLEncodedUtils.format(urlParameters, Consts.ISO_8859_1).getBytes(Consts.ISO_8859_1);
+        if (null == clientAuthentication) {
+            return parameters;
+        }
+
+        final byte[] encoded = new byte[clientAuthentication.length + 1 + parameters.length];
+        System.arraycopy(clientAuthentication, 0, encoded, 0, clientAuthentication.length);
+        encoded[clientAuthentication.length] = '&';
+        System.arraycopy(parameters, 0, encoded, clientAuthentication.length + 1, parameters.length);
+        return encoded;
+    }
+
+    private static final class AssertionBody {
+        private final String clientAssertion;
+        private final byte[] body;
+
+        private AssertionBody(String clientAssertion, byte[] body) {
+            this.clientAssertion = clientAssertion;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.TokenService;
+import org.apache.http.Header;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+
+/**
+ * Sets the Authorization header on {@link URLConnection}s (e.g. {@code HttpURLConnection}), for code that doesn't
+ * use Apache HttpClient. Like {@link OAuthTokenInterceptor} it reuses the header cached on {@link OAuthToken}s.
+ *
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class URLConnectionAuthorizer {
+
+    private final TokenService tokenService;
+
+    public URLConnectionAuthorizer(TokenService tokenService) {
+        this.tokenService = tokenService;
+    }
+
+    /**
+     * Obtains the token for the connection's URL and sets the Authorization header. Call it before connecting.
+     */
+    public void authorize(URLConnection connection) throws IOException {
+        try {
+            final Header header = OAuthTokenInterceptor.authorizationHeaderFor(tokenService.obtainTokenFor(connection.getURL().toURI()));
+            connection.setRequestProperty(header.getName(), header.getValue());
+        } catch (URISyntaxException e) {
+            throw new IOException("invalid url " + connection.getURL(), e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.capitalone.auth.oauth.factory;
+
+import junit.framework.TestCase;
+import org.apache.http.conn.DnsResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.*;
+
+/**
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class CachingDnsResolverTest {
+
+    private DnsResolver mockDelegate;
+    private InetAddress[] addresses;
+
+    @Before
+    public void setup() throws Exception {
+        mockDelegate = mock(DnsResolver.class);
+        addresses = new InetAddress[]{InetAddress.getByAddress("my.oauth.club", new byte[]{10, 0, 0, 1})};
+    }
+
+    @Test
+    public void testAddressesAreCachedForTheTimeToLive() throws Exception {
+        when(mockDelegate.resolve("my.oauth.club")).thenReturn(addresses);
+        final CachingDnsResolver testee = new CachingDnsResolver(mockDelegate, 1, TimeUnit.HOURS);
+
+        assertThat(testee.resolve("my.oauth.club"), is(equalTo(addresses)));
+        assertThat(testee.resolve("my.oauth.club"), is(equalTo(addresses)));
+
+        verify(mockDelegate, times(1)).resolve("my.oauth.club");
+        assertThat(testee.getResolutionCount(), is(1L));
+        assertThat(testee.getCacheHits(), is(1L));
+        testee.close();
+    }
+
+    @Test
+    public void testExpiredAddressesAreServedWithoutWaitingForTheLookup() throws Exception {
+        final CountDownLatch lookingUp = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(mockDelegate.resolve("my.oauth.club")).thenReturn(addresses).thenAnswer(new Answer<InetAddress[]>() {
+            @Override
+            public InetAddress[] answer(InvocationOnMock invocation) throws Throwable {
+                lookingUp.countDown();
+                release.await();
+                throw new UnknownHostException("my.oauth.club");
+            }
+        });
+        final CachingDnsResolver testee = new CachingDnsResolver(mockDelegate, 1, TimeUnit.MILLISECONDS);
+
+        testee.preResolve("my.oauth.club");
+        Thread.sleep(5);
+
+        // the lookup hangs on the refresh thread while the caller gets the expired addresses
+        assertThat(testee.resolve("my.oauth.club"), is(equalTo(addresses)));
+        assertThat(lookingUp.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(testee.resolve("my.oauth.club"), is(equalTo(addresses)));
+        assertThat(testee.getStaleHits(), is(2L));
+        assertThat(testee.getCacheHits(), is(0L));
+        verify(mockDelegate, times(2)).resolve("my.oauth.club");
+
+        // once the lookup has failed, the last known good addresses are still served
+        release.countDown();
+        assertThat(testee.resolve("my.oauth.club"), is(equalTo(addresses)));
+        testee.close();
+    }
+
+    @Test
+    public void testIdleHostsAreEvicted() throws Exception {
+        when(mockDelegate.resolve("my.oauth.club")).thenReturn(addresses);
+        final CachingDnsResolver testee = new CachingDnsResolver(mockDelegate, 1, 50, TimeUnit.HOURS);
+
+        testee.resolve("my.oauth.club");
+        testee.refreshAll();
+        assertThat(testee.getCachedHostCount(), is(1));
+        assertThat(testee.getEvictions(), is(0L));
+        testee.close();
+
+        final CachingDnsResolver idle = new CachingDnsResolver(mockDelegate, 1, 1, TimeUnit.MILLISECONDS);
+        idle.resolve("my.oauth.club");
+        Thread.sleep(5);
+        idle.refreshAll();
+        assertThat(idle.getCachedHostCount(), is(0));
+        assertThat(idle.getEvictions(), is(1L));
+        idle.close();
+    }
+
+    @Test
+    public void testPreResolvedHostsAreNotEvictedWhenIdle() throws Exception {
+        when(mockDelegate.resolve(anyString())).thenReturn(addresses);
+        final CachingDnsResolver testee = new CachingDnsResolver(mockDelegate, 1, 1, TimeUnit.MILLISECONDS);
+
+        testee.preResolve("my.oauth.club");
+        testee.resolve("other.host");
+        Thread.sleep(5);
+        testee.refreshAll();
+        Thread.sleep(5);
+        testee.refreshAll();
+
+        assertThat(testee.getCachedHostCount(), is(1));
+        assertThat(testee.getEvictions(), is(1L));
+        verify(mockDelegate, atLeast(3)).resolve("my.oauth.club");
+        testee.close();
+    }
+
+    @Test
+    public void testUnknownHostIsRethrownWhenNeverResolved() throws Exception {
+        final UnknownHostException cause = new UnknownHostException("nowhere");
+        when(mockDelegate.resolve("nowhere")).thenThrow(cause);
+        final CachingDnsResolver testee = new CachingDnsResolver(mockDelegate, 1, TimeUnit.HOURS);
+
+        try {
+            testee.resolve("nowhere");
+            TestCase.fail("should have thrown UnknownHostException");
+        } catch (UnknownHostException e) {
+            assertThat(e, is(sameInstance(cause)));
+            assertThat(testee.getResolutionFailures(), is(1L));
+        }
+        testee.close();
+    }
+}
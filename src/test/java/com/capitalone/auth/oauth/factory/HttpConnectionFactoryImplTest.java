@@ -1,20 +1,42 @@
 package com.capitalone.auth.oauth.factory;
 
-import com.capitalone.auth.oauth.exceptions.LockInterruptedException;
 import com.capitalone.auth.oauth.exceptions.SSLContextException;
 import junit.framework.TestCase;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.junit.Test;
 
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManager;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
-import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyLong;
-import static org.mockito.Matchers.eq;
-import static org.mockito.Mockito.*;
+import static org.hamcrest.Matchers.equalTo;
 
 /**
  * Copyright [2016] Capital One Services, LLC
@@ -53,6 +75,160 @@ public class HttpConnectionFactoryImplTest {
         assertThat(connectionPool4, is(notNullValue()));
     }
 
+    @Test
+    public void testConnectionPoolReusesASingleHttpClient() throws Exception {
+        HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+
+        final HttpConnectionPool connectionPool = testee.getConnectionPool(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(60).maxHttpConnections(20).build());
+        assertThat(connectionPool.getHttpClient(), is(sameInstance(connectionPool.getHttpClient())));
+
+        testee.close();
+    }
+
+    @Test
+    public void testCloseShutsDownConnectionPools() throws Exception {
+        HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+        final HttpConnectionConfig config = HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(60).maxHttpConnections(20).build();
+        final HttpConnectionPool connectionPool = testee.getConnectionPool(config);
+
+        testee.close();
+
+        try {
+            connectionPool.getHttpClient().execute(new HttpGet("http://localhost/"));
+            TestCase.fail("should have thrown IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is(equalTo("Connection pool shut down")));
+        }
+
+        // a closed factory starts afresh
+        assertThat(testee.getConnectionPool(config), is(not(sameInstance(connectionPool))));
+        testee.close();
+    }
+
+    @Test
+    public void testConnectionPoolTuning() throws Exception {
+        HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+
+        final HttpConnectionPool defaultPool = testee.getConnectionPool(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(60).maxHttpConnections(20).build());
+        final PoolingHttpClientConnectionManager defaultManager = (PoolingHttpClientConnectionManager) defaultPool.getConnectionManager();
+        assertThat(defaultManager.getMaxTotal(), is(20));
+        assertThat(defaultManager.getDefaultMaxPerRoute(), is(20));
+
+        final HttpConnectionPool tunedPool = testee.getConnectionPool(HttpConnectionConfig.newBuilder()
+                .httpConnectionTimeout(60)
+                .httpSocketTimeout(60)
+                .maxHttpConnections(20)
+                .maxHttpConnectionsPerRoute(5)
+                .connectionTimeToLive(300000)
+                .validateAfterInactivity(2000)
+                .keepAliveDuration(30000)
+                .idleConnectionTimeout(60000)
+                .build());
+        assertThat(tunedPool, is(not(sameInstance(defaultPool))));
+
+        final PoolingHttpClientConnectionManager tunedManager = (PoolingHttpClientConnectionManager) tunedPool.getConnectionManager();
+        assertThat(tunedManager.getMaxTotal(), is(20));
+        assertThat(tunedManager.getDefaultMaxPerRoute(), is(5));
+        assertThat(tunedManager.getValidateAfterInactivity(), is(2000));
+
+        testee.close();
+    }
+
+    @Test
+    public void testSSLContextIsSharedAcrossConnectionPools() throws Exception {
+        HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+
+        final HttpConnectionConfig config1 = HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(60).maxHttpConnections(20).sslSessionCacheSize(50).sslSessionTimeout(3600).build();
+        final HttpConnectionConfig config2 = HttpConnectionConfig.newBuilder().httpConnectionTimeout(120).httpSocketTimeout(60).maxHttpConnections(20).sslSessionCacheSize(50).sslSessionTimeout(3600).build();
+
+        assertThat(testee.getConnectionPool(config1), is(not(sameInstance(testee.getConnectionPool(config2)))));
+        assertThat(testee.getSSLContextCache().size(), is(1));
+
+        final SSLContext sslContext = testee.getSSLContextCache().getSSLContext(config1);
+        assertThat(sslContext, is(sameInstance(testee.getSSLContextCache().getSSLContext(config2))));
+        assertThat(sslContext.getClientSessionContext().getSessionCacheSize(), is(50));
+        assertThat(sslContext.getClientSessionContext().getSessionTimeout(), is(3600));
+
+        assertThat(testee.getHandshakeStatistics().getFullHandshakes(), is(0L));
+        assertThat(testee.getHandshakeStatistics().getResumedHandshakes(), is(0L));
+
+        testee.close();
+    }
+
+    @Test
+    public void testPrewarmLeavesAnOpenConnectionInThePool() throws Exception {
+        HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+        final HttpConnectionPool connectionPool = testee.getConnectionPool(HttpConnectionConfig.newBuilder().httpConnectionTimeout(1000).httpSocketTimeout(1000).maxHttpConnections(20).build());
+        final PoolingHttpClientConnectionManager connectionManager = (PoolingHttpClientConnectionManager) connectionPool.getConnectionManager();
+
+        final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            connectionPool.prewarm(new URI("http://127.0.0.1:" + serverSocket.getLocalPort() + "/oauth/token"));
+
+            assertThat(connectionManager.getTotalStats().getAvailable(), is(1));
+            assertThat(connectionManager.getTotalStats().getLeased(), is(0));
+        } finally {
+            serverSocket.close();
+            testee.close();
+        }
+    }
+
+    @Test
+    public void testHandshakesWithALocalTlsServerAreCountedAsFullThenResumed() throws Exception {
+        // the self-signed server certificate is trusted through its own key store
+        final KeyStoreConfig keyStore = selfSignedKeyStore();
+        final SSLContextCache sslContextCache = new SSLContextCache();
+        final SSLServerSocket serverSocket = tlsServerSocket(sslContextCache, keyStore, false);
+        final ExecutorService server = serve(serverSocket, false);
+
+        final HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+        try {
+            final HttpConnectionPool connectionPool = testee.getConnectionPool(HttpConnectionConfig.newBuilder().httpConnectionTimeout(5000).httpSocketTimeout(5000).maxHttpConnections(20).trustStore(keyStore).build());
+            final URI uri = new URI("https://127.0.0.1:" + serverSocket.getLocalPort() + "/oauth/token");
+
+            // the server closes every connection, so each request makes a handshake and all but the first resume
+            for (int i = 0; i < 3; i++) {
+                get(connectionPool, uri);
+            }
+
+            final TlsHandshakeStatistics statistics = awaitHandshakes(testee, 3);
+            assertThat(statistics.getFullHandshakes(), is(1L));
+            assertThat(statistics.getResumedHandshakes(), is(2L));
+        } finally {
+            testee.close();
+            serverSocket.close();
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMutualTlsConnectionsAreReused() throws Exception {
+        // the same self-signed certificate identifies and trusts both sides
+        final KeyStoreConfig keyStore = selfSignedKeyStore();
+        final SSLContextCache sslContextCache = new SSLContextCache();
+        final SSLServerSocket serverSocket = tlsServerSocket(sslContextCache, keyStore, true);
+        final ExecutorService server = serve(serverSocket, true);
+
+        final HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+        try {
+            final HttpConnectionPool connectionPool = testee.getConnectionPool(HttpConnectionConfig.newBuilder().httpConnectionTimeout(5000).httpSocketTimeout(5000).maxHttpConnections(20).keyStore(keyStore).trustStore(keyStore).build());
+            final URI uri = new URI("https://127.0.0.1:" + serverSocket.getLocalPort() + "/oauth/token");
+
+            // the client certificate must not tie the pooled connection to a connection state no request asks for
+            get(connectionPool, uri);
+            get(connectionPool, uri);
+
+            final TlsHandshakeStatistics statistics = awaitHandshakes(testee, 1);
+            Thread.sleep(100);
+            assertThat(statistics.getFullHandshakes(), is(1L));
+            assertThat(statistics.getResumedHandshakes(), is(0L));
+        } finally {
+            testee.close();
+            serverSocket.close();
+            server.shutdownNow();
+        }
+    }
+
     @Test (expected = SSLContextException.class)
     public void shouldThrowSSLContextExceptionIfSSLProtocolIsInvalid() {
         HttpConnectionFactoryImpl httpConnectionFactoryImpl = new HttpConnectionFactoryImpl();
@@ -62,28 +238,258 @@ public class HttpConnectionFactoryImplTest {
     }
 
     @Test
-    public void testUsesLockForThreadSafety() throws Exception {
-        Lock mockLock = mock(Lock.class);
-        HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl(mockLock);
-
-        testee.getConnectionPool(HttpConnectionConfig.newBuilder().httpConnectionTimeout(120).httpSocketTimeout(60).maxHttpConnections(20).build());
+    public void testFailedPoolCreationIsNotCached() throws Exception {
+        HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+        final HttpConnectionConfig config = HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(60).maxHttpConnections(20).sslProtocol("INVALID_PROTOCOL").build();
 
-        verify(mockLock).tryLock(eq(60L), eq(TimeUnit.SECONDS));
-        verify(mockLock).unlock();
+        for (int i = 0; i < 2; i++) {
+            try {
+                testee.getConnectionPool(config);
+                TestCase.fail("should have thrown SSLContextException");
+            } catch (SSLContextException e) {
+                assertThat(testee.size(), is(0));
+            }
+        }
     }
 
     @Test
-    public void testUnlockEvenIfItThrows() throws Exception {
-        Lock mockLock = mock(Lock.class);
-        HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl(mockLock);
+    public void testRemoveConnectionPoolClosesIt() throws Exception {
+        HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+        final HttpConnectionConfig config = HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(60).maxHttpConnections(20).build();
+        final HttpConnectionPool connectionPool = testee.getConnectionPool(config);
 
-        when(mockLock.tryLock(anyLong(), any(TimeUnit.class))).thenThrow(new InterruptedException("something"));
+        assertThat(testee.removeConnectionPool(config), is(true));
+        assertThat(testee.removeConnectionPool(config), is(false));
+        assertThat(testee.size(), is(0));
 
         try {
-            testee.getConnectionPool(HttpConnectionConfig.newBuilder().httpConnectionTimeout(120).httpSocketTimeout(60).maxHttpConnections(20).build());
-            TestCase.fail("should have thrown InterruptedException");
-        } catch (LockInterruptedException e) {
-            verify(mockLock).unlock();
+            connectionPool.getHttpClient().execute(new HttpGet("http://localhost/"));
+            TestCase.fail("should have thrown IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is(equalTo("Connection pool shut down")));
+        }
+    }
+
+    @Test
+    public void testConcurrentLookupsCreateEachPoolExactlyOnce() throws Exception {
+        final HttpConnectionFactoryImpl testee = new HttpConnectionFactoryImpl();
+        final int threads = 16;
+        final int configs = 8;
+        final int lookups = 500;
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Map<HttpConnectionConfig, HttpConnectionPool>>> results = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            results.add(executorService.submit(new Callable<Map<HttpConnectionConfig, HttpConnectionPool>>() {
+                @Override
+                public Map<HttpConnectionConfig, HttpConnectionPool> call() throws Exception {
+                    final Map<HttpConnectionConfig, HttpConnectionPool> seen = new HashMap<>();
+                    start.await();
+                    for (int i = 0; i < lookups; i++) {
+                        final HttpConnectionConfig config = HttpConnectionConfig.newBuilder().httpConnectionTimeout(i % configs).httpSocketTimeout(60).maxHttpConnections(20).build();
+                        final HttpConnectionPool pool = testee.getConnectionPool(config);
+                        final HttpConnectionPool previous = seen.put(config, pool);
+                        if (null != previous && previous != pool) {
+                            throw new AssertionError("pool handed out twice for " + config);
+                        }
+                    }
+                    return seen;
+                }
+            }));
+        }
+
+        start.countDown();
+
+        final Map<HttpConnectionConfig, HttpConnectionPool> firstSeen = results.get(0).get(30, TimeUnit.SECONDS);
+        for (Future<Map<HttpConnectionConfig, HttpConnectionPool>> result : results) {
+            for (Map.Entry<HttpConnectionConfig, HttpConnectionPool> entry : result.get(30, TimeUnit.SECONDS).entrySet()) {
+                assertThat(entry.getValue(), is(sameInstance(firstSeen.get(entry.getKey()))));
+            }
+        }
+        assertThat(testee.size(), is(configs));
+
+        executorService.shutdown();
+        testee.close();
+        assertThat(testee.size(), is(0));
+    }
+
+    @Test
+    public void testMutualTLSContextSharesLoadedKeyMaterial() throws Exception {
+        final SSLContextCache testee = new SSLContextCache();
+        final KeyStoreConfig keyStore = KeyStoreConfig.newBuilder().path(emptyKeyStore().getPath()).type("JKS").password("changeit").build();
+        final KeyStoreConfig trustStore = KeyStoreConfig.newBuilder().path(emptyKeyStore().getPath()).type("JKS").password("changeit").build();
+
+        final HttpConnectionConfig config1 = HttpConnectionConfig.newBuilder().keyStore(keyStore).trustStore(trustStore).sslSessionTimeout(3600).build();
+        final HttpConnectionConfig config2 = HttpConnectionConfig.newBuilder().keyStore(keyStore).trustStore(trustStore).sslSessionTimeout(60).build();
+
+        final SSLContext sslContext = testee.getSSLContext(config1);
+        assertThat(sslContext, is(sameInstance(testee.getSSLContext(HttpConnectionConfig.newBuilder().keyStore(keyStore).trustStore(trustStore).sslSessionTimeout(3600).build()))));
+        assertThat(sslContext, is(not(sameInstance(testee.getSSLContext(config2)))));
+        assertThat(sslContext, is(not(sameInstance(testee.getSSLContext(HttpConnectionConfig.newBuilder().sslSessionTimeout(3600).build())))));
+        assertThat(sslContext.getClientSessionContext().getSessionTimeout(), is(3600));
+        assertThat(testee.size(), is(3));
+
+        // both mutual TLS contexts run on the same, loaded once, key material
+        final KeyManager[] keyManagers = testee.getKeyManagers(keyStore);
+        assertThat(keyManagers, is(sameInstance(testee.getKeyManagers(KeyStoreConfig.newBuilder().path(keyStore.getPath()).type("JKS").password("changeit").build()))));
+        assertThat(((ReloadingKeyMaterial.ReloadingKeyManager) keyManagers[0]).getMaterial().loads(), is(1));
+        final TrustManager[] trustManagers = testee.getTrustManagers(trustStore);
+        assertThat(((ReloadingKeyMaterial.ReloadingTrustManager) trustManagers[0]).getMaterial().loads(), is(1));
+    }
+
+    @Test
+    public void testKeyStoreIsReloadedOnlyWhenTheFileChanges() throws Exception {
+        final SSLContextCache testee = new SSLContextCache(0);
+        final File file = emptyKeyStore();
+        final KeyStoreConfig keyStore = KeyStoreConfig.newBuilder().path(file.getPath()).type("JKS").password("changeit").build();
+
+        final ReloadingKeyMaterial.ReloadingKeyManager keyManager = (ReloadingKeyMaterial.ReloadingKeyManager) testee.getKeyManagers(keyStore)[0];
+        assertThat(keyManager.getClientAliases("RSA", null), is(nullValue()));
+        assertThat(keyManager.getClientAliases("RSA", null), is(nullValue()));
+        assertThat(keyManager.getMaterial().loads(), is(1));
+
+        // a broken file keeps the current material
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{1, 2, 3});
+        }
+        assertThat(file.setLastModified(file.lastModified() + 10000), is(true));
+        assertThat(keyManager.getClientAliases("RSA", null), is(nullValue()));
+        assertThat(keyManager.getMaterial().loads(), is(1));
+
+        writeEmptyKeyStore(file);
+        assertThat(file.setLastModified(file.lastModified() + 20000), is(true));
+        assertThat(keyManager.getClientAliases("RSA", null), is(nullValue()));
+        assertThat(keyManager.getMaterial().loads(), is(2));
+    }
+
+    @Test
+    public void testHandshakeUsesTheChainAndKeyOfTheMaterialItChoseItsAliasFrom() throws Exception {
+        final SSLContextCache testee = new SSLContextCache(0);
+        final KeyStoreConfig keyStore = selfSignedKeyStore();
+        final ReloadingKeyMaterial.ReloadingKeyManager keyManager = (ReloadingKeyMaterial.ReloadingKeyManager) testee.getKeyManagers(keyStore)[0];
+
+        final String alias = keyManager.chooseClientAlias(new String[]{"RSA"}, null, null);
+        final X509Certificate[] chain = keyManager.getCertificateChain(alias);
+        assertThat(alias, is(not(equalTo("server"))));
+        assertThat(keyManager.getPrivateKey(alias), is(notNullValue()));
+
+        // the key store is replaced in the middle of the handshake
+        final File file = new File(keyStore.getPath());
+        final long lastModified = file.lastModified();
+        Files.copy(new File(selfSignedKeyStore().getPath()).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertThat(file.setLastModified(lastModified + 10000), is(true));
+        final String newAlias = keyManager.chooseClientAlias(new String[]{"RSA"}, null, null);
+        assertThat(keyManager.getMaterial().loads(), is(2));
+
+        // the alias chosen before the reload still resolves to the old certificate and key
+        assertThat(keyManager.getCertificateChain(alias)[0], is(equalTo(chain[0])));
+        final PrivateKey oldKey = keyManager.getPrivateKey(alias);
+        final PrivateKey newKey = keyManager.getPrivateKey(newAlias);
+        assertThat(oldKey, is(not(equalTo(newKey))));
+        assertThat(keyManager.getCertificateChain(newAlias)[0], is(not(equalTo(chain[0]))));
+        assertThat(keyManager.getPrivateKey("server"), is(equalTo(newKey)));
+    }
+
+    @Test(expected = SSLContextException.class)
+    public void testMissingKeyStore() throws Exception {
+        final KeyStoreConfig keyStore = KeyStoreConfig.newBuilder().path("does/not/exist.jks").password("changeit").build();
+        new SSLContextCache().getSSLContext(HttpConnectionConfig.newBuilder().keyStore(keyStore).build());
+    }
+
+    private static KeyStoreConfig selfSignedKeyStore() throws Exception {
+        final File keyStoreFile = File.createTempFile("server", ".jks");
+        assertThat(keyStoreFile.delete(), is(true));
+        keyStoreFile.deleteOnExit();
+        final Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool",
+                "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                "-dname", "CN=localhost", "-ext", "SAN=ip:127.0.0.1", "-storetype", "JKS",
+                "-keystore", keyStoreFile.getPath(), "-storepass", "changeit", "-keypass", "changeit")
+                .redirectErrorStream(true).start();
+        assertThat(keytool.waitFor(), is(0));
+        return KeyStoreConfig.newBuilder().path(keyStoreFile.getPath()).type("JKS").password("changeit").build();
+    }
+
+    private static SSLServerSocket tlsServerSocket(SSLContextCache sslContextCache, KeyStoreConfig keyStore, boolean needClientAuth) throws Exception {
+        final SSLContext serverContext = SSLContext.getInstance("TLSv1.2");
+        serverContext.init(sslContextCache.getKeyManagers(keyStore), needClientAuth ? sslContextCache.getTrustManagers(keyStore) : null, null);
+        final SSLServerSocket serverSocket = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        serverSocket.setNeedClientAuth(needClientAuth);
+        return serverSocket;
+    }
+
+    /**
+     * Answers every request with an empty 200, closing the connection after each one unless kept alive.
+     */
+    private static ExecutorService serve(final SSLServerSocket serverSocket, final boolean keepAlive) {
+        final ExecutorService server = Executors.newCachedThreadPool();
+        server.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    final Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (IOException e) {
+                        // closed
+                        return;
+                    }
+                    server.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try (Socket connection = socket) {
+                                final BufferedReader request = new BufferedReader(new InputStreamReader(connection.getInputStream(), "US-ASCII"));
+                                final OutputStream response = connection.getOutputStream();
+                                String line;
+                                do {
+                                    while (null != (line = request.readLine()) && !line.isEmpty()) {
+                                        // skip the request headers
+                                    }
+                                    if (null == line) {
+                                        return;
+                                    }
+                                    response.write(("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n" + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes("US-ASCII"));
+                                    response.flush();
+                                } while (keepAlive);
+                            } catch (IOException e) {
+                                // closed
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        return server;
+    }
+
+    private static void get(HttpConnectionPool connectionPool, URI uri) throws IOException {
+        final HttpResponse response = connectionPool.getHttpClient().execute(new HttpGet(uri));
+        assertThat(response.getStatusLine().getStatusCode(), is(200));
+        EntityUtils.consume(response.getEntity());
+    }
+
+    private static TlsHandshakeStatistics awaitHandshakes(HttpConnectionFactoryImpl testee, long handshakes) throws InterruptedException {
+        final TlsHandshakeStatistics statistics = testee.getHandshakeStatistics();
+        // the handshake listeners are notified on a thread of their own
+        for (int i = 0; i < 100 && statistics.getFullHandshakes() + statistics.getResumedHandshakes() < handshakes; i++) {
+            Thread.sleep(20);
+        }
+        return statistics;
+    }
+
+    private static File emptyKeyStore() throws Exception {
+        final File file = File.createTempFile("keystore", ".jks");
+        file.deleteOnExit();
+        writeEmptyKeyStore(file);
+        return file;
+    }
+
+    private static void writeEmptyKeyStore(File file) throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        try (OutputStream out = new FileOutputStream(file)) {
+            keyStore.store(out, "changeit".toCharArray());
         }
     }
 }
@@ -0,0 +1,122 @@
+package com.capitalone.auth.oauth.framework;
+
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class ReloadingOAuthClientCredentialsProviderTest {
+
+    private Path credentialsFile;
+    private ReloadingOAuthClientCredentialsProvider testee;
+
+    @Before
+    public void setup() throws IOException {
+        credentialsFile = Files.createTempFile("oauth-credentials", ".json");
+        write("[{\"clientId\": \"clientA\", \"clientSecret\": \"secretA\", \"clientURIRegex\": \"^https://a.service.com/.*$\", "
+                + "\"authServerURI\": \"https://my.oauth.club/\", \"grantType\": \"client_credentials\", \"scopes\": [\"read\"], \"expirySkew\": 30},"
+                + " {\"clientId\": \"clientB\", \"clientSecret\": \"secretB\", \"clientURIRegex\": \"^https://b.service.com/.*$\", \"authServerURI\": \"https://my.oauth.club/\"}]");
+        testee = new ReloadingOAuthClientCredentialsProvider(credentialsFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        testee.close();
+        Files.deleteIfExists(credentialsFile);
+    }
+
+    @Test
+    public void testCredentialsAreLoadedFromTheFile() throws Exception {
+        final OAuthClientCredentials clientCredentials = testee.getClientCredentialsFor(new URI("https://a.service.com/resource"));
+        assertThat(clientCredentials.getClientId(), is(equalTo("clientA")));
+        assertThat(clientCredentials.getClientSecret(), is(equalTo("secretA")));
+        assertThat(clientCredentials.getGrantType(), is(equalTo("client_credentials")));
+        assertThat(clientCredentials.getAuthServerURI(), is(equalTo(new URI("https://my.oauth.club/"))));
+        assertThat(clientCredentials.getScopes(), contains("read"));
+        assertThat(clientCredentials.getExpirySkew(), is(30L));
+
+        assertThat(testee.getClientCredentialsFor(new URI("https://b.service.com/resource")).getClientId(), is(equalTo("clientB")));
+
+        try {
+            testee.getClientCredentialsFor(new URI("https://c.service.com/resource"));
+            TestCase.fail("exception expected");
+        } catch (ClientCredentialsNotFoundException e) {
+            assertThat(e.getMessage(), is(equalTo("client credentials not found")));
+        }
+    }
+
+    @Test
+    public void testFileChangesAreReloadedAndRemovedAndAddedCredentialsReported() throws Exception {
+        final OAuthClientCredentials oldB = testee.getClientCredentialsFor(new URI("https://b.service.com/resource"));
+        final BlockingQueue<Set<OAuthClientCredentials>> removals = new LinkedBlockingQueue<>();
+        final BlockingQueue<Set<OAuthClientCredentials>> additions = new LinkedBlockingQueue<>();
+        testee.addListener(new ReloadingOAuthClientCredentialsProvider.Listener() {
+            @Override
+            public void credentialsRemoved(Set<OAuthClientCredentials> removed) {
+                removals.add(removed);
+            }
+
+            @Override
+            public void credentialsAdded(Set<OAuthClientCredentials> added) {
+                additions.add(added);
+            }
+        });
+
+        write("[{\"clientId\": \"clientA\", \"clientSecret\": \"secretA\", \"clientURIRegex\": \"^https://a.service.com/.*$\", "
+                + "\"authServerURI\": \"https://my.oauth.club/\", \"grantType\": \"client_credentials\", \"scopes\": [\"read\"], \"expirySkew\": 30},"
+                + " {\"clientId\": \"clientB\", \"clientSecret\": \"rotated\", \"clientURIRegex\": \"^https://b.service.com/.*$\", \"authServerURI\": \"https://my.oauth.club/\"}]");
+
+        final Set<OAuthClientCredentials> removed = removals.poll(30, TimeUnit.SECONDS);
+        assertThat(removed, contains(oldB));
+        final OAuthClientCredentials newB = testee.getClientCredentialsFor(new URI("https://b.service.com/resource"));
+        assertThat(newB.getClientSecret(), is(equalTo("rotated")));
+        assertThat(additions.poll(30, TimeUnit.SECONDS), contains(newB));
+        assertThat(testee.contains(newB), is(true));
+        assertThat(testee.contains(oldB), is(false));
+    }
+
+    @Test
+    public void testInvalidFileKeepsTheCurrentCredentials() throws Exception {
+        write("[{\"clientId\": \"clientA\", \"clientURIRegex\": \"(unclosed\"}]");
+
+        try {
+            testee.reload();
+            TestCase.fail("exception expected");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("invalid clientURIRegex"));
+        }
+        assertThat(testee.getClientCredentials().size(), is(2));
+        assertThat(testee.getClientCredentialsFor(new URI("https://a.service.com/resource")).getClientId(), is(equalTo("clientA")));
+    }
+
+    private void write(String json) throws IOException {
+        Files.write(credentialsFile, json.getBytes(Charset.forName("UTF-8")));
+    }
+}
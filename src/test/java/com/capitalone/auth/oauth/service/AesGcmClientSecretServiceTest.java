@@ -0,0 +1,108 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class AesGcmClientSecretServiceTest {
+
+    private static final String KEY = Base64.encodeBase64String("0123456789abcdef0123456789abcdef".getBytes());
+
+    private final AesGcmClientSecretService secretService = new AesGcmClientSecretService();
+
+    @Test
+    public void testEncryptedSecretIsDecrypted() throws Exception {
+        final String encrypted = AesGcmClientSecretService.encrypt(KEY, "my_client_secret");
+        assertThat(encrypted, is(not(equalTo(AesGcmClientSecretService.encrypt(KEY, "my_client_secret")))));
+
+        assertThat(secretService.obtainClientSecret(credentials(encrypted, KEY)), is(equalTo("my_client_secret")));
+        assertThat(secretService.obtainClientSecret(credentials(encrypted, KEY)), is(equalTo("my_client_secret")));
+        assertThat(secretService.cachedKeys(), is(1));
+        // sequential decryptions reuse one cipher
+        assertThat(secretService.pooledCiphers(), is(1));
+    }
+
+    @Test
+    public void testSecretWithoutKeyIsPlainText() throws Exception {
+        assertThat(secretService.obtainClientSecret(credentials("plain", null)), is(equalTo("plain")));
+    }
+
+    @Test(expected = ClientSecretException.class)
+    public void testTamperedSecretIsRejected() throws Exception {
+        final byte[] encrypted = Base64.decodeBase64(AesGcmClientSecretService.encrypt(KEY, "my_client_secret"));
+        encrypted[encrypted.length - 1] ^= 1;
+
+        secretService.obtainClientSecret(credentials(Base64.encodeBase64String(encrypted), KEY));
+    }
+
+    @Test(expected = ClientSecretException.class)
+    public void testInvalidKeyIsRejected() throws Exception {
+        secretService.obtainClientSecret(credentials(AesGcmClientSecretService.encrypt(KEY, "secret"), Base64.encodeBase64String("short".getBytes())));
+    }
+
+    @Test
+    public void testConcurrentDecryption() throws Exception {
+        final List<String> encrypted = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            encrypted.add(AesGcmClientSecretService.encrypt(KEY, "secret" + i));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<Boolean>> results = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (int n = 0; n < 200; n++) {
+                        final int i = n % encrypted.size();
+                        if (!("secret" + i).equals(secretService.obtainClientSecret(credentials(encrypted.get(i), KEY)))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertThat(result.get(10, TimeUnit.SECONDS), is(true));
+        }
+        assertThat(secretService.pooledCiphers(), is(lessThanOrEqualTo(8)));
+        executor.shutdown();
+    }
+
+    private static OAuthClientCredentials credentials(String clientSecret, String encryptionKey) {
+        return OAuthClientCredentials.newBuilder()
+                .clientId("client")
+                .clientSecret(clientSecret)
+                .clientSecretEncryptionKey(encryptionKey)
+                .build();
+    }
+}
@@ -0,0 +1,211 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+/**
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class CachingClientSecretServiceTest {
+
+    private ClientSecretService mockDelegate;
+    private TokenClock mockClock;
+    private OAuthClientCredentials clientCredentials;
+
+    @Before
+    public void setUp() throws Exception {
+        mockDelegate = mock(ClientSecretService.class);
+        mockClock = mock(TokenClock.class);
+        when(mockClock.currentTimeMillis()).thenReturn(0L);
+        clientCredentials = OAuthClientCredentials.newBuilder().clientId("client").clientSecret("encrypted").build();
+    }
+
+    @Test
+    public void testSecretIsCachedForItsTimeToLive() throws Exception {
+        when(mockDelegate.obtainClientSecret(clientCredentials)).thenReturn("secret1", "secret2");
+        final CachingClientSecretService secretService = newSecretService(60, 0);
+
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret1")));
+        when(mockClock.currentTimeMillis()).thenReturn(59999L);
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret1")));
+        verify(mockDelegate, times(1)).obtainClientSecret(clientCredentials);
+
+        when(mockClock.currentTimeMillis()).thenReturn(60000L);
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret2")));
+        verify(mockDelegate, times(2)).obtainClientSecret(clientCredentials);
+        secretService.close();
+    }
+
+    @Test
+    public void testScopedVariantsShareTheSecretOfTheirCredentials() throws Exception {
+        final OAuthClientCredentials configured = clientCredentials.withScopes(Arrays.asList("read"));
+        when(mockDelegate.obtainClientSecret(any(OAuthClientCredentials.class))).thenReturn("secret1", "secret2");
+        final CachingClientSecretService secretService = newSecretService(60, 0);
+
+        assertThat(secretService.obtainClientSecret(configured), is(equalTo("secret1")));
+        assertThat(secretService.obtainClientSecret(configured.withScopes(Arrays.asList("write"))), is(equalTo("secret1")));
+        assertThat(secretService.obtainClientSecret(configured.withScopes(Arrays.asList("read", "write"))), is(equalTo("secret1")));
+        assertThat(secretService.size(), is(1));
+        verify(mockDelegate, times(1)).obtainClientSecret(configured);
+
+        secretService.invalidate(configured.withScopes(Arrays.asList("write")));
+        assertThat(secretService.obtainClientSecret(configured), is(equalTo("secret2")));
+        secretService.close();
+    }
+
+    @Test
+    public void testPerCredentialTimeToLiveOverridesTheDefault() throws Exception {
+        when(mockDelegate.obtainClientSecret(clientCredentials)).thenReturn("secret1", "secret2");
+        final CachingClientSecretService secretService = CachingClientSecretService.newBuilder()
+                .delegate(mockDelegate)
+                .clock(mockClock)
+                .timeToLive(60, TimeUnit.SECONDS)
+                .timeToLive(clientCredentials, 5, TimeUnit.SECONDS)
+                .refreshAhead(0, TimeUnit.SECONDS)
+                .build();
+
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret1")));
+        when(mockClock.currentTimeMillis()).thenReturn(5000L);
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret2")));
+        secretService.close();
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(mockDelegate.obtainClientSecret(clientCredentials)).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                loading.countDown();
+                release.await();
+                return "secret";
+            }
+        });
+        final CachingClientSecretService secretService = newSecretService(60, 0);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return secretService.obtainClientSecret(clientCredentials);
+                }
+            }));
+        }
+        loading.await(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+        release.countDown();
+
+        for (Future<String> result : results) {
+            assertThat(result.get(5, TimeUnit.SECONDS), is(equalTo("secret")));
+        }
+        verify(mockDelegate, times(1)).obtainClientSecret(clientCredentials);
+        executor.shutdown();
+        secretService.close();
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws Exception {
+        when(mockDelegate.obtainClientSecret(clientCredentials))
+                .thenThrow(new ClientSecretException("vault unavailable"))
+                .thenReturn("secret");
+        final CachingClientSecretService secretService = newSecretService(60, 0);
+
+        try {
+            secretService.obtainClientSecret(clientCredentials);
+            fail("expected ClientSecretException");
+        } catch (ClientSecretException e) {
+            assertThat(e.getMessage(), is(equalTo("vault unavailable")));
+        }
+        assertThat(secretService.size(), is(0));
+
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret")));
+        secretService.close();
+    }
+
+    @Test
+    public void testSecretIsRefreshedInTheBackgroundBeforeItExpires() throws Exception {
+        final CountDownLatch refreshed = new CountDownLatch(2);
+        when(mockDelegate.obtainClientSecret(clientCredentials)).thenAnswer(new Answer<String>() {
+            private int calls;
+
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                refreshed.countDown();
+                return "secret" + ++calls;
+            }
+        });
+        final CachingClientSecretService secretService = newSecretService(60, 10);
+
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret1")));
+
+        // inside the refresh window the cached secret is still served while the new one loads
+        when(mockClock.currentTimeMillis()).thenReturn(55000L);
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret1")));
+        assertThat(refreshed.await(5, TimeUnit.SECONDS), is(true));
+
+        for (int i = 0; i < 50 && !"secret2".equals(secretService.obtainClientSecret(clientCredentials)); i++) {
+            Thread.sleep(20);
+        }
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret2")));
+        verify(mockDelegate, times(2)).obtainClientSecret(clientCredentials);
+        secretService.close();
+    }
+
+    @Test
+    public void testInvalidateDropsTheCachedSecret() throws Exception {
+        when(mockDelegate.obtainClientSecret(clientCredentials)).thenReturn("secret1", "secret2");
+        final CachingClientSecretService secretService = CachingClientSecretService.newBuilder()
+                .delegate(mockDelegate)
+                .clock(mockClock)
+                .wipeEvictedSecrets(true)
+                .build();
+
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret1")));
+        secretService.invalidate(clientCredentials);
+        assertThat(secretService.obtainClientSecret(clientCredentials), is(equalTo("secret2")));
+        secretService.close();
+        assertThat(secretService.size(), is(0));
+    }
+
+    private CachingClientSecretService newSecretService(long timeToLiveSeconds, long refreshAheadSeconds) {
+        return CachingClientSecretService.newBuilder()
+                .delegate(mockDelegate)
+                .clock(mockClock)
+                .timeToLive(timeToLiveSeconds, TimeUnit.SECONDS)
+                .refreshAhead(refreshAheadSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+}
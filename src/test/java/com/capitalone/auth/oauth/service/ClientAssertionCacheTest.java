@@ -0,0 +1,204 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.oauth.framework.ClientAuthenticationMethod;
+import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class ClientAssertionCacheTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private TokenClock mockClock;
+    private ClientAssertionCache testee;
+
+    @Before
+    public void setup() {
+        mockClock = mock(TokenClock.class);
+        when(mockClock.currentTimeMillis()).thenReturn(1000000000L);
+        testee = new ClientAssertionCache(mockClock);
+    }
+
+    @After
+    public void tearDown() {
+        testee.close();
+    }
+
+    @Test
+    public void testRsaAssertionIsSignedWithRS256() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final KeyPair keyPair = generator.generateKeyPair();
+
+        final String[] parts = testee.getAssertion(credentials(keyPair)).split("\\.");
+
+        final JsonNode header = objectMapper.readTree(Base64.decodeBase64(parts[0]));
+        assertThat(header.get("alg").asText(), is(equalTo("RS256")));
+        assertThat(header.get("kid").asText(), is(equalTo("key-1")));
+        final JsonNode claims = objectMapper.readTree(Base64.decodeBase64(parts[1]));
+        assertThat(claims.get("iss").asText(), is(equalTo("client")));
+        assertThat(claims.get("sub").asText(), is(equalTo("client")));
+        assertThat(claims.get("aud").asText(), is(equalTo("https://my.oauth.club/token")));
+        assertThat(claims.get("iat").asLong(), is(1000000L));
+        assertThat(claims.get("exp").asLong(), is(1000060L));
+
+        final Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(keyPair.getPublic());
+        signature.update((parts[0] + "." + parts[1]).getBytes("UTF-8"));
+        assertThat(signature.verify(Base64.decodeBase64(parts[2])), is(true));
+    }
+
+    @Test
+    public void testEcAssertionsCarryJoseSignatures() throws Exception {
+        verifyEcAssertion("secp256r1", "ES256", "SHA256withECDSA", 32);
+        verifyEcAssertion("secp384r1", "ES384", "SHA384withECDSA", 48);
+        verifyEcAssertion("secp521r1", "ES512", "SHA512withECDSA", 66);
+    }
+
+    @Test
+    public void testAssertionIsReusedAndResignedBeforeItExpires() throws Exception {
+        final OAuthClientCredentials clientCredentials = credentials(ecKeyPair("secp256r1"));
+        final String first = testee.getAssertion(clientCredentials);
+
+        when(mockClock.currentTimeMillis()).thenReturn(1000029000L);
+        assertThat(testee.getAssertion(clientCredentials), is(equalTo(first)));
+
+        // past half of the lifetime the current assertion is still handed out while a new one is signed
+        when(mockClock.currentTimeMillis()).thenReturn(1000031000L);
+        assertThat(testee.getAssertion(clientCredentials), is(equalTo(first)));
+        String resigned = first;
+        for (int i = 0; i < 100 && resigned.equals(first); i++) {
+            Thread.sleep(20);
+            resigned = testee.getAssertion(clientCredentials);
+        }
+        assertThat(resigned, is(not(equalTo(first))));
+    }
+
+    @Test
+    public void testScopedVariantsShareTheAssertionOfTheirCredentials() throws Exception {
+        final OAuthClientCredentials clientCredentials = credentials(ecKeyPair("secp256r1"));
+        final String first = testee.getAssertion(clientCredentials);
+
+        assertThat(testee.getAssertion(clientCredentials.withScopes(Arrays.asList("read"))), is(equalTo(first)));
+        assertThat(testee.getAssertion(clientCredentials.withScopes(Arrays.asList("read", "write"))), is(equalTo(first)));
+
+        testee.remove(clientCredentials.withScopes(Arrays.asList("read")));
+        assertThat(testee.getAssertion(clientCredentials), is(not(equalTo(first))));
+    }
+
+    @Test
+    public void testAssertionPastThreeQuartersOfItsLifetimeIsSignedInline() throws Exception {
+        final OAuthClientCredentials clientCredentials = credentials(ecKeyPair("secp256r1"));
+        final String first = testee.getAssertion(clientCredentials);
+
+        when(mockClock.currentTimeMillis()).thenReturn(1000045000L);
+        final String second = testee.getAssertion(clientCredentials);
+        assertThat(second, is(not(equalTo(first))));
+        assertThat(objectMapper.readTree(Base64.decodeBase64(second.split("\\.")[1])).get("iat").asLong(), is(1000045L));
+    }
+
+    @Test
+    public void testCredentialsWithoutReuseGetAFreshAssertionForEveryRequest() throws Exception {
+        final OAuthClientCredentials reused = credentials(ecKeyPair("secp256r1"));
+        assertThat(reused.isClientAssertionReused(), is(true));
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder()
+                .clientId("client")
+                .authServerURI(new URI("https://my.oauth.club/token"))
+                .clientAuthenticationMethod(ClientAuthenticationMethod.PRIVATE_KEY_JWT)
+                .clientAssertionSigningKey(reused.getClientAssertionSigningKey())
+                .clientAssertionReuse(false)
+                .build();
+
+        final String first = testee.getAssertion(clientCredentials);
+        final String second = testee.getAssertion(clientCredentials);
+        assertThat(second, is(not(equalTo(first))));
+        assertThat(objectMapper.readTree(Base64.decodeBase64(second.split("\\.")[1])).get("jti").asText(),
+                is(not(equalTo(objectMapper.readTree(Base64.decodeBase64(first.split("\\.")[1])).get("jti").asText()))));
+        assertThat(clientCredentials.clone().isClientAssertionReused(), is(false));
+    }
+
+    private void verifyEcAssertion(String curve, String alg, String javaAlgorithm, int partLength) throws Exception {
+        final KeyPair keyPair = ecKeyPair(curve);
+        final String[] parts = testee.getAssertion(credentials(keyPair)).split("\\.");
+        assertThat(objectMapper.readTree(Base64.decodeBase64(parts[0])).get("alg").asText(), is(equalTo(alg)));
+
+        final byte[] jose = Base64.decodeBase64(parts[2]);
+        assertThat(jose.length, is(partLength * 2));
+
+        final Signature signature = Signature.getInstance(javaAlgorithm);
+        signature.initVerify(keyPair.getPublic());
+        signature.update((parts[0] + "." + parts[1]).getBytes("UTF-8"));
+        assertThat(signature.verify(joseToDer(jose)), is(true));
+    }
+
+    private static byte[] joseToDer(byte[] jose) {
+        final int partLength = jose.length / 2;
+        final byte[] r = new BigInteger(1, Arrays.copyOfRange(jose, 0, partLength)).toByteArray();
+        final byte[] s = new BigInteger(1, Arrays.copyOfRange(jose, partLength, jose.length)).toByteArray();
+
+        final ByteArrayOutputStream der = new ByteArrayOutputStream();
+        final int length = 4 + r.length + s.length;
+        der.write(0x30);
+        if (length > 127) {
+            der.write(0x81);
+        }
+        der.write(length);
+        der.write(0x02);
+        der.write(r.length);
+        der.write(r, 0, r.length);
+        der.write(0x02);
+        der.write(s.length);
+        der.write(s, 0, s.length);
+        return der.toByteArray();
+    }
+
+    private static KeyPair ecKeyPair(String curve) throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(curve));
+        return generator.generateKeyPair();
+    }
+
+    private static OAuthClientCredentials credentials(KeyPair keyPair) throws Exception {
+        return OAuthClientCredentials.newBuilder()
+                .clientId("client")
+                .authServerURI(new URI("https://my.oauth.club/token"))
+                .clientAuthenticationMethod(ClientAuthenticationMethod.PRIVATE_KEY_JWT)
+                .clientAssertionSigningKey(keyPair.getPrivate())
+                .clientAssertionKeyId("key-1")
+                .clientAssertionLifetime(60L)
+                .build();
+    }
+}
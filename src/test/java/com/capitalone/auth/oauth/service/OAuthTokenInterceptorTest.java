@@ -0,0 +1,159 @@
+package com.capitalone.auth.oauth.service;
+
+import com.capitalone.auth.Token;
+import com.capitalone.auth.TokenService;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class OAuthTokenInterceptorTest {
+
+    private TokenService mockTokenService;
+    private OAuthToken token;
+
+    @Before
+    public void setup() throws Exception {
+        mockTokenService = mock(TokenService.class);
+        token = OAuthToken.newBuilder().accessToken("abc123").tokenType("bearer").expiresIn(3600).build();
+        when(mockTokenService.obtainTokenFor(eq(new URI("https://api.service.com/things?id=1")))).thenReturn(token);
+    }
+
+    @Test
+    public void testAuthorizationHeaderIsRenderedOnceAndCachedOnTheToken() throws Exception {
+        assertThat(token.getAuthorizationHeader().getValue(), is(equalTo("Bearer abc123")));
+        assertThat(token.getAuthorizationHeader(), is(sameInstance(token.getAuthorizationHeader())));
+    }
+
+    @Test
+    public void testWrappedRequestGetsTheCachedHeader() throws Exception {
+        final HttpRequestWrapper request = HttpRequestWrapper.wrap(new HttpGet("https://api.service.com/things?id=1"));
+        request.setURI(new URI("/things?id=1"));
+
+        new OAuthTokenInterceptor(mockTokenService).process(request, HttpClientContext.create());
+
+        assertThat(request.getFirstHeader("Authorization"), is(sameInstance(token.getAuthorizationHeader())));
+    }
+
+    @Test
+    public void testRelativeRequestIsResolvedAgainstTheTargetHost() throws Exception {
+        final HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(HttpClientContext.HTTP_TARGET_HOST, new HttpHost("api.service.com", -1, "https"));
+
+        final BasicHttpRequest request = new BasicHttpRequest("GET", "/things?id=1");
+        new OAuthTokenInterceptor(mockTokenService).process(request, context);
+
+        assertThat(request.getFirstHeader("Authorization").getValue(), is(equalTo("Bearer abc123")));
+    }
+
+    @Test
+    public void testOtherTokensGetABearerHeader() throws Exception {
+        final Token plainToken = mock(Token.class);
+        when(plainToken.getValue()).thenReturn("plain");
+        when(mockTokenService.obtainTokenFor(any(URI.class))).thenReturn(plainToken);
+
+        final HttpGet request = new HttpGet("https://other.service.com/");
+        new OAuthTokenInterceptor(mockTokenService).process(request, HttpClientContext.create());
+
+        assertThat(request.getFirstHeader("Authorization").getValue(), is(equalTo("Bearer plain")));
+    }
+
+    @Test
+    public void testURLConnectionIsAuthorized() throws Exception {
+        // HttpURLConnection hides the Authorization header from getRequestProperty
+        final URLConnection connection = new URLConnection(new URL("https://api.service.com/things?id=1")) {
+            @Override
+            public void connect() {
+            }
+        };
+
+        new URLConnectionAuthorizer(mockTokenService).authorize(connection);
+
+        assertThat(connection.getRequestProperty("Authorization"), is(equalTo("Bearer abc123")));
+    }
+
+    @Test
+    public void testUnauthorizedResponseInvalidatesTheAttachedTokenAndRetriesOnce() throws Exception {
+        final OAuthTokenService mockOAuthTokenService = mock(OAuthTokenService.class);
+        final URI uri = new URI("https://api.service.com/things?id=1");
+        when(mockOAuthTokenService.obtainTokenFor(eq(uri))).thenReturn(token);
+        when(mockOAuthTokenService.invalidate(uri, token)).thenReturn(true);
+        final HttpClientContext context = HttpClientContext.create();
+        new OAuthTokenInterceptor(mockOAuthTokenService).process(new HttpGet(uri), context);
+
+        final OAuthTokenRetryStrategy retryStrategy = new OAuthTokenRetryStrategy(mockOAuthTokenService);
+        final HttpResponse unauthorized = new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized");
+
+        assertThat(retryStrategy.retryRequest(unauthorized, 1, context), is(true));
+        verify(mockOAuthTokenService).invalidate(uri, token);
+
+        assertThat(retryStrategy.retryRequest(unauthorized, 2, context), is(false));
+        assertThat(retryStrategy.retryRequest(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"), 1, context), is(false));
+    }
+
+    @Test
+    public void testUnauthorizedResponseIsRetriedOnlyIfTheTokenWasReplaced() throws Exception {
+        final OAuthTokenService mockOAuthTokenService = mock(OAuthTokenService.class);
+        final URI uri = new URI("https://api.service.com/things?id=1");
+        when(mockOAuthTokenService.obtainTokenFor(eq(uri))).thenReturn(token);
+        final HttpClientContext context = HttpClientContext.create();
+        new OAuthTokenInterceptor(mockOAuthTokenService).process(new HttpGet(uri), context);
+
+        final OAuthTokenRetryStrategy retryStrategy = new OAuthTokenRetryStrategy(mockOAuthTokenService);
+        final HttpResponse unauthorized = new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized");
+
+        // kept, so the retry would carry the same token
+        when(mockOAuthTokenService.isCached(uri, token)).thenReturn(true);
+        assertThat(retryStrategy.retryRequest(unauthorized, 1, context), is(false));
+
+        // replaced by another request in the meantime
+        when(mockOAuthTokenService.isCached(uri, token)).thenReturn(false);
+        assertThat(retryStrategy.retryRequest(unauthorized, 1, context), is(true));
+    }
+
+    @Test
+    public void testUnauthorizedResponseWithoutAttachedTokenIsNotRetried() throws Exception {
+        final OAuthTokenService mockOAuthTokenService = mock(OAuthTokenService.class);
+
+        final boolean retried = new OAuthTokenRetryStrategy(mockOAuthTokenService)
+                .retryRequest(new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized"), 1, HttpClientContext.create());
+
+        assertThat(retried, is(false));
+        verify(mockOAuthTokenService, never()).invalidate(any(URI.class), any(Token.class));
+    }
+}
@@ -2,32 +2,62 @@ package com.capitalone.auth.oauth.service;
 
 import com.capitalone.auth.ClientCredentialsProvider;
 import com.capitalone.auth.Token;
+import com.capitalone.auth.oauth.exceptions.TokenRequestException;
+import com.capitalone.auth.oauth.exceptions.TokenTimeoutException;
+import com.capitalone.auth.oauth.factory.CachingDnsResolver;
 import com.capitalone.auth.oauth.factory.HttpConnectionConfig;
 import com.capitalone.auth.oauth.factory.HttpConnectionFactory;
 import com.capitalone.auth.oauth.factory.HttpConnectionPool;
+import com.capitalone.auth.oauth.framework.ClientAuthenticationMethod;
 import com.capitalone.auth.oauth.framework.ClientCredentialsNotFoundException;
 import com.capitalone.auth.oauth.framework.OAuthClientCredentials;
+import com.capitalone.auth.oauth.framework.ReloadingOAuthClientCredentialsProvider;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.util.EntityUtils;
+import org.hamcrest.CoreMatchers;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Lock;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
@@ -99,6 +129,93 @@ public class OAuthTokenServiceTest {
         assertThat(newInstance.getExecutorService(), instanceOf(ThreadPoolExecutor.class));
     }
 
+    @Test
+    public void testRefreshesRunOnTheBulkheadOfTheirAuthServer() throws Exception {
+        final OAuthTokenService bulkheaded = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(mockProvider)
+                .clientSecretService(mockClientSecretService)
+                .bulkheadThreads(2)
+                .bulkheadQueueSize(10)
+                .build();
+        assertThat(testee.getBulkheadStatistics().isEmpty(), is(true));
+
+        final URI uriA = new URI("http://a.fake.com");
+        final URI uriB = new URI("http://b.fake.com");
+        when(mockProvider.getClientCredentialsFor(eq(uriA))).thenReturn(OAuthClientCredentials.newBuilder().clientId("a").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://a.oauth.club/")).build());
+        when(mockProvider.getClientCredentialsFor(eq(uriB))).thenReturn(OAuthClientCredentials.newBuilder().clientId("b").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://b.oauth.club/")).build());
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockResponse);
+        when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"bulkheaded\", \"expires_in\": 3600}"));
+
+        final Map<URI, Token> tokens = bulkheaded.obtainTokensFor(Arrays.asList(uriA, uriB));
+        assertThat(tokens.get(uriA).getValue(), is("bulkheaded"));
+        assertThat(tokens.get(uriB).getValue(), is("bulkheaded"));
+
+        final Set<URI> authServers = new HashSet<>();
+        for (BulkheadStatistics statistics : bulkheaded.getBulkheadStatistics()) {
+            authServers.add(statistics.getAuthServerURI());
+            assertThat(statistics.getRejectedRefreshes(), is(0L));
+        }
+        assertThat(authServers, is((Set<URI>) new HashSet<>(Arrays.asList(new URI("https://a.oauth.club/"), new URI("https://b.oauth.club/")))));
+        bulkheaded.close();
+    }
+
+    @Test
+    public void testCloseDrainsPrefetchExecutor() throws Exception {
+        final ExecutorService executorService = testee.getExecutorService();
+
+        testee.close();
+
+        assertThat(executorService.isTerminated(), is(true));
+    }
+
+    @Test
+    public void testConnectionIsPrewarmedAheadOfPrefetch() throws Exception {
+        final OAuthTokenService prewarming = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(mockProvider)
+                .clientSecretService(mockClientSecretService)
+                .connectionPrewarmTime(5000)
+                .build();
+        final ScheduledExecutorService mockScheduler = mock(ScheduledExecutorService.class);
+        prewarming.setPrewarmScheduler(mockScheduler);
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"sparkpost-token\", \"expires_in\": 60}"));
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+
+        prewarming.obtainTokenFor(new URI("https://my.service.to.be.authorised.com/"));
+        // the cached token must not schedule another prewarm
+        prewarming.obtainTokenFor(new URI("https://my.service.to.be.authorised.com/"));
+
+        final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        final ArgumentCaptor<Long> delayCaptor = ArgumentCaptor.forClass(Long.class);
+        verify(mockScheduler).schedule(runnableCaptor.capture(), delayCaptor.capture(), eq(TimeUnit.MILLISECONDS));
+
+        // expires in 50s, prefetch starts 20s before that and the connection is warmed 5s before that
+        assertThat(delayCaptor.getValue() <= 25000L && delayCaptor.getValue() > 20000L, is(true));
+
+        runnableCaptor.getValue().run();
+        verify(mockPool).prewarm(eq(new URI("https://my.oauth.club/")));
+
+        prewarming.close();
+    }
+
     @Test
     public void testObtainTokenFor_requestNewToken() throws Exception {
         testee.setObjectMapper(new ObjectMapper());
@@ -106,7 +223,7 @@ public class OAuthTokenServiceTest {
         final HttpClient mockClient = mock(HttpClient.class);
         when(mockPool.getHttpClient()).thenReturn(mockClient);
 
-        final HttpResponse mockHttpResponse = mock(HttpResponse.class);
+        final HttpResponse mockHttpResponse = okResponse();
         when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
 
         final StatusLine mockStatusLine = mock(StatusLine.class);
@@ -132,7 +249,9 @@ public class OAuthTokenServiceTest {
         verify(mockClient).execute(captor.capture());
         assertThat(captor.getValue().getURI(), is(equalTo(new URI("https://my.oauth.club/"))));
         assertThat(captor.getValue().getEntity(), is(notNullValue()));
-        assertThat(captor.getValue().getEntity(), is(instanceOf(UrlEncodedFormEntity.class)));
+        assertThat(captor.getValue().getEntity(), is(instanceOf(ByteArrayEntity.class)));
+        assertThat(captor.getValue().getEntity().isRepeatable(), is(true));
+        assertThat(captor.getValue().getEntity().getContentType().getValue(), is(equalTo("application/x-www-form-urlencoded; charset=ISO-8859-1")));
 
         final String entityContent = EntityUtils.toString(captor.getValue().getEntity());
         assertThat(entityContent, containsString("grant_type=client_credentials"));
@@ -144,6 +263,258 @@ public class OAuthTokenServiceTest {
         assertThat(cacheAttributes.getToken(), sameInstance(token));
     }
 
+    @Test
+    public void testRequestBodyIsReusedUntilTheSecretChanges() throws Exception {
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(
+                new StringEntity("{\"access_token\": \"token\", \"expires_in\": 3600}"),
+                new StringEntity("{\"access_token\": \"token\", \"expires_in\": 3600}"),
+                new StringEntity("{\"access_token\": \"token\", \"expires_in\": 3600}"));
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+        when(mockClientSecretService.obtainClientSecret(clientCredentials)).thenReturn("abc", "abc", "rotated");
+
+        final URI uri = new URI("https://my.service.to.be.authorised.com/");
+        testee.obtainTokenFor(uri);
+        testee.getTokenCache().clear();
+        testee.obtainTokenFor(uri);
+        testee.getTokenCache().clear();
+        testee.obtainTokenFor(uri);
+
+        final ArgumentCaptor<HttpPost> captor = ArgumentCaptor.forClass(HttpPost.class);
+        verify(mockClient, times(3)).execute(captor.capture());
+        final byte[] first = EntityUtils.toByteArray(captor.getAllValues().get(0).getEntity());
+        assertThat(EntityUtils.toByteArray(captor.getAllValues().get(1).getEntity()), is(equalTo(first)));
+        assertThat(EntityUtils.toString(captor.getAllValues().get(2).getEntity()), containsString("client_secret=rotated"));
+    }
+
+    @Test
+    public void testClientSecretBasicSendsTheCredentialsInTheAuthorizationHeader() throws Exception {
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"token\", \"expires_in\": 3600}"));
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials")
+                .authServerURI(new URI("https://my.oauth.club/")).clientAuthenticationMethod(ClientAuthenticationMethod.CLIENT_SECRET_BASIC).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+        when(mockClientSecretService.obtainClientSecret(clientCredentials)).thenReturn("s3cret:!");
+
+        testee.obtainTokenFor(new URI("https://my.service.to.be.authorised.com/"));
+
+        final ArgumentCaptor<HttpPost> captor = ArgumentCaptor.forClass(HttpPost.class);
+        verify(mockClient).execute(captor.capture());
+        // base64("xyz:s3cret%3A%21")
+        assertThat(captor.getValue().getFirstHeader("Authorization").getValue(), is(equalTo("Basic eHl6OnMzY3JldCUzQSUyMQ==")));
+        final String entityContent = EntityUtils.toString(captor.getValue().getEntity());
+        assertThat(entityContent, is(equalTo("grant_type=client_credentials")));
+    }
+
+    @Test
+    public void testInvalidateDropsOnlyTheRejectedTokenOnceAndRespectsTheMinimumInterval() throws Exception {
+        final TokenClock mockClock = mock(TokenClock.class);
+        when(mockClock.currentTimeMillis()).thenReturn(1000000L);
+        final OAuthTokenService invalidating = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(mockProvider)
+                .clientSecretService(mockClientSecretService)
+                .minRefetchInterval(5000)
+                .clock(mockClock)
+                .build();
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(
+                new StringEntity("{\"access_token\": \"token-1\", \"expires_in\": 3600}"),
+                new StringEntity("{\"access_token\": \"token-2\", \"expires_in\": 3600}"));
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+        when(mockClientSecretService.obtainClientSecret(clientCredentials)).thenReturn("abc");
+
+        final URI uri = new URI("https://my.service.to.be.authorised.com/");
+        final Token rejected = invalidating.obtainTokenFor(uri);
+
+        // too young to be dropped, so a request rejected with it isn't retried
+        assertThat(invalidating.invalidate(uri, rejected), is(false));
+        assertThat(invalidating.obtainTokenFor(uri), is(sameInstance(rejected)));
+        final HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(OAuthTokenInterceptor.TOKEN_ATTRIBUTE, rejected);
+        context.setAttribute(OAuthTokenInterceptor.TOKEN_URI_ATTRIBUTE, uri);
+        final HttpResponse unauthorized = new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized");
+        assertThat(new OAuthTokenRetryStrategy(invalidating).retryRequest(unauthorized, 1, context), is(false));
+        assertThat(invalidating.isCached(uri, rejected), is(true));
+
+        when(mockClock.currentTimeMillis()).thenReturn(1006000L);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<Boolean>> invalidations = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            invalidations.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return invalidating.invalidate(uri, rejected);
+                }
+            }));
+        }
+        int dropped = 0;
+        for (Future<Boolean> invalidation : invalidations) {
+            dropped += invalidation.get(10, TimeUnit.SECONDS) ? 1 : 0;
+        }
+        executor.shutdown();
+        assertThat(dropped, is(1));
+
+        // dropped by another thread, so the request is retried
+        assertThat(new OAuthTokenRetryStrategy(invalidating).retryRequest(unauthorized, 1, context), is(true));
+
+        final Token replacement = invalidating.obtainTokenFor(uri);
+        assertThat(replacement.getValue(), is(equalTo("token-2")));
+        assertThat(invalidating.invalidate(uri, rejected), is(false));
+        assertThat(invalidating.obtainTokenFor(uri), is(sameInstance(replacement)));
+        verify(mockClient, times(2)).execute(any(HttpPost.class));
+        invalidating.close();
+    }
+
+    @Test
+    public void testRenewalUsesTheRefreshTokenAndFallsBackToTheFullGrantWhenItIsRejected() throws Exception {
+        final TokenClock mockClock = mock(TokenClock.class);
+        when(mockClock.currentTimeMillis()).thenReturn(1000000L);
+        final OAuthTokenService refreshing = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(0)
+                .clientCredentialsProvider(mockProvider)
+                .clientSecretService(mockClientSecretService)
+                .clock(mockClock)
+                .build();
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse okResponse = okResponse();
+        final StatusLine okStatus = mock(StatusLine.class);
+        when(okStatus.getStatusCode()).thenReturn(200);
+        when(okResponse.getStatusLine()).thenReturn(okStatus);
+        when(okResponse.getEntity()).thenReturn(
+                new StringEntity("{\"access_token\": \"token-1\", \"expires_in\": 60, \"refresh_token\": \"refresh-1\"}"),
+                new StringEntity("{\"access_token\": \"token-2\", \"expires_in\": 60}"),
+                new StringEntity("{\"access_token\": \"token-3\", \"expires_in\": 60}"));
+        final HttpResponse rejectedResponse = okResponse();
+        final StatusLine rejectedStatus = mock(StatusLine.class);
+        when(rejectedStatus.getStatusCode()).thenReturn(400);
+        when(rejectedResponse.getStatusLine()).thenReturn(rejectedStatus);
+        when(rejectedResponse.getEntity()).thenReturn(new StringEntity("{\"error\": \"invalid_grant\"}"));
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(okResponse, okResponse, rejectedResponse, okResponse);
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+        when(mockClientSecretService.obtainClientSecret(clientCredentials)).thenReturn("abc");
+        final URI uri = new URI("https://my.service.to.be.authorised.com/");
+
+        final OAuthToken first = (OAuthToken) refreshing.obtainTokenFor(uri);
+        assertThat(first.getRefreshToken(), is(equalTo("refresh-1")));
+
+        // expired: renewed through the refresh token, which is carried over as the server issued no new one
+        when(mockClock.currentTimeMillis()).thenReturn(1060000L);
+        final OAuthToken second = (OAuthToken) refreshing.obtainTokenFor(uri);
+        assertThat(second.getValue(), is(equalTo("token-2")));
+        assertThat(second.getRefreshToken(), is(equalTo("refresh-1")));
+
+        // expired again and the refresh token is rejected: the full grant is used
+        when(mockClock.currentTimeMillis()).thenReturn(1120000L);
+        assertThat(refreshing.obtainTokenFor(uri).getValue(), is(equalTo("token-3")));
+
+        final ArgumentCaptor<HttpPost> captor = ArgumentCaptor.forClass(HttpPost.class);
+        verify(mockClient, times(4)).execute(captor.capture());
+        assertThat(EntityUtils.toString(captor.getAllValues().get(0).getEntity()), containsString("grant_type=client_credentials"));
+        assertThat(EntityUtils.toString(captor.getAllValues().get(1).getEntity()), is(equalTo("client_id=xyz&client_secret=abc&grant_type=refresh_token&refresh_token=refresh-1")));
+        assertThat(EntityUtils.toString(captor.getAllValues().get(2).getEntity()), containsString("grant_type=refresh_token"));
+        assertThat(EntityUtils.toString(captor.getAllValues().get(3).getEntity()), containsString("grant_type=client_credentials"));
+        refreshing.close();
+    }
+
+    @Test
+    public void testRefreshFailingWithAServerErrorDoesNotFallBackToTheFullGrant() throws Exception {
+        final TokenClock mockClock = mock(TokenClock.class);
+        when(mockClock.currentTimeMillis()).thenReturn(1000000L);
+        final OAuthTokenService refreshing = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(0)
+                .clientCredentialsProvider(mockProvider)
+                .clientSecretService(mockClientSecretService)
+                .clock(mockClock)
+                .build();
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse okResponse = okResponse();
+        when(okResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"token-1\", \"expires_in\": 60, \"refresh_token\": \"refresh-1\"}"));
+        final HttpResponse unavailableResponse = okResponse();
+        final StatusLine unavailableStatus = mock(StatusLine.class);
+        when(unavailableStatus.getStatusCode()).thenReturn(503);
+        when(unavailableResponse.getStatusLine()).thenReturn(unavailableStatus);
+        when(unavailableResponse.getEntity()).thenReturn(new StringEntity("{\"error\": \"temporarily_unavailable\"}"));
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(okResponse, unavailableResponse);
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+        when(mockClientSecretService.obtainClientSecret(clientCredentials)).thenReturn("abc");
+        final URI uri = new URI("https://my.service.to.be.authorised.com/");
+        refreshing.obtainTokenFor(uri);
+
+        when(mockClock.currentTimeMillis()).thenReturn(1060000L);
+        try {
+            refreshing.obtainTokenFor(uri);
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getCause(), instanceOf(TokenRequestException.class));
+            assertThat(((TokenRequestException) e.getCause()).getStatusCode(), is(503));
+        }
+
+        // only the refresh was sent, no full grant
+        final ArgumentCaptor<HttpPost> captor = ArgumentCaptor.forClass(HttpPost.class);
+        verify(mockClient, times(2)).execute(captor.capture());
+        assertThat(EntityUtils.toString(captor.getAllValues().get(1).getEntity()), containsString("grant_type=refresh_token"));
+        refreshing.close();
+    }
+
+    @Test
+    public void testPrivateKeyJwtSendsASignedAssertionInsteadOfTheSecret() throws Exception {
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"token\", \"expires_in\": 3600}"));
+
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").grantType("client_credentials")
+                .authServerURI(new URI("https://my.oauth.club/")).clientAuthenticationMethod(ClientAuthenticationMethod.PRIVATE_KEY_JWT)
+                .clientAssertionSigningKey(generator.generateKeyPair().getPrivate()).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+
+        assertThat(testee.obtainTokenFor(new URI("https://my.service.to.be.authorised.com/")).getValue(), is(equalTo("token")));
+
+        final ArgumentCaptor<HttpPost> captor = ArgumentCaptor.forClass(HttpPost.class);
+        verify(mockClient).execute(captor.capture());
+        final String entityContent = EntityUtils.toString(captor.getValue().getEntity());
+        assertThat(entityContent, CoreMatchers.startsWith("client_assertion_type=urn%3Aietf%3Aparams%3Aoauth%3Aclient-assertion-type%3Ajwt-bearer&client_assertion=ey"));
+        assertThat(entityContent, CoreMatchers.endsWith("&grant_type=client_credentials"));
+        assertThat(entityContent, not(containsString("client_secret")));
+        verifyZeroInteractions(mockClientSecretService);
+    }
+
     @Test(expected = IOException.class)
     public void testIOExceptionBubbles() throws Exception {
         when(mockProvider.getClientCredentialsFor(Mockito.any(URI.class))).thenReturn(OAuthClientCredentials.newBuilder().clientId("id").clientSecret("Secret").grantType("grant").build());
@@ -185,8 +556,247 @@ public class OAuthTokenServiceTest {
         }
     }
 
+    @Test
+    public void testAuthServerHostsArePreResolvedOnBuildAndReload() throws Exception {
+        final Path credentialsFile = Files.createTempFile("oauth-credentials", ".json");
+        Files.write(credentialsFile, ("[{\"clientId\": \"a\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"},"
+                + " {\"clientId\": \"b\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/b/.*\", \"authServerURI\": \"https://my.oauth.club/token\"}]").getBytes(Charset.forName("UTF-8")));
+        final ReloadingOAuthClientCredentialsProvider provider = new ReloadingOAuthClientCredentialsProvider(credentialsFile);
+        final CachingDnsResolver mockDnsResolver = mock(CachingDnsResolver.class);
+        doThrow(new UnknownHostException("nowhere")).when(mockDnsResolver).preResolve("nowhere.oauth.club");
+        final OAuthTokenService reloading = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(provider)
+                .clientSecretService(mockClientSecretService)
+                .dnsResolver(mockDnsResolver)
+                .build();
+
+        verify(mockDnsResolver, times(1)).preResolve("my.oauth.club");
+
+        Files.write(credentialsFile, ("[{\"clientId\": \"a\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"},"
+                + " {\"clientId\": \"b\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/b/.*\", \"authServerURI\": \"https://other.oauth.club/\"},"
+                + " {\"clientId\": \"c\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/c/.*\", \"authServerURI\": \"https://nowhere.oauth.club/\"}]").getBytes(Charset.forName("UTF-8")));
+        provider.reload();
+
+        verify(mockDnsResolver, times(1)).preResolve("other.oauth.club");
+        verify(mockDnsResolver, times(1)).preResolve("nowhere.oauth.club");
+        // a is unchanged, so its host is not resolved again
+        verify(mockDnsResolver, times(1)).preResolve("my.oauth.club");
+
+        reloading.close();
+        provider.close();
+        Files.delete(credentialsFile);
+    }
+
+    @Test
+    public void testReloadingCredentialsEvictsOnlyTheTokensOfChangedCredentials() throws Exception {
+        final Path credentialsFile = Files.createTempFile("oauth-credentials", ".json");
+        Files.write(credentialsFile, ("[{\"clientId\": \"a\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"},"
+                + " {\"clientId\": \"b\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/b/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]").getBytes(Charset.forName("UTF-8")));
+        final ReloadingOAuthClientCredentialsProvider provider = new ReloadingOAuthClientCredentialsProvider(credentialsFile);
+        final OAuthTokenService reloading = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(provider)
+                .clientSecretService(mockClientSecretService)
+                .build();
+
+        final OAuthClientCredentials credentialsA = provider.getClientCredentialsFor(new URI("https://service/a/x"));
+        final OAuthClientCredentials credentialsB = provider.getClientCredentialsFor(new URI("https://service/b/x"));
+        final OAuthTokenAttributes attributesA = OAuthTokenAttributes.newBuilder().token(OAuthToken.newBuilder().accessToken("a").expiresIn(3600).build()).build();
+        reloading.putToken(credentialsA, attributesA);
+        reloading.putToken(credentialsB, OAuthTokenAttributes.newBuilder().token(OAuthToken.newBuilder().accessToken("b").expiresIn(3600).build()).build());
+
+        // rotate the secret of b only
+        Files.write(credentialsFile, ("[{\"clientId\": \"a\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"},"
+                + " {\"clientId\": \"b\", \"clientSecret\": \"s2\", \"clientURIRegex\": \".*/b/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]").getBytes(Charset.forName("UTF-8")));
+        provider.reload();
+
+        assertThat(reloading.getTokenCache().size(), is(1));
+        assertThat(reloading.getTokenCache().get(credentialsA), is(sameInstance(attributesA)));
+
+        reloading.close();
+        provider.close();
+        Files.delete(credentialsFile);
+    }
+
+    @Test
+    public void testReloadingCredentialsEvictsTheCachedSecretsOfChangedCredentials() throws Exception {
+        final Path credentialsFile = Files.createTempFile("oauth-credentials", ".json");
+        Files.write(credentialsFile, ("[{\"clientId\": \"a\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"},"
+                + " {\"clientId\": \"b\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/b/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]").getBytes(Charset.forName("UTF-8")));
+        final ReloadingOAuthClientCredentialsProvider provider = new ReloadingOAuthClientCredentialsProvider(credentialsFile);
+        when(mockClientSecretService.obtainClientSecret(any(OAuthClientCredentials.class))).thenReturn("decrypted");
+        final CachingClientSecretService cachingSecretService = CachingClientSecretService.newBuilder().delegate(mockClientSecretService).build();
+        final OAuthTokenService reloading = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(provider)
+                .clientSecretService(cachingSecretService)
+                .build();
+
+        final OAuthClientCredentials credentialsA = provider.getClientCredentialsFor(new URI("https://service/a/x"));
+        final OAuthClientCredentials credentialsB = provider.getClientCredentialsFor(new URI("https://service/b/x"));
+        cachingSecretService.obtainClientSecret(credentialsA);
+        cachingSecretService.obtainClientSecret(credentialsB);
+        assertThat(cachingSecretService.size(), is(2));
+
+        // rotate the secret of b only
+        Files.write(credentialsFile, ("[{\"clientId\": \"a\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"},"
+                + " {\"clientId\": \"b\", \"clientSecret\": \"s2\", \"clientURIRegex\": \".*/b/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]").getBytes(Charset.forName("UTF-8")));
+        provider.reload();
+
+        assertThat(cachingSecretService.size(), is(1));
+        cachingSecretService.obtainClientSecret(credentialsA);
+        verify(mockClientSecretService, times(1)).obtainClientSecret(credentialsA);
+
+        reloading.close();
+        cachingSecretService.close();
+        provider.close();
+        Files.delete(credentialsFile);
+    }
+
+    @Test
+    public void testFetchInFlightForEvictedCredentialsDoesNotCacheItsToken() throws Exception {
+        final Path credentialsFile = Files.createTempFile("oauth-credentials", ".json");
+        Files.write(credentialsFile, "[{\"clientId\": \"a\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]".getBytes(Charset.forName("UTF-8")));
+        final ReloadingOAuthClientCredentialsProvider provider = new ReloadingOAuthClientCredentialsProvider(credentialsFile);
+        final OAuthTokenService reloading = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(provider)
+                .clientSecretService(mockClientSecretService)
+                .build();
+        final OAuthClientCredentials oldCredentials = provider.getClientCredentialsFor(new URI("https://service/a/x"));
+        when(mockClientSecretService.obtainClientSecret(any(OAuthClientCredentials.class))).thenReturn("s1");
+
+        // the first request hangs until the credentials were rotated
+        final CountDownLatch called = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        when(mockClient.execute(any(HttpPost.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                called.countDown();
+                release.await();
+                final HttpResponse httpResponse = okResponse();
+                when(httpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"token\", \"expires_in\": 3600}"));
+                return httpResponse;
+            }
+        });
+
+        final ExecutorService caller = Executors.newSingleThreadExecutor();
+        final Future<Token> inFlight = caller.submit(new Callable<Token>() {
+            @Override
+            public Token call() throws Exception {
+                return reloading.obtainTokenFor(new URI("https://service/a/x"));
+            }
+        });
+        assertThat(called.await(5, TimeUnit.SECONDS), is(true));
+
+        Files.write(credentialsFile, "[{\"clientId\": \"a\", \"clientSecret\": \"s2\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]".getBytes(Charset.forName("UTF-8")));
+        provider.reload();
+        assertThat(reloading.getTokenCache().containsKey(oldCredentials), is(false));
+
+        // the caller still gets its token, but it isn't cached for the removed credentials
+        release.countDown();
+        assertThat(inFlight.get(5, TimeUnit.SECONDS).getValue(), is(equalTo("token")));
+        assertThat(reloading.getTokenCache().containsKey(oldCredentials), is(false));
+
+        caller.shutdown();
+        reloading.close();
+        provider.close();
+        Files.delete(credentialsFile);
+    }
+
+    @Test
+    public void testScopedTokensOfReloadableCredentialsAreCachedUntilTheirCredentialsAreRemoved() throws Exception {
+        final Path credentialsFile = Files.createTempFile("oauth-credentials", ".json");
+        Files.write(credentialsFile, "[{\"clientId\": \"a\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]".getBytes(Charset.forName("UTF-8")));
+        final ReloadingOAuthClientCredentialsProvider provider = new ReloadingOAuthClientCredentialsProvider(credentialsFile);
+        final OAuthTokenService reloading = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(provider)
+                .clientSecretService(mockClientSecretService)
+                .build();
+        when(mockClientSecretService.obtainClientSecret(any(OAuthClientCredentials.class))).thenReturn("s1");
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"scoped-token\", \"expires_in\": 3600, \"scope\": \"read\"}"));
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+
+        final URI uri = new URI("https://service/a/x");
+        final OAuthClientCredentials scopedCredentials = provider.getClientCredentialsFor(uri).withScopes(Arrays.asList("read"));
+        reloading.obtainTokenFor(uri, Arrays.asList("read"));
+        assertThat(reloading.getTokenCache().get(scopedCredentials).getToken().getValue(), is(equalTo("scoped-token")));
+
+        Files.write(credentialsFile, "[{\"clientId\": \"a\", \"clientSecret\": \"s2\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]".getBytes(Charset.forName("UTF-8")));
+        provider.reload();
+        assertThat(reloading.getTokenCache().containsKey(scopedCredentials), is(false));
+
+        reloading.close();
+        provider.close();
+        Files.delete(credentialsFile);
+    }
+
+    @Test
+    public void testCredentialsRemovedRightAfterTheyWereLookedUpAreNotCached() throws Exception {
+        final Path credentialsFile = Files.createTempFile("oauth-credentials", ".json");
+        Files.write(credentialsFile, "[{\"clientId\": \"a\", \"clientSecret\": \"s1\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]".getBytes(Charset.forName("UTF-8")));
+        final ReloadingOAuthClientCredentialsProvider provider = spy(new ReloadingOAuthClientCredentialsProvider(credentialsFile));
+        final OAuthTokenService reloading = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(provider)
+                .clientSecretService(mockClientSecretService)
+                .build();
+        when(mockClientSecretService.obtainClientSecret(any(OAuthClientCredentials.class))).thenReturn("s1");
+
+        // the credentials are rotated between looking them up and fetching their token
+        final URI uri = new URI("https://service/a/x");
+        final OAuthClientCredentials oldCredentials = provider.getClientCredentialsFor(uri);
+        doAnswer(new Answer<OAuthClientCredentials>() {
+            @Override
+            public OAuthClientCredentials answer(InvocationOnMock invocation) throws Throwable {
+                Files.write(credentialsFile, "[{\"clientId\": \"a\", \"clientSecret\": \"s2\", \"clientURIRegex\": \".*/a/.*\", \"authServerURI\": \"https://my.oauth.club/\"}]".getBytes(Charset.forName("UTF-8")));
+                provider.reload();
+                return oldCredentials;
+            }
+        }).when(provider).getClientCredentialsFor(uri);
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"token\", \"expires_in\": 3600}"));
+
+        assertThat(reloading.obtainTokenFor(uri).getValue(), is(equalTo("token")));
+        assertThat(reloading.getTokenCache().containsKey(oldCredentials), is(false));
+
+        reloading.close();
+        provider.close();
+        Files.delete(credentialsFile);
+    }
+
     @Test
     public void testWhenValidTokenAlreadyExistsThenWeReturnTheSameToken() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
 
         OAuthToken fakeCachedToken = OAuthToken.newBuilder().accessToken("whatever").tokenType("good").expiresIn(60).build();
 
@@ -199,7 +809,6 @@ public class OAuthTokenServiceTest {
         when(mockLock.tryLock(anyLong(), any(TimeUnit.class))).thenReturn(true);
         OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
                 .token(fakeCachedToken)
-                .lock(mockLock)
                 .build();
         testee.putToken(fakeClientCredentials, fakeOAuthTokenAttributes);
 
@@ -212,6 +821,7 @@ public class OAuthTokenServiceTest {
 
     @Test
     public void testWhenURIsRequestingSameTokenAreFoundThenSameTokenIsCached() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         URI fakeUri1 = new URI("http://fakeserver.fakedomain.fake.com");
         URI fakeUri2 = new URI("http://fakeserver.fakedomain.fake.com/");
 
@@ -225,7 +835,6 @@ public class OAuthTokenServiceTest {
         OAuthToken fakeToken1 = OAuthToken.newBuilder().accessToken("dis_yo_access").tokenType("nice").expiresIn(120).build();
         OAuthTokenAttributes fakeTokenAttributes = OAuthTokenAttributes.newBuilder()
                 .token(fakeToken1)
-                .lock(mockLock)
                 .build();
 
         testee.putToken(clientCredentials1, fakeTokenAttributes);
@@ -240,6 +849,7 @@ public class OAuthTokenServiceTest {
 
     @Test
     public void testWhenTokenIsInMatureStateThenPrefetchIsInvoked() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         final ExecutorService mockExecutorService = mock(ExecutorService.class);
 
         testee.setExecutorService(mockExecutorService);
@@ -260,7 +870,6 @@ public class OAuthTokenServiceTest {
 
         OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
                 .token(mockToken)
-                .lock(mockLock)
                 .build();
         testee.putToken(clientCredentials, fakeOAuthTokenAttributes);
 
@@ -284,7 +893,7 @@ public class OAuthTokenServiceTest {
         final HttpClient mockClient = mock(HttpClient.class);
         when(this.mockPool.getHttpClient()).thenReturn(mockClient);
 
-        final HttpResponse mockResponse = mock(HttpResponse.class);
+        final HttpResponse mockResponse = okResponse();
         when(mockClient.execute(any(HttpPost.class))).thenReturn(mockResponse);
         when(mockResponse.getEntity()).thenReturn(new StringEntity("{\n" +
                 "  \"access_token\": \"sparkpost-token\",\n" +
@@ -303,6 +912,7 @@ public class OAuthTokenServiceTest {
 
     @Test
     public void testWhenTokenIsNewThenPrefetchIsNotInvoked() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
 
         final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
@@ -313,7 +923,6 @@ public class OAuthTokenServiceTest {
         when(mockToken.getRemainingTime()).thenReturn(50L);
         OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
                 .token(mockToken)
-                .lock(mockLock)
                 .build();
         testee.putToken(clientCredentials, fakeOAuthTokenAttributes);
 
@@ -328,6 +937,7 @@ public class OAuthTokenServiceTest {
 
     @Test
     public void testShouldRequestNewTokenIfOldTokenIsExpired() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         OAuthToken fakeToken = OAuthToken.newBuilder()
                 .accessToken("dis_yo_access")
                 .tokenType("nice")
@@ -346,7 +956,6 @@ public class OAuthTokenServiceTest {
 
         OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
                 .token(fakeToken)
-                .lock(mockLock)
                 .build();
 
         testee.putToken(clientCredentials, fakeOAuthTokenAttributes);
@@ -357,7 +966,7 @@ public class OAuthTokenServiceTest {
         final HttpClient mockClient = mock(HttpClient.class);
         when(mockPool.getHttpClient()).thenReturn(mockClient);
 
-        final HttpResponse mockHttpResponse = mock(HttpResponse.class);
+        final HttpResponse mockHttpResponse = okResponse();
         when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
 
         final StatusLine mockStatusLine = mock(StatusLine.class);
@@ -380,41 +989,223 @@ public class OAuthTokenServiceTest {
     }
 
     @Test
-    public void testThrowsExceptionWhenGlobalLockThrowsInterruptedException() throws Exception {
-        final Lock mockGlobalLock = mock(Lock.class);
-        testee.setLock(mockGlobalLock);
+    public void testEntriesWithoutTheirOwnLockAreGuardedByStripedLocks() throws Exception {
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+        when(mockProvider.getClientCredentialsFor(eq(fakeUri))).thenReturn(clientCredentials);
 
-        final InterruptedException mockException = mock(InterruptedException.class);
-        when(mockGlobalLock.tryLock(eq(10L), eq(TimeUnit.SECONDS))).thenThrow(mockException);
+        final OAuthToken cachedToken = OAuthToken.newBuilder().accessToken("cached").expiresIn(3600).build();
+        testee.putToken(clientCredentials, OAuthTokenAttributes.newBuilder().token(cachedToken).build());
+
+        final Lock stripe = testee.getLockStripes().lockFor(clientCredentials);
+        assertThat(stripe, is(sameInstance(testee.getLockStripes().lockFor(OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build()))));
+        assertThat(testee.getLockStripes().size(), is(OAuthTokenService.DEFAULT_LOCK_STRIPES));
+
+        // held by another thread, the stripe is waited for
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stripe.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    stripe.unlock();
+                }
+            }
+        });
+        holder.start();
+        locked.await();
+
+        final ExecutorService caller = Executors.newSingleThreadExecutor();
+        final Future<Token> waiting = caller.submit(new Callable<Token>() {
+            @Override
+            public Token call() throws Exception {
+                return testee.obtainTokenFor(fakeUri);
+            }
+        });
+        Thread.sleep(100);
+        assertThat(waiting.isDone(), is(false));
+
+        release.countDown();
+        assertThat(waiting.get(5, TimeUnit.SECONDS), is(sameInstance((Token) cachedToken)));
+        holder.join();
+        caller.shutdown();
+    }
 
-        URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+    @Test
+    public void testInterruptedWhileWaitingForStripedLockDoesNotReleaseIt() throws Exception {
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+        when(mockProvider.getClientCredentialsFor(eq(fakeUri))).thenReturn(clientCredentials);
+
+        Thread.currentThread().interrupt();
         try {
             testee.obtainTokenFor(fakeUri);
             fail();
         } catch (IOException e) {
-            assertThat(e.getMessage(), is(equalTo("error acquiring global lock")));
-            assertThat(e.getCause(), sameInstance((Throwable) mockException));
+            assertThat(e.getMessage(), is(equalTo("error acquiring lock for https://my.oauth.club/")));
+            assertThat(e.getCause(), instanceOf(InterruptedException.class));
         }
+
+        // the stripe was not left locked
+        assertThat(testee.getLockStripes().lockFor(clientCredentials).tryLock(), is(true));
     }
 
     @Test
-    public void testThrowsExceptionWhenCantGetGlobalLockInTime() throws Exception {
-        final Lock mockGlobalLock = mock(Lock.class);
-        when(mockGlobalLock.tryLock(eq(10L), eq(TimeUnit.SECONDS))).thenReturn(false);
-        testee.setLock(mockGlobalLock);
+    public void testHungAuthServerDoesNotHoldUpCredentialsSharingItsStripe() throws Exception {
+        final OAuthTokenService striped = OAuthTokenService.newBuilder()
+                .httpConnectionFactory(mockFactory)
+                .httpConnectionConfig(HttpConnectionConfig.newBuilder().httpConnectionTimeout(60).httpSocketTimeout(40).maxHttpConnections(20).build())
+                .prefetchPoolSize(1)
+                .prefetchTimeout(20000)
+                .clientCredentialsProvider(mockProvider)
+                .clientSecretService(mockClientSecretService)
+                .lockStripes(1)
+                .build();
 
-        URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+        final OAuthClientCredentials hungCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://hung.oauth.club/")).build();
+        final OAuthClientCredentials healthyCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        assertThat(striped.getLockStripes().lockFor(hungCredentials), is(sameInstance(striped.getLockStripes().lockFor(healthyCredentials))));
 
+        final URI hungUri = new URI("https://hung.service.com/");
+        final URI healthyUri = new URI("https://healthy.service.com/");
+        when(mockProvider.getClientCredentialsFor(eq(hungUri))).thenReturn(hungCredentials);
+        when(mockProvider.getClientCredentialsFor(eq(healthyUri))).thenReturn(healthyCredentials);
+
+        // the hung auth server answers once released
+        final CountDownLatch called = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        when(mockClient.execute(any(HttpPost.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                final HttpPost httpPost = (HttpPost) invocation.getArguments()[0];
+                final String host = httpPost.getURI().getHost();
+                if ("hung.oauth.club".equals(host)) {
+                    called.countDown();
+                    release.await();
+                }
+                final HttpResponse httpResponse = okResponse();
+                when(httpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"" + host + "\", \"expires_in\": 3600}"));
+                return httpResponse;
+            }
+        });
+
+        final ExecutorService caller = Executors.newSingleThreadExecutor();
+        final Future<Token> hung = caller.submit(new Callable<Token>() {
+            @Override
+            public Token call() throws Exception {
+                return striped.obtainTokenFor(hungUri);
+            }
+        });
+        assertThat(called.await(5, TimeUnit.SECONDS), is(true));
+
+        // the stripe was released before the hung request was made
+        assertThat(striped.obtainTokenFor(healthyUri, 1, TimeUnit.SECONDS).getValue(), is(equalTo("my.oauth.club")));
+        assertThat(hung.isDone(), is(false));
+
+        release.countDown();
+        assertThat(hung.get(5, TimeUnit.SECONDS).getValue(), is(equalTo("hung.oauth.club")));
+        caller.shutdown();
+        striped.close();
+    }
+
+    @Test
+    public void testDeadlineFallsBackOnATokenStillValidOnTheServer() throws Exception {
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+        when(mockProvider.getClientCredentialsFor(eq(fakeUri))).thenReturn(clientCredentials);
+
+        // expired on our side, but the 10 second skew leaves it valid on the server for another 5
+        final OAuthToken skewedToken = OAuthToken.newBuilder().accessToken("skewed").expiresIn(5).build();
+        assertThat(skewedToken.hasExpired(), is(true));
+        final Future<OAuthToken> hungJob = new FutureTask<>(new Callable<OAuthToken>() {
+            @Override
+            public OAuthToken call() {
+                return null;
+            }
+        });
+        final OAuthTokenAttributes oauthTokenAttributes = OAuthTokenAttributes.newBuilder().token(skewedToken).job(hungJob).build();
+        testee.putToken(clientCredentials, oauthTokenAttributes);
+
+        final long start = System.nanoTime();
+        assertThat(testee.obtainTokenFor(fakeUri, 50, TimeUnit.MILLISECONDS), is(sameInstance((Token) skewedToken)));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000, is(true));
+        // the refresh is still in flight for whoever comes next
+        assertThat(oauthTokenAttributes.getJob(), is(sameInstance(hungJob)));
+
+        oauthTokenAttributes.setToken(null);
         try {
-            testee.obtainTokenFor(fakeUri);
+            testee.obtainTokenFor(fakeUri, 50, TimeUnit.MILLISECONDS);
             fail();
-        } catch (IOException e) {
-            assertThat(e.getMessage(), is(equalTo("failed to acquire global lock in time")));
+        } catch (TokenTimeoutException e) {
+            assertThat(e.getMessage(), is("no token from https://my.oauth.club/ within the deadline"));
+            assertThat(e.getCause(), instanceOf(TimeoutException.class));
         }
     }
 
+    @Test
+    public void testDeadlineCoversTheLockWait() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+        when(mockProvider.getClientCredentialsFor(eq(fakeUri))).thenReturn(clientCredentials);
+        when(mockLock.tryLock(anyLong(), any(TimeUnit.class))).thenReturn(false);
+        testee.putToken(clientCredentials, OAuthTokenAttributes.newBuilder().build());
+
+        try {
+            testee.obtainTokenFor(fakeUri, 200, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TokenTimeoutException e) {
+            assertThat(e.getMessage(), is("no token from https://my.oauth.club/ within the deadline"));
+        }
+
+        final ArgumentCaptor<Long> timeout = ArgumentCaptor.forClass(Long.class);
+        verify(mockLock).tryLock(timeout.capture(), eq(TimeUnit.NANOSECONDS));
+        assertThat(timeout.getValue() <= TimeUnit.MILLISECONDS.toNanos(200), is(true));
+        verify(mockLock, never()).unlock();
+    }
+
+    @Test
+    public void testDeadlineCapsTheHttpTimeouts() throws Exception {
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+        when(mockProvider.getClientCredentialsFor(eq(fakeUri))).thenReturn(clientCredentials);
+        when(mockPool.getRequestConfig()).thenReturn(RequestConfig.custom().setConnectTimeout(60000).setSocketTimeout(40000).setRedirectsEnabled(false).build());
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockResponse);
+        when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"in-time\", \"expires_in\": 3600}"));
+
+        assertThat(testee.obtainTokenFor(fakeUri, 500, TimeUnit.MILLISECONDS).getValue(), is("in-time"));
+
+        final ArgumentCaptor<HttpPost> request = ArgumentCaptor.forClass(HttpPost.class);
+        verify(mockClient).execute(request.capture());
+        final RequestConfig requestConfig = request.getValue().getConfig();
+        assertThat(requestConfig.getConnectTimeout() > 0 && requestConfig.getConnectTimeout() <= 500, is(true));
+        assertThat(requestConfig.getSocketTimeout() > 0 && requestConfig.getSocketTimeout() <= 500, is(true));
+        assertThat(requestConfig.getConnectionRequestTimeout() > 0 && requestConfig.getConnectionRequestTimeout() <= 500, is(true));
+        // everything else stays as the pool configured it
+        assertThat(requestConfig.isRedirectsEnabled(), is(false));
+
+        // without a deadline the pool's timeouts apply
+        testee.getTokenCache().clear();
+        testee.obtainTokenFor(fakeUri);
+        verify(mockClient, times(2)).execute(request.capture());
+        assertThat(request.getValue().getConfig(), is(nullValue()));
+    }
+
     @Test
     public void testThrowsExceptionWhenIndividualLockThrowsInterruptedException() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         final InterruptedException mockException = mock(InterruptedException.class);
         when(mockLock.tryLock(eq(10L), eq(TimeUnit.SECONDS))).thenThrow(mockException);
 
@@ -427,7 +1218,6 @@ public class OAuthTokenServiceTest {
                 .build();
 
         final OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
-                .lock(mockLock)
                 .build();
 
         testee.putToken(clientCredentials, fakeOAuthTokenAttributes);
@@ -446,6 +1236,7 @@ public class OAuthTokenServiceTest {
 
     @Test
     public void testThrowsExceptionWhenCantGetIndividualLockInTime() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         when(mockLock.tryLock(eq(10L), eq(TimeUnit.SECONDS))).thenReturn(false);
 
         final OAuthClientCredentials clientCredentials = OAuthClientCredentials
@@ -457,7 +1248,6 @@ public class OAuthTokenServiceTest {
                 .build();
 
         final OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
-                .lock(mockLock)
                 .build();
 
         testee.putToken(clientCredentials, fakeOAuthTokenAttributes);
@@ -474,7 +1264,8 @@ public class OAuthTokenServiceTest {
     }
 
     @Test
-    public void testExecutorExceptionWhenGettingPreFetch() throws Exception {
+    public void testFailedPreFetchIsClearedAndTheTokenFetchedAgain() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         final Future<OAuthToken> mockJob = mock(Future.class);
         final ExecutionException mockException = mock(ExecutionException.class);
         when(mockJob.get()).thenThrow(mockException);
@@ -490,7 +1281,6 @@ public class OAuthTokenServiceTest {
         when(mockLock.tryLock(anyLong(), any(TimeUnit.class))).thenReturn(true);
 
         final OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
-                .lock(mockLock)
                 .job(mockJob)
                 .build();
 
@@ -499,17 +1289,41 @@ public class OAuthTokenServiceTest {
         URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
         when(mockProvider.getClientCredentialsFor(eq(fakeUri))).thenReturn(clientCredentials);
 
-        try {
-            testee.obtainTokenFor(fakeUri);
-            fail();
-        } catch (IOException e) {
-            assertThat(e.getMessage(), is(equalTo("error requesting oauth token")));
-            assertThat(e.getCause(), sameInstance((Throwable) mockException));
-        }
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockResponse);
+        when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"recovered\", \"expires_in\": 3600}"));
+
+        assertThat(testee.obtainTokenFor(fakeUri).getValue(), is("recovered"));
+        assertThat(fakeOAuthTokenAttributes.getJob(), is(nullValue()));
+        verify(mockClient).execute(any(HttpPost.class));
+    }
+
+    @Test
+    public void testTransientFetchFailureDoesNotStickToTheEntry() throws Exception {
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+        when(mockProvider.getClientCredentialsFor(eq(fakeUri))).thenReturn(clientCredentials);
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenThrow(new IOException("transient")).thenReturn(mockResponse);
+        when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"recovered\", \"expires_in\": 3600}"));
+
+        // the fetch planted by the bulk call fails, the caller fetches again and succeeds
+        final Token token = testee.obtainTokensFor(Arrays.asList(fakeUri)).get(fakeUri);
+        assertThat(token.getValue(), is("recovered"));
+        assertThat(testee.getTokenCache().get(clientCredentials).getJob(), is(nullValue()));
+
+        assertThat(testee.obtainTokenFor(fakeUri), is(sameInstance(token)));
+        verify(mockClient, times(2)).execute(any(HttpPost.class));
     }
 
     @Test
     public void testShouldUsePrefetchIfThereIsOneInProgress() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         final Future<OAuthToken> mockJob = mock(Future.class);
         final OAuthToken mockNewToken = mock(OAuthToken.class);
         when(mockJob.get()).thenReturn(mockNewToken);
@@ -528,7 +1342,6 @@ public class OAuthTokenServiceTest {
 
         final OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
                 .token(fakeToken)
-                .lock(mockLock)
                 .job(mockJob)
                 .build();
 
@@ -543,6 +1356,7 @@ public class OAuthTokenServiceTest {
 
     @Test
     public void testShouldNotDoAnotherPrefetchIfThereIsOneInProgress() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         final ExecutorService mockExecutorService = mock(ExecutorService.class);
 
         testee.setExecutorService(mockExecutorService);
@@ -565,7 +1379,6 @@ public class OAuthTokenServiceTest {
         OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
                 .token(mockToken)
                 .job(mockJob)
-                .lock(mockLock)
                 .build();
         testee.putToken(clientCredentials, fakeOAuthTokenAttributes);
 
@@ -578,6 +1391,7 @@ public class OAuthTokenServiceTest {
 
     @Test
     public void testShouldDoAnInlineIfThePrefetchTokenHasAlreadyExpired() throws Exception {
+        testee.setLockStripes(new LockStripes(mockLock));
         final OAuthToken fakeExistingExpiredToken = OAuthToken.newBuilder()
                 .expiresIn(-999)
                 .build();
@@ -601,7 +1415,6 @@ public class OAuthTokenServiceTest {
 
         final OAuthTokenAttributes fakeOAuthTokenAttributes = OAuthTokenAttributes.newBuilder()
                 .token(fakeExistingExpiredToken)
-                .lock(mockLock)
                 .job(mockJob)
                 .build();
 
@@ -615,7 +1428,7 @@ public class OAuthTokenServiceTest {
         final HttpClient mockClient = mock(HttpClient.class);
         when(mockPool.getHttpClient()).thenReturn(mockClient);
 
-        final HttpResponse mockHttpResponse = mock(HttpResponse.class);
+        final HttpResponse mockHttpResponse = okResponse();
         when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
 
         final URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
@@ -634,6 +1447,181 @@ public class OAuthTokenServiceTest {
         assertThat(token.getValue(), is("new token request"));
     }
 
+    @Test
+    public void testRestoredJwtIsUsedUntilItIsDueForPrefetch() throws Exception {
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final URI uri = new URI("https://my.service.to.be.authorised.com/");
+        when(mockProvider.getClientCredentialsFor(eq(uri))).thenReturn(clientCredentials);
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+
+        final long now = System.currentTimeMillis() / 1000;
+        final String expired = jwt("{\"exp\":" + (now + 15) + "}");
+        final String restored = jwt("{\"exp\":" + (now + 3600) + "}");
+
+        assertThat(testee.restoreToken(uri, "not-a-jwt", null, null), is(false));
+        // due for prefetch (20 s) once the expiry skew (10 s) is taken off
+        assertThat(testee.restoreToken(uri, expired, null, null), is(false));
+        assertThat(testee.restoreToken(uri, restored, "bearer", "refresh-1"), is(true));
+
+        final OAuthToken token = (OAuthToken) testee.obtainTokenFor(uri);
+        assertThat(token.getValue(), is(equalTo(restored)));
+        assertThat(token.getRefreshToken(), is(equalTo("refresh-1")));
+        assertThat(token.getRemainingTime(), is(greaterThan(3500000L)));
+        verify(mockClient, never()).execute(any(HttpPost.class));
+
+        // a valid cached token isn't replaced
+        assertThat(testee.restoreToken(uri, jwt("{\"exp\":" + (now + 7200) + "}"), null, null), is(false));
+        assertThat(testee.obtainTokenFor(uri), is(sameInstance((Token) token)));
+    }
+
+    @Test
+    public void testResponseParsingSkipsUnknownFields() throws Exception {
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\n" +
+                "  \"issued\": {\"at\": [1, 2, {\"access_token\": \"nested\"}]},\n" +
+                "  \"access_token\": \"sparkpost-token\",\n" +
+                "  \"token_type\": \"Bearer\",\n" +
+                "  \"expires_in\": \"60\"\n" +
+                "}"));
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+
+        final OAuthToken token = (OAuthToken) testee.obtainTokenFor(new URI("https://my.service.to.be.authorised.com/"));
+        assertThat(token.getValue(), is(equalTo("sparkpost-token")));
+        assertThat(token.getTokenType(), is(equalTo("Bearer")));
+        assertThat(token.getExpiresIn(), is(equalTo(50L)));
+    }
+
+    @Test
+    public void testResponseParsingSkipsStructuredValuesOfKnownFields() throws Exception {
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\n" +
+                "  \"token_type\": {\"access_token\": \"nested\"},\n" +
+                "  \"expires_in\": [1],\n" +
+                "  \"access_token\": \"real-token\"\n" +
+                "}"));
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+
+        final OAuthToken token = (OAuthToken) testee.obtainTokenFor(new URI("https://my.service.to.be.authorised.com/"));
+        assertThat(token.getValue(), is(equalTo("real-token")));
+    }
+
+    @Test
+    public void testResponseLargerThanLimitIsRejected() throws Exception {
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+
+        final StringBuilder padding = new StringBuilder();
+        while (padding.length() <= OAuthTokenResponseParser.DEFAULT_MAX_RESPONSE_SIZE) {
+            padding.append("padding-");
+        }
+
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new InputStreamEntity(new ByteArrayInputStream(
+                ("{\"access_token\": \"" + padding + "\"}").getBytes("UTF-8"))));
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+
+        try {
+            testee.obtainTokenFor(new URI("https://my.service.to.be.authorised.com/"));
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getCause().getMessage(), is(equalTo("oauth server response exceeds 65536 bytes")));
+        }
+    }
+
+    @Test
+    public void testObtainTokensForFetchesMissingTokensOnceAndReusesCachedOnes() throws Exception {
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"fetched-token\", \"expires_in\": 3600}"));
+
+        final OAuthClientCredentials fetchedCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final OAuthClientCredentials cachedCredentials = OAuthClientCredentials.newBuilder().clientId("123").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+
+        final URI uri1 = new URI("https://first.service.com/");
+        final URI uri2 = new URI("https://second.service.com/");
+        final URI uri3 = new URI("https://third.service.com/");
+        when(mockProvider.getClientCredentialsFor(eq(uri1))).thenReturn(fetchedCredentials);
+        when(mockProvider.getClientCredentialsFor(eq(uri2))).thenReturn(fetchedCredentials);
+        when(mockProvider.getClientCredentialsFor(eq(uri3))).thenReturn(cachedCredentials);
+
+        final OAuthToken cachedToken = OAuthToken.newBuilder().accessToken("cached-token").expiresIn(3600).build();
+        testee.putToken(cachedCredentials, OAuthTokenAttributes.newBuilder().token(cachedToken).build());
+
+        final Map<URI, Token> tokens = testee.obtainTokensFor(Arrays.asList(uri1, uri2, uri3));
+
+        assertThat(tokens.size(), is(3));
+        assertThat(tokens.get(uri1).getValue(), is(equalTo("fetched-token")));
+        assertThat(tokens.get(uri2), is(sameInstance(tokens.get(uri1))));
+        assertThat(tokens.get(uri3), is(sameInstance((Token) cachedToken)));
+        verify(mockClient, times(1)).execute(any(HttpPost.class));
+    }
+
+    @Test
+    public void testScopedTokensAreRequestedCachedAndReusedForSubsets() throws Exception {
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"scoped-token\", \"expires_in\": 3600, \"scope\": \"read write admin\"}"));
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+        when(mockClientSecretService.obtainClientSecret(any(OAuthClientCredentials.class))).thenReturn("abc");
+
+        final URI uri = new URI("https://my.service.to.be.authorised.com/");
+        final OAuthToken token = (OAuthToken) testee.obtainTokenFor(uri, Arrays.asList("write", "read"));
+        assertThat(token.getValue(), is(equalTo("scoped-token")));
+        assertThat(token.getScopes(), is(equalTo((Set<String>) new HashSet<>(Arrays.asList("read", "write", "admin")))));
+
+        final ArgumentCaptor<HttpPost> captor = ArgumentCaptor.forClass(HttpPost.class);
+        verify(mockClient).execute(captor.capture());
+        assertThat(EntityUtils.toString(captor.getValue().getEntity()), containsString("scope=read+write"));
+        assertThat(testee.getTokenCache().get(clientCredentials.withScopes(Arrays.asList("read", "write"))).getToken(), is(sameInstance(token)));
+
+        // a subset of the granted scopes reuses the cached token without another request
+        assertThat(testee.obtainTokenFor(uri, Arrays.asList("admin")), is(sameInstance((Token) token)));
+        verify(mockClient, times(1)).execute(any(HttpPost.class));
+    }
+
+    @Test
+    public void testExpirySkewPerCredentialAndServerClockOffset() throws Exception {
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockHttpResponse = okResponse();
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.getEntity()).thenReturn(new StringEntity("{\"access_token\": \"sparkpost-token\", \"expires_in\": 3600}"));
+
+        // the server claims to be an hour ahead of us
+        when(mockHttpResponse.getFirstHeader(eq("Date"))).thenReturn(new BasicHeader("Date", DateUtils.formatDate(new Date(System.currentTimeMillis() + 3600000))));
+
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).expirySkew(60L).build();
+        when(mockProvider.getClientCredentialsFor(any(URI.class))).thenReturn(clientCredentials);
+
+        final OAuthToken token = (OAuthToken) testee.obtainTokenFor(new URI("https://my.service.to.be.authorised.com/"));
+        assertThat(token.getExpiresIn(), is(equalTo(3540L)));
+
+        final long offset = testee.getServerClockOffset(new URI("https://my.oauth.club/"));
+        assertThat(offset > 3595000L && offset < 3605000L, is(true));
+    }
+
     @Test
     public void testObtainTokenThrowsClientSecretException() throws Exception {
         testee.setObjectMapper(new ObjectMapper());
@@ -659,4 +1647,86 @@ public class OAuthTokenServiceTest {
         }
 
     }
+
+    @Test
+    public void testErrorResponseToTheFullGrantFails() throws Exception {
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("wrong").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+        when(mockProvider.getClientCredentialsFor(eq(fakeUri))).thenReturn(clientCredentials);
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockResponse = okResponse();
+        when(mockResponse.getStatusLine().getStatusCode()).thenReturn(401);
+        when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"error\": \"invalid_client\", \"error_description\": \"bad secret\"}"));
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockResponse);
+
+        try {
+            testee.obtainTokenFor(fakeUri);
+            fail();
+        } catch (IOException e) {
+            final TokenRequestException cause = (TokenRequestException) e.getCause();
+            assertThat(cause.getMessage(), is("oauth server responded 401: invalid_client (bad secret)"));
+            assertThat(cause.getStatusCode(), is(401));
+            assertThat(cause.getError(), is("invalid_client"));
+        }
+        assertThat(testee.getTokenCache().get(clientCredentials).getToken(), is(nullValue()));
+
+        // a 2xx without an access token isn't a token either
+        when(mockResponse.getStatusLine().getStatusCode()).thenReturn(200);
+        when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"error\": \"invalid_request\"}"));
+        try {
+            testee.obtainTokenFor(fakeUri);
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getCause().getMessage(), is("oauth server response has no access_token: invalid_request"));
+        }
+    }
+
+    @Test
+    public void testNonJsonErrorResponseFailsWithItsStatus() throws Exception {
+        final OAuthClientCredentials clientCredentials = OAuthClientCredentials.newBuilder().clientId("xyz").clientSecret("abc").grantType("client_credentials").authServerURI(new URI("https://my.oauth.club/")).build();
+        final URI fakeUri = new URI("http://fakeserver.fakedomain.fake.com");
+        when(mockProvider.getClientCredentialsFor(eq(fakeUri))).thenReturn(clientCredentials);
+
+        final HttpClient mockClient = mock(HttpClient.class);
+        when(mockPool.getHttpClient()).thenReturn(mockClient);
+        final HttpResponse mockResponse = okResponse();
+        when(mockResponse.getStatusLine().getStatusCode()).thenReturn(502);
+        when(mockResponse.getEntity()).thenReturn(new StringEntity("<html><body><h1>502 Bad Gateway</h1></body></html>"));
+        when(mockClient.execute(any(HttpPost.class))).thenReturn(mockResponse);
+
+        try {
+            testee.obtainTokenFor(fakeUri);
+            fail();
+        } catch (IOException e) {
+            final TokenRequestException cause = (TokenRequestException) e.getCause();
+            assertThat(cause.getMessage(), is("oauth server responded 502"));
+            assertThat(cause.getStatusCode(), is(502));
+            assertThat(cause.getError(), is(nullValue()));
+        }
+
+        // json that breaks off half way doesn't hide the status either
+        when(mockResponse.getStatusLine().getStatusCode()).thenReturn(503);
+        when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"error\": \"temporarily_unavailable\", <html>"));
+        try {
+            testee.obtainTokenFor(fakeUri);
+            fail();
+        } catch (IOException e) {
+            assertThat(((TokenRequestException) e.getCause()).getStatusCode(), is(503));
+        }
+    }
+
+    private static String jwt(String payload) throws Exception {
+        return Base64.encodeBase64URLSafeString("{\"alg\":\"RS256\"}".getBytes("UTF-8")) + "."
+                + Base64.encodeBase64URLSafeString(payload.getBytes("UTF-8")) + ".c2lnbmF0dXJl";
+    }
+
+    private static HttpResponse okResponse() {
+        final HttpResponse httpResponse = mock(HttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        when(statusLine.getStatusCode()).thenReturn(200);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        return httpResponse;
+    }
 }
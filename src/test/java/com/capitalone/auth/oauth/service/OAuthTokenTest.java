@@ -0,0 +1,156 @@
+package com.capitalone.auth.oauth.service;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class OAuthTokenTest {
+
+    @Test
+    public void testExpiryIsTakenFromTheJwtExpClaim() throws Exception {
+        final long now = System.currentTimeMillis() / 1000;
+        final String jwt = jwt("{\"sub\":\"client\",\"aud\":[\"a\",\"b\"],\"iat\":" + (now - 100) + ",\"nbf\":" + (now - 100) + ",\"exp\":" + (now + 500) + "}");
+
+        final OAuthToken token = OAuthToken.newBuilder().accessToken(jwt).expiresIn(3600).decodeJwtExpiry(true).build();
+
+        assertThat(token.getExpiresOn(), is(equalTo((now + 490) * 1000)));
+        assertThat(token.getIssuedAt(), is(equalTo((now - 100) * 1000)));
+        assertThat(token.getNotBefore(), is(equalTo((now - 100) * 1000)));
+        assertThat(token.hasExpired(), is(false));
+    }
+
+    @Test
+    public void testRestoredJwtWithoutExpiresInIsTrusted() throws Exception {
+        final long now = System.currentTimeMillis() / 1000;
+
+        final OAuthToken valid = OAuthToken.newBuilder().accessToken(jwt("{\"exp\":" + (now + 500) + "}")).decodeJwtExpiry(true).build();
+        assertThat(valid.hasExpired(), is(false));
+
+        final OAuthToken expired = OAuthToken.newBuilder().accessToken(jwt("{\"exp\":" + (now - 500) + "}")).expiresIn(3600).decodeJwtExpiry(true).build();
+        assertThat(expired.hasExpired(), is(true));
+    }
+
+    @Test
+    public void testOpaqueTokensKeepExpiresInBasedExpiry() throws Exception {
+        final OAuthToken token = OAuthToken.newBuilder().accessToken("opaque.not-json.token").expiresIn(60).decodeJwtExpiry(true).build();
+
+        assertThat(token.getExpiresOn(), is(equalTo(token.getCreationTime() + 50000)));
+        assertThat(token.getIssuedAt(), is(equalTo(token.getCreationTime())));
+        assertThat(token.getNotBefore(), is(equalTo(-1L)));
+    }
+
+    @Test
+    public void testJwtIsNotDecodedUnlessAskedFor() throws Exception {
+        final long now = System.currentTimeMillis() / 1000;
+        final OAuthToken token = OAuthToken.newBuilder().accessToken(jwt("{\"exp\":" + (now - 500) + "}")).expiresIn(60).build();
+
+        assertThat(token.hasExpired(), is(false));
+    }
+
+    @Test
+    public void testExpiryFollowsTheInjectedClockAndSkew() throws Exception {
+        final TokenClock mockClock = mock(TokenClock.class);
+        when(mockClock.currentTimeMillis()).thenReturn(1000000L);
+
+        final OAuthToken token = OAuthToken.newBuilder().accessToken("opaque").expiresIn(60).expirySkew(30).clock(mockClock).build();
+        assertThat(token.getCreationTime(), is(1000000L));
+        assertThat(token.getExpiresIn(), is(30L));
+        assertThat(token.getRemainingTime(), is(30000L));
+
+        when(mockClock.currentTimeMillis()).thenReturn(1030000L);
+        assertThat(token.hasExpired(), is(true));
+    }
+
+    @Test
+    public void testJwtClaimsAreMovedOntoOurClockByTheServerOffset() throws Exception {
+        final TokenClock mockClock = mock(TokenClock.class);
+        when(mockClock.currentTimeMillis()).thenReturn(1000000L);
+
+        // the server clock runs 20s ahead of ours
+        final OAuthToken token = OAuthToken.newBuilder()
+                .accessToken(jwt("{\"iat\": 1020, \"exp\": 1320}"))
+                .clock(mockClock)
+                .serverClockOffset(20000)
+                .decodeJwtExpiry(true)
+                .build();
+
+        assertThat(token.getIssuedAt(), is(1000000L));
+        assertThat(token.getExpiresOn(), is(1290000L));
+    }
+
+    @Test
+    public void testCompactTokenDecodesItsValueOnEachUse() throws Exception {
+        final String accessToken = jwt("{\"exp\":1300,\"sub\":\"caf\u00e9\"}");
+        final OAuthToken token = OAuthToken.newBuilder()
+                .accessToken(accessToken)
+                .tokenType("bearer")
+                .expiresIn(3600)
+                .decodeJwtExpiry(true)
+                .compact(true)
+                .build();
+
+        assertThat(token.isCompact(), is(true));
+        assertThat(token.getValue(), is(accessToken));
+        assertThat(token.getValue(), is(not(sameInstance(token.getValue()))));
+        assertThat(token.getExpiresOn(), is(1290000L));
+
+        // the header isn't held on to either
+        assertThat(token.getAuthorizationHeader().getValue(), is("Bearer " + accessToken));
+        assertThat(token.getAuthorizationHeader(), is(not(sameInstance(token.getAuthorizationHeader()))));
+
+        final OAuthToken regular = OAuthToken.newBuilder().accessToken(accessToken).build();
+        assertThat(regular.isCompact(), is(false));
+        assertThat(regular.getAuthorizationHeader(), is(sameInstance(regular.getAuthorizationHeader())));
+    }
+
+    @Test
+    public void testMonotonicClockNeverGoesBackwards() throws Exception {
+        final MonotonicClock clock = new MonotonicClock();
+        long previous = clock.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            final long now = clock.currentTimeMillis();
+            assertThat(now >= previous, is(true));
+            previous = now;
+        }
+    }
+
+    @Test
+    public void testCoarseClockFollowsItsSource() throws Exception {
+        final TokenClock mockClock = mock(TokenClock.class);
+        when(mockClock.currentTimeMillis()).thenReturn(1000L);
+
+        final CoarseClock clock = new CoarseClock(mockClock, 1);
+        assertThat(clock.currentTimeMillis(), is(1000L));
+
+        when(mockClock.currentTimeMillis()).thenReturn(2000L);
+        for (int i = 0; i < 1000 && clock.currentTimeMillis() != 2000L; i++) {
+            Thread.sleep(1);
+        }
+        assertThat(clock.currentTimeMillis(), is(2000L));
+        clock.close();
+    }
+
+    private static String jwt(String payload) throws Exception {
+        return Base64.encodeBase64URLSafeString("{\"alg\":\"RS256\"}".getBytes("UTF-8")) + "."
+                + Base64.encodeBase64URLSafeString(payload.getBytes("UTF-8")) + ".c2lnbmF0dXJl";
+    }
+}
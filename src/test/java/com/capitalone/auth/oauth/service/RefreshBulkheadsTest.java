@@ -0,0 +1,110 @@
+package com.capitalone.auth.oauth.service;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Copyright [2016] Capital One Services, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+public class RefreshBulkheadsTest {
+
+    @Test
+    public void testHungAuthServerDoesNotStarveOthers() throws Exception {
+        final RefreshBulkheads testee = new RefreshBulkheads(1, 1);
+        final URI hung = new URI("https://hung.oauth.club/");
+        final URI healthy = new URI("https://healthy.oauth.club/");
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> hangs = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                release.await();
+                return "late";
+            }
+        };
+
+        testee.submit(hung, hangs);
+        started.await();
+        testee.submit(hung, hangs);
+        try {
+            testee.submit(hung, hangs);
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertThat(e.getMessage(), is("refresh queue full for https://hung.oauth.club/"));
+        }
+
+        final Future<String> healthyRefresh = testee.submit(healthy, new Callable<String>() {
+            @Override
+            public String call() {
+                return "on time";
+            }
+        });
+        assertThat(healthyRefresh.get(5, TimeUnit.SECONDS), is("on time"));
+
+        final Map<URI, BulkheadStatistics> statistics = new HashMap<>();
+        for (BulkheadStatistics bulkheadStatistics : testee.getStatistics()) {
+            statistics.put(bulkheadStatistics.getAuthServerURI(), bulkheadStatistics);
+        }
+        assertThat(statistics.size(), is(2));
+        assertThat(statistics.get(hung).getQueueDepth(), is(1));
+        assertThat(statistics.get(hung).getActiveRefreshes(), is(1));
+        assertThat(statistics.get(hung).getRejectedRefreshes(), is(1L));
+        assertThat(statistics.get(healthy).getQueueDepth(), is(0));
+        assertThat(statistics.get(healthy).getRejectedRefreshes(), is(0L));
+
+        release.countDown();
+        testee.shutdown();
+        assertThat(testee.awaitTermination(5, TimeUnit.SECONDS), is(true));
+        assertThat(testee.getStatistics().get(0).getQueueDepth(), is(0));
+    }
+
+    @Test
+    public void testShutDownBulkheadsRejectWithoutCounting() throws Exception {
+        final RefreshBulkheads testee = new RefreshBulkheads(1, 1);
+        final URI authServer = new URI("https://my.oauth.club/");
+        testee.submit(authServer, new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }).get(5, TimeUnit.SECONDS);
+        testee.shutdown();
+
+        try {
+            testee.submit(authServer, new Callable<String>() {
+                @Override
+                public String call() {
+                    return "too late";
+                }
+            });
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertThat(testee.getStatistics().get(0).getRejectedRefreshes(), is(0L));
+        }
+    }
+}